@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+// BatchIndexer collects the images to be inserted into MediaStore and inserts
+// them with one applyBatch call. The IPC round-trip dominates the cost of an
+// insert, so in a burst this saves most of the time spent in MediaStore. The
+// caller decides when to flush; getRemainingLatency() tells how much longer
+// the oldest image can wait.
+//
+// This class is not thread-safe. It is used by one thread only.
+public class BatchIndexer<T> {
+    public interface Listener<T> {
+        // Called in flush() for each item in the order they are added. uri
+        // is null if the item cannot be inserted.
+        public void onIndexed(T item, Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+    private final Listener<T> mListener;
+    private final int mMaxBatchSize;
+    private final long mMaxLatency;
+
+    private final ArrayList<T> mItems;
+    private final ArrayList<ContentValues> mValues;
+    // The time when the oldest item in the batch was added.
+    private long mOldestTime;
+
+    public BatchIndexer(ContentResolver resolver, Listener<T> listener,
+            int maxBatchSize, long maxLatencyMs) {
+        mResolver = resolver;
+        mListener = listener;
+        mMaxBatchSize = maxBatchSize;
+        mMaxLatency = maxLatencyMs;
+        mItems = new ArrayList<T>(maxBatchSize);
+        mValues = new ArrayList<ContentValues>(maxBatchSize);
+    }
+
+    public void add(T item, ContentValues values) {
+        if (mItems.isEmpty()) mOldestTime = SystemClock.uptimeMillis();
+        mItems.add(item);
+        mValues.add(values);
+    }
+
+    public boolean isEmpty() {
+        return mItems.isEmpty();
+    }
+
+    public boolean isFull() {
+        return mItems.size() >= mMaxBatchSize;
+    }
+
+    // Returns how many milliseconds the batch can still wait for more items
+    // before it should be flushed. Returns 0 if it should be flushed now.
+    public long getRemainingLatency() {
+        if (mItems.isEmpty()) return mMaxLatency;
+        long waited = SystemClock.uptimeMillis() - mOldestTime;
+        return Math.max(0, mMaxLatency - waited);
+    }
+
+    public void flush() {
+        if (mItems.isEmpty()) return;
+
+        Uri[] uris;
+        if (mValues.size() == 1) {
+            // No need to build a batch for one image.
+            uris = new Uri[] {Storage.insert(mResolver, mValues.get(0))};
+        } else {
+            uris = Storage.insertImages(mResolver, mValues);
+        }
+        for (int i = 0; i < mItems.size(); i++) {
+            mListener.onIndexed(mItems.get(i), uris[i]);
+        }
+        mItems.clear();
+        mValues.clear();
+    }
+}
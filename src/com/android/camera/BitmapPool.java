@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+// BitmapPool keeps the bitmaps we are done with, so the next rotation,
+// scaling or decode of the same size can draw into them instead of
+// allocating a new bitmap. The bitmaps are kept in buckets by width, height
+// and config. When the bytes in the pool exceed the cap, the least recently
+// released bitmaps are recycled.
+//
+// A bitmap must not be used by anyone after it is put into the pool.
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+    private long mBytes;
+    private final HashMap<Long, ArrayList<Bitmap>> mBuckets =
+            new HashMap<Long, ArrayList<Bitmap>>();
+    // All the bitmaps in the pool, the least recently released first.
+    private final LinkedList<Bitmap> mLru = new LinkedList<Bitmap>();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public static synchronized BitmapPool instance() {
+        if (sInstance == null) {
+            // Enough for a few thumbnails without taking much of the heap.
+            sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sInstance;
+    }
+
+    private BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // Returns a mutable bitmap of the size and config from the pool, or null
+    // if there is none. The content of the bitmap is undefined.
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayList<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) return null;
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        mLru.remove(bitmap);
+        mBytes -= getBytes(bitmap);
+        return bitmap;
+    }
+
+    // Puts the bitmap into the pool. The bitmap is recycled instead if it
+    // cannot be reused.
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        if (!bitmap.isMutable() || bitmap.getConfig() == null
+                || getBytes(bitmap) > mMaxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.addLast(bitmap);
+        mBytes += getBytes(bitmap);
+
+        while (mBytes > mMaxBytes) {
+            Bitmap oldest = mLru.removeFirst();
+            mBuckets.get(getKey(oldest.getWidth(), oldest.getHeight(),
+                    oldest.getConfig())).remove(oldest);
+            mBytes -= getBytes(oldest);
+            oldest.recycle();
+        }
+    }
+
+    // Returns a bitmap of the source transformed by the matrix. The result
+    // is translated so it starts at (0, 0). The source is put into the pool
+    // if a new bitmap is returned. The matrix must only rotate by multiples
+    // of 90 degrees, mirror and scale, so the result fills the bitmap.
+    public Bitmap transform(Bitmap source, Matrix matrix) {
+        RectF bounds = new RectF(0, 0, source.getWidth(), source.getHeight());
+        matrix.mapRect(bounds);
+        int width = Math.round(bounds.width());
+        int height = Math.round(bounds.height());
+        Bitmap.Config config = (source.getConfig() != null)
+                ? source.getConfig() : Bitmap.Config.ARGB_8888;
+
+        Bitmap result = get(width, height, config);
+        if (result == null) {
+            result = Bitmap.createBitmap(width, height, config);
+        } else {
+            // The content of a pooled bitmap is undefined. The edge pixels of
+            // a fractional scale or a non-opaque source would blend with it.
+            result.eraseColor(Color.TRANSPARENT);
+        }
+        Matrix m = new Matrix(matrix);
+        m.postTranslate(-bounds.left, -bounds.top);
+        Canvas canvas = new Canvas(result);
+        synchronized (mPaint) {
+            canvas.drawBitmap(source, m, mPaint);
+        }
+        put(source);
+        return result;
+    }
+
+    // Decodes the JPEG data like BitmapFactory.decodeByteArray(), but into a
+    // bitmap from the pool if there is one of the right size. The decoded
+    // bitmap is mutable, so it can be put into the pool later.
+    public Bitmap decode(byte[] data, int offset, int length, BitmapFactory.Options options) {
+        Bitmap.Config config = (options.inPreferredConfig != null)
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        // Find out the size of the result. The sample size is taken into
+        // account, and only the headers are decoded.
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, offset, length, options);
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = get(options.outWidth, options.outHeight, config);
+        if (options.inBitmap != null) {
+            try {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, offset, length, options);
+                if (bitmap == null) put(options.inBitmap);
+                return bitmap;
+            } catch (IllegalArgumentException e) {
+                // Some decoders cannot decode into a bitmap when the image
+                // is subsampled.
+                Log.v(TAG, "Cannot reuse bitmap: " + e);
+                put(options.inBitmap);
+                options.inBitmap = null;
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 32) | ((long) height << 8) | config.ordinal();
+    }
+
+    private static long getBytes(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
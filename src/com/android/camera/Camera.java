@@ -37,6 +37,9 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ActivityInfo;
 import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.hardware.Camera.CameraInfo;
 import android.hardware.Camera.Face;
 import android.hardware.Camera.FaceDetectionListener;
@@ -73,6 +76,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -82,13 +86,17 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Formatter;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** The Camera activity which can preview and take pictures. */
 public class Camera extends ActivityBase implements FocusManager.Listener,
-        View.OnTouchListener, ShutterButton.OnShutterButtonListener,
+        View.OnTouchListener, View.OnLongClickListener,
+        ShutterButton.OnShutterButtonListener,
         SurfaceHolder.Callback, ModePicker.OnModeChangeListener,
         FaceDetectionListener, CameraPreference.OnPreferenceChangedListener,
-        LocationManager.Listener {
+        LocationManager.Listener, CameraCommandQueue.Listener {
 
     private static final String TAG = "camera";
 
@@ -99,6 +107,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private static final int CHECK_DISPLAY_ROTATION = 5;
     private static final int SHOW_TAP_TO_FOCUS_TOAST = 6;
     private static final int UPDATE_THUMBNAIL = 7;
+    private static final int SAVE_BUDGET_AVAILABLE = 8;
+    private static final int BURST_NEXT_SHOT = 9;
+    private static final int APPLY_CAMERA_PARAMETERS = 10;
 
     // The subset of parameters we need to update in setCameraParameters().
     private static final int UPDATE_PARAM_INITIALIZE = 1;
@@ -109,6 +120,13 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     // When setCameraParametersWhenIdle() is called, we accumulate the subsets
     // needed to be updated in mUpdateSet.
     private int mUpdateSet;
+    // The updates from setCameraParametersSoon() within this time are
+    // applied together. About one preview frame.
+    private static final int PARAMETERS_COALESCE_DELAY = 16;
+    // The slow calls to the camera device run in the command queue. The
+    // state machine in mCameraState tracks what has been queued.
+    private CameraCommandQueue mCommandQueue;
+    private ParameterCache mParameterCache;
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
@@ -125,6 +143,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     private Parameters mParameters;
     private Parameters mInitialParams;
+    // The capabilities saved by the last run, until the camera is open and
+    // they are read from mInitialParams.
+    private CameraCapabilities mCapabilities;
     private boolean mFocusAreaSupported;
     private boolean mMeteringAreaSupported;
     private boolean mAeLockSupported;
@@ -180,8 +201,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     // A view group that contains all the small indicators.
     private Rotatable mOnScreenIndicators;
 
-    // We use a thread in ImageSaver to do the work of saving images and
-    // generating thumbnails. This reduces the shot-to-shot time.
+    // We use the stage threads in ImageSaver to do the work of saving images
+    // and generating thumbnails. This reduces the shot-to-shot time.
     private ImageSaver mImageSaver;
 
     private CameraSound mCameraSound;
@@ -223,6 +244,31 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private static final int SNAPSHOT_IN_PROGRESS = 3;
     private int mCameraState = PREVIEW_STOPPED;
     private boolean mSnapshotOnIdle = false;
+    // True if a snapshot is deferred because ImageSaver has no room for it.
+    private boolean mSnapshotOnSaveBudget = false;
+
+    // Burst mode. Pictures are taken one after another while the shutter
+    // button is long pressed. Focus, AE and AWB are locked for the whole
+    // burst. The next picture is taken as soon as the preview is restarted
+    // after the JPEG callback, but not sooner than mBurstInterval after the
+    // last one.
+    private boolean mBurstRunning;
+    private long mBurstInterval;
+    private long mBurstLastShotTime;
+    private long mBurstFirstJpegTime;
+    private long mBurstLastJpegTime;
+    private int mBurstCount;
+
+    // Zero shutter lag. If enabled, the last preview frames are kept in
+    // mPreviewFrameRing, and the shutter button takes the picture from the
+    // frame shown when it was pressed instead of calling takePicture().
+    private boolean mZslEnabled;
+    private PreviewFrameRing mPreviewFrameRing;
+    private long mShutterDownTime;
+    // True if the shutter press did not focus because the picture was going
+    // to be taken from a preview frame. If takePicture() takes it after all,
+    // or a burst starts, the focus is done then.
+    private boolean mFocusSkipped;
 
     private ContentResolver mContentResolver;
     private boolean mDidRegister = false;
@@ -239,9 +285,6 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private final ZoomListener mZoomListener = new ZoomListener();
     private final CameraErrorCallback mErrorCallback = new CameraErrorCallback();
 
-    private long mFocusStartTime;
-    private long mCaptureStartTime;
-    private long mShutterCallbackTime;
     private long mPostViewPictureCallbackTime;
     private long mRawPictureCallbackTime;
     private long mJpegPictureCallbackTime;
@@ -249,12 +292,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private long mPicturesRemaining;
     private byte[] mJpegImageData;
 
-    // These latency time are for the CameraLatency test.
-    public long mAutoFocusTime;
-    public long mShutterLag;
-    public long mShutterToPictureDisplayedTime;
-    public long mPictureDisplayedToJpegCallbackTime;
-    public long mJpegCallbackFinishTime;
+    // The latency of each step, for the CameraLatency test.
+    private final LatencyTracker mLatencyTracker = LatencyTracker.instance();
+    // The startup timeline, for the CameraStartUp test.
+    private final StartupProfiler mStartupProfiler = StartupProfiler.instance();
 
     // This handles everything about focus.
     private FocusManager mFocusManager;
@@ -298,6 +339,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                     break;
                 }
 
+                case APPLY_CAMERA_PARAMETERS: {
+                    if (mUpdateSet != 0) setCameraParametersWhenIdle(0);
+                    break;
+                }
+
                 case CHECK_DISPLAY_ROTATION: {
                     // Set the display orientation if display rotation has changed.
                     // Sometimes this happens when the device is held upside
@@ -322,6 +368,23 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                     mImageSaver.updateThumbnail();
                     break;
                 }
+
+                case SAVE_BUDGET_AVAILABLE: {
+                    if (mSnapshotOnSaveBudget) {
+                        mSnapshotOnSaveBudget = false;
+                        if (mBurstRunning) {
+                            takeBurstShot();
+                        } else {
+                            onShutterButtonClick();
+                        }
+                    }
+                    break;
+                }
+
+                case BURST_NEXT_SHOT: {
+                    takeBurstShot();
+                    break;
+                }
             }
         }
     }
@@ -354,6 +417,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     // make preview screen appear as soon as possible.
     private void initializeFirstTime() {
         if (mFirstTimeInitialized) return;
+        int phase = mStartupProfiler.begin("initialize_first_time");
 
         // Create orientation listenter. This should be done first because it
         // takes some time to get first orientation.
@@ -379,6 +443,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mShutterButton = (ShutterButton) findViewById(R.id.shutter_button);
         mShutterButton.setOnShutterButtonListener(this);
         mShutterButton.setVisibility(View.VISIBLE);
+        if (!mIsImageCaptureIntent) {
+            mShutterButton.setOnLongClickListener(this);
+            mBurstInterval = 1000 / Math.max(1,
+                    getResources().getInteger(R.integer.burstFramesPerSecond));
+        }
 
         // Initialize focus UI.
         mPreviewFrame = findViewById(R.id.camera_preview);
@@ -388,7 +457,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         boolean mirror = (info.facing == CameraInfo.CAMERA_FACING_FRONT);
         mFocusManager.initialize(mFocusAreaIndicator, mPreviewFrame, mFaceView, this,
                 mirror, mDisplayOrientation);
-        mImageSaver = new ImageSaver();
+        mImageSaver = new ImageSaver(mZslEnabled);
         Util.initializeScreenBrightness(getWindow(), getContentResolver());
         installIntentFilter();
         initializeZoom();
@@ -402,6 +471,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
 
         mFirstTimeInitialized = true;
+        mStartupProfiler.end(phase);
         addIdleHandler();
     }
 
@@ -410,6 +480,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         queue.addIdleHandler(new MessageQueue.IdleHandler() {
             public boolean queueIdle() {
                 Storage.ensureOSXCompatible(mStorage);
+                // The startup is done.
+                mStartupProfiler.finish();
                 return false;
             }
         });
@@ -422,11 +494,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     }
 
     private void updateThumbnailButton() {
-        // Update last image if URI is invalid and the storage is ready.
-        if ((mThumbnail == null || !Util.isUriValid(mThumbnail.getUri(), mContentResolver))
-                && mPicturesRemaining >= 0) {
-            mThumbnail = Thumbnail.getLastThumbnail(mContentResolver,
-                Storage.generateBucketId(mStorage));
+        // Update last image if the storage is ready.
+        if (mPicturesRemaining >= 0) {
+            mThumbnail = LastMediaCache.instance(this).getLastThumbnail(mContentResolver,
+                    Storage.generateBucketId(mStorage), mThumbnail);
         }
         if (mThumbnail != null) {
             mThumbnailView.setBitmap(mThumbnail.getBitmap());
@@ -448,9 +519,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mLocationManager.recordLocation(recordLocation);
 
         installIntentFilter();
-        mImageSaver = new ImageSaver();
+        mImageSaver = new ImageSaver(mZslEnabled);
         initializeZoom();
         keepMediaProviderInstance();
+        // Other apps may have used the storage while we were paused.
+        StorageSpaceTracker.instance().invalidate();
         checkStorage();
         hidePostCaptureAlert();
 
@@ -481,7 +554,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 mTargetZoomValue = -1;
                 if (mZoomState == ZOOM_START) {
                     mZoomState = ZOOM_STOPPING;
-                    mCameraDevice.stopSmoothZoom();
+                    mCommandQueue.stopSmoothZoom();
                 }
             }
         }
@@ -489,7 +562,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     private void initializeZoom() {
         // Get the parameter to make sure we have the up-to-date zoom value.
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mParameterCache.read();
         if (!mParameters.isZoomSupported()) return;
         mZoomMax = mParameters.getMaxZoom();
         // Currently we use immediate zoom for fast zooming to get better UX and
@@ -510,16 +583,16 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 mTargetZoomValue = index;
                 if (mZoomState == ZOOM_START) {
                     mZoomState = ZOOM_STOPPING;
-                    mCameraDevice.stopSmoothZoom();
+                    mCommandQueue.stopSmoothZoom();
                 }
             } else if (mZoomState == ZOOM_STOPPED && mZoomValue != index) {
                 mTargetZoomValue = index;
-                mCameraDevice.startSmoothZoom(index);
+                mCommandQueue.startSmoothZoom(index);
                 mZoomState = ZOOM_START;
             }
         } else {
             mZoomValue = index;
-            setCameraParametersWhenIdle(UPDATE_PARAM_ZOOM);
+            setCameraParametersSoon(UPDATE_PARAM_ZOOM);
         }
     }
 
@@ -591,8 +664,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             if (action.equals(Intent.ACTION_MEDIA_MOUNTED)
                     || action.equals(Intent.ACTION_MEDIA_UNMOUNTED)
                     || action.equals(Intent.ACTION_MEDIA_CHECKING)) {
+                StorageSpaceTracker.instance().invalidate();
                 checkStorage();
             } else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+                StorageSpaceTracker.instance().invalidate();
                 checkStorage();
                 if (!mIsImageCaptureIntent) {
                     updateThumbnailButton();
@@ -718,9 +793,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private final class ShutterCallback
             implements android.hardware.Camera.ShutterCallback {
         public void onShutter() {
-            mShutterCallbackTime = System.currentTimeMillis();
-            mShutterLag = mShutterCallbackTime - mCaptureStartTime;
-            Log.v(TAG, "mShutterLag = " + mShutterLag + "ms");
+            long shutterLag = mLatencyTracker.end(LatencyTracker.SPAN_SHUTTER);
+            Log.v(TAG, "mShutterLag = " + shutterLag + "ms");
+            mLatencyTracker.begin(LatencyTracker.SPAN_RAW);
+            mLatencyTracker.begin(LatencyTracker.SPAN_POSTVIEW);
+            mLatencyTracker.begin(LatencyTracker.SPAN_JPEG);
             mFocusManager.onShutter();
         }
     }
@@ -730,8 +807,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 byte [] data, android.hardware.Camera camera) {
             mPostViewPictureCallbackTime = System.currentTimeMillis();
             Log.v(TAG, "mShutterToPostViewCallbackTime = "
-                    + (mPostViewPictureCallbackTime - mShutterCallbackTime)
-                    + "ms");
+                    + mLatencyTracker.end(LatencyTracker.SPAN_POSTVIEW) + "ms");
         }
     }
 
@@ -740,7 +816,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 byte [] rawData, android.hardware.Camera camera) {
             mRawPictureCallbackTime = System.currentTimeMillis();
             Log.v(TAG, "mShutterToRawCallbackTime = "
-                    + (mRawPictureCallbackTime - mShutterCallbackTime) + "ms");
+                    + mLatencyTracker.end(LatencyTracker.SPAN_RAW) + "ms");
         }
     }
 
@@ -766,28 +842,32 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             }
 
             mJpegPictureCallbackTime = System.currentTimeMillis();
+            mLatencyTracker.begin(LatencyTracker.SPAN_JPEG_CALLBACK);
+            Log.v(TAG, "mShutterToJpegCallbackTime = "
+                    + mLatencyTracker.end(LatencyTracker.SPAN_JPEG) + "ms");
             // If postview callback has arrived, the captured image is displayed
             // in postview callback. If not, the captured image is displayed in
             // raw picture callback.
-            if (mPostViewPictureCallbackTime != 0) {
-                mShutterToPictureDisplayedTime =
-                        mPostViewPictureCallbackTime - mShutterCallbackTime;
-                mPictureDisplayedToJpegCallbackTime =
-                        mJpegPictureCallbackTime - mPostViewPictureCallbackTime;
-            } else {
-                mShutterToPictureDisplayedTime =
-                        mRawPictureCallbackTime - mShutterCallbackTime;
-                mPictureDisplayedToJpegCallbackTime =
-                        mJpegPictureCallbackTime - mRawPictureCallbackTime;
-            }
+            long pictureDisplayedTime = (mPostViewPictureCallbackTime != 0)
+                    ? mPostViewPictureCallbackTime : mRawPictureCallbackTime;
             Log.v(TAG, "mPictureDisplayedToJpegCallbackTime = "
-                    + mPictureDisplayedToJpegCallbackTime + "ms");
+                    + (mJpegPictureCallbackTime - pictureDisplayedTime) + "ms");
 
             if (!mIsImageCaptureIntent) {
                 startPreview();
                 startFaceDetection();
             }
 
+            if (mBurstRunning) {
+                if (mBurstCount == 0) mBurstFirstJpegTime = mJpegPictureCallbackTime;
+                mBurstLastJpegTime = mJpegPictureCallbackTime;
+                mBurstCount++;
+                // Take the next picture when the target rate allows.
+                long delay = mBurstLastShotTime + mBurstInterval
+                        - SystemClock.uptimeMillis();
+                mHandler.sendEmptyMessageDelayed(BURST_NEXT_SHOT, Math.max(0, delay));
+            }
+
             if (!mIsImageCaptureIntent) {
                 Size s = mParameters.getPictureSize();
                 mImageSaver.addImage(jpegData, mLocation, s.width, s.height);
@@ -806,10 +886,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             // shutter press and saving the JPEG too.
             checkStorage();
 
-            long now = System.currentTimeMillis();
-            mJpegCallbackFinishTime = now - mJpegPictureCallbackTime;
             Log.v(TAG, "mJpegCallbackFinishTime = "
-                    + mJpegCallbackFinishTime + "ms");
+                    + mLatencyTracker.end(LatencyTracker.SPAN_JPEG_CALLBACK) + "ms");
             mJpegPictureCallbackTime = 0;
         }
     }
@@ -820,8 +898,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 boolean focused, android.hardware.Camera camera) {
             if (mPausing) return;
 
-            mAutoFocusTime = System.currentTimeMillis() - mFocusStartTime;
-            Log.v(TAG, "mAutoFocusTime = " + mAutoFocusTime + "ms");
+            Log.v(TAG, "mAutoFocusTime = "
+                    + mLatencyTracker.end(LatencyTracker.SPAN_FOCUS) + "ms");
             setCameraState(IDLE);
             mFocusManager.onAutoFocus(focused);
         }
@@ -841,10 +919,13 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             // Keep mParameters up to date. We do not getParameter again in
             // takePicture. If we do not do this, wrong zoom value will be set.
             mParameters.setZoom(value);
+            // The device changed the zoom by itself, so the cache does not
+            // know what the device has.
+            mParameterCache.invalidate();
 
             if (stopped && mZoomState != ZOOM_STOPPED) {
                 if (mTargetZoomValue != -1 && value != mTargetZoomValue) {
-                    mCameraDevice.startSmoothZoom(mTargetZoomValue);
+                    mCommandQueue.startSmoothZoom(mTargetZoomValue);
                     mZoomState = ZOOM_START;
                 } else {
                     mZoomState = ZOOM_STOPPED;
@@ -853,52 +934,162 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
-    // Each SaveRequest remembers the data needed to save an image.
+    // Each SaveRequest remembers the data needed to save an image. The
+    // fields below the blank line are filled in by the ImageSaver stages.
     private static class SaveRequest {
         byte[] data;
         Location loc;
         int width, height;
         long dateTaken;
         int previewWidth;
-    }
-
-    // We use a queue to store the SaveRequests that have not been completed
-    // yet. The main thread puts the request into the queue. The saver thread
-    // gets it from the queue, does the work, and removes it from the queue.
+        int sequence;
+        // A preview frame to encode into data, or -1 if data is already
+        // the jpeg. See ImageSaver.addFrame().
+        PreviewFrameRing ring;
+        int frame = -1;
+        int jpegRotation;
+        int jpegQuality;
+
+        String title;
+        String path;
+        int orientation;
+        // The thumbnail embedded in EXIF, or -1 if there is none.
+        int exifThumbnailOffset;
+        int exifThumbnailLength;
+        Uri uri;
+        // When the current stage started working on the request.
+        long stageStartTime;
+    }
+
+    // This request is never saved. It is sent down the ImageSaver pipeline
+    // after all the other requests to stop the stage threads.
+    private static final SaveRequest STOP_REQUEST = new SaveRequest();
+
+    // Saving an image has four steps: writing the file, inserting it into
+    // MediaStore, creating the thumbnail and broadcasting the new picture.
+    // Each step runs in its own stage thread, and the requests are handed
+    // from one stage to the next through a bounded HandoffQueue. So a slow
+    // MediaStore insert does not hold up writing the next JPEG. With zero
+    // shutter lag there is an extra first step which encodes the preview
+    // frames into JPEGs.
     //
-    // There are several cases the main thread needs to wait for the saver
-    // thread to finish all the work in the queue:
+    // There are several cases the main thread needs to wait for all the
+    // stages to finish all the work:
     // (1) When the activity's onPause() is called, we need to finish all the
     // work, so other programs (like Gallery) can see all the images.
     // (2) When we need to show the SharePop, we need to finish all the work
     // too, because we want to show the thumbnail of the last image taken.
     //
-    // If the queue becomes too long, adding a new request will block the main
-    // thread until the queue length drops below the threshold (QUEUE_LIMIT).
-    // If we don't do this, we may face several problems: (1) We may OOM
-    // because we are holding all the jpeg data in memory. (2) We may ANR
-    // when we need to wait for saver thread finishing all the work (in
-    // onPause() or showSharePopup()) because the time to finishing a long queue
-    // of work may be too long.
-    private class ImageSaver extends Thread {
-        private static final int QUEUE_LIMIT = 3;
-
-        private ArrayList<SaveRequest> mQueue;
+    // The jpeg data held by the requests is limited by a SaveBudget, which is
+    // sized from the heap limit and the picture size. capture() checks
+    // hasRoomForPicture() and defers the next shot if the budget is used up.
+    // If a request is added anyway, adding it blocks the main thread until
+    // there is room. If we don't do this, we may face several problems: (1)
+    // We may OOM because we are holding all the jpeg data in memory. (2) We
+    // may ANR when we need to wait for the stages finishing all the work (in
+    // onPause() or showSharePopup()) because the time to finishing a long
+    // queue of work may be too long.
+    private class ImageSaver {
+        // The limit of the requests waiting to be written. Usually the
+        // SaveBudget is used up before this.
+        private static final int QUEUE_LIMIT = 8;
+        // The limit of the queues between the stages.
+        private static final int HANDOFF_LIMIT = 2;
+
+        private final HandoffQueue<SaveRequest> mEncodeQueue;
+        private final HandoffQueue<SaveRequest> mWriteQueue =
+                new HandoffQueue<SaveRequest>(QUEUE_LIMIT);
+        // The queue the main thread puts the requests to.
+        private final HandoffQueue<SaveRequest> mInputQueue;
+        private final HandoffQueue<SaveRequest> mIndexQueue =
+                new HandoffQueue<SaveRequest>(HANDOFF_LIMIT);
+        private final HandoffQueue<SaveRequest> mThumbnailQueue =
+                new HandoffQueue<SaveRequest>(HANDOFF_LIMIT);
+        private final HandoffQueue<SaveRequest> mBroadcastQueue =
+                new HandoffQueue<SaveRequest>(HANDOFF_LIMIT);
+        private final Stage[] mStages;
+        private final SaveBudget mBudget = new SaveBudget();
+        private final SaveJournal mJournal = new SaveJournal(Camera.this);
+        private final ImageWriter mWriter = new ImageWriter(
+                getResources().getInteger(R.integer.imageSyncPolicy), mJournal);
+        // True if capture() is waiting for room in mBudget.
+        private final AtomicBoolean mNotifyWhenRoom = new AtomicBoolean();
+
+        // The number of requests added but not yet through all the stages.
+        private final AtomicInteger mPendingCount = new AtomicInteger();
+        private final Object mDoneLock = new Object();
+        // The sequence number of the last request added.
+        private volatile int mLastSequence;
+
         private Thumbnail mPendingThumbnail;
         private Object mUpdateThumbnailLock = new Object();
-        private boolean mStop;
 
-        // Runs in main thread
-        public ImageSaver() {
-            mQueue = new ArrayList<SaveRequest>();
-            start();
+        // Runs in main thread. If encodeFrames is true, addFrame() can be
+        // used.
+        public ImageSaver(boolean encodeFrames) {
+            Stage encodeStage = null;
+            if (encodeFrames) {
+                mEncodeQueue = new HandoffQueue<SaveRequest>(QUEUE_LIMIT);
+                mInputQueue = mEncodeQueue;
+                encodeStage = new Stage("ImageSaver-encode", mEncodeQueue, mWriteQueue) {
+                    @Override
+                    protected void process(SaveRequest r) {
+                        encodeFrame(r);
+                    }
+                };
+            } else {
+                mEncodeQueue = null;
+                mInputQueue = mWriteQueue;
+            }
+            mStages = new Stage[] {
+                encodeStage,
+                new WriteStage(mWriteQueue, mIndexQueue),
+                new IndexStage(mIndexQueue, mThumbnailQueue),
+                new Stage("ImageSaver-thumbnail", mThumbnailQueue, mBroadcastQueue) {
+                    @Override
+                    protected void process(SaveRequest r) {
+                        createThumbnail(r);
+                    }
+                },
+                new Stage("ImageSaver-broadcast", mBroadcastQueue, null) {
+                    @Override
+                    protected void process(SaveRequest r) {
+                        broadcastImage(r);
+                    }
+                },
+            };
+            for (Stage stage : mStages) {
+                if (stage != null) stage.start();
+            }
         }
 
         // Runs in main thread
         public void addImage(final byte[] data, Location loc, int width,
                 int height) {
-            SaveRequest r = new SaveRequest();
+            SaveRequest r = createRequest(loc, width, height);
             r.data = data;
+            // This blocks if there is no room for the data in the budget.
+            mBudget.acquire(data.length);
+            mInputQueue.put(r);
+        }
+
+        // Runs in main thread. Adds a frame taken from the ring with
+        // acquireFrame(). The frame is encoded in the encode stage and then
+        // released back to the ring.
+        public void addFrame(PreviewFrameRing ring, int frame, Location loc,
+                int jpegRotation, int jpegQuality) {
+            SaveRequest r = createRequest(loc, ring.getWidth(), ring.getHeight());
+            r.ring = ring;
+            r.frame = frame;
+            r.jpegRotation = jpegRotation;
+            r.jpegQuality = jpegQuality;
+            // The budget is taken when the size of the jpeg is known.
+            mInputQueue.put(r);
+        }
+
+        // Runs in main thread
+        private SaveRequest createRequest(Location loc, int width, int height) {
+            SaveRequest r = new SaveRequest();
             r.loc = (loc == null) ? null : new Location(loc);  // make a copy
             r.width = width;
             r.height = height;
@@ -908,56 +1099,32 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             } else {
                 r.previewWidth = mPreviewFrameLayout.getWidth();
             }
-            synchronized (this) {
-                while (mQueue.size() >= QUEUE_LIMIT) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ex) {
-                        // ignore.
-                    }
-                }
-                mQueue.add(r);
-                notifyAll();  // Tell saver thread there is new work to do.
-            }
-        }
-
-        // Runs in saver thread
-        @Override
-        public void run() {
-            while (true) {
-                SaveRequest r;
-                synchronized (this) {
-                    if (mQueue.isEmpty()) {
-                        notifyAll();  // notify main thread in waitDone
-
-                        // Note that we can only stop after we saved all images
-                        // in the queue.
-                        if (mStop) break;
-
-                        try {
-                            wait();
-                        } catch (InterruptedException ex) {
-                            // ignore.
-                        }
-                        continue;
-                    }
-                    r = mQueue.get(0);
-                }
-                storeImage(r.data, r.loc, r.width, r.height, r.dateTaken,
-                        r.previewWidth);
-                synchronized(this) {
-                    mQueue.remove(0);
-                    notifyAll();  // the main thread may wait in addImage
-                }
+            r.sequence = mLastSequence + 1;
+            mLastSequence = r.sequence;
+            mPendingCount.incrementAndGet();
+            return r;
+        }
+
+        // Runs in main thread. Returns true if there is room for one more
+        // picture of the given size. Otherwise returns false, and a
+        // SAVE_BUDGET_AVAILABLE message will be sent when there is room.
+        public boolean hasRoomForPicture(int width, int height) {
+            mBudget.setPictureSize(width, height);
+            mNotifyWhenRoom.set(true);
+            if (mBudget.hasRoomForPicture()) {
+                mNotifyWhenRoom.set(false);
+                return true;
             }
+            Log.v(TAG, "Save budget is full. occupancy=" + mBudget.getOccupancy());
+            return false;
         }
 
         // Runs in main thread
         public void waitDone() {
-            synchronized (this) {
-                while (!mQueue.isEmpty()) {
+            synchronized (mDoneLock) {
+                while (mPendingCount.get() > 0) {
                     try {
-                        wait();
+                        mDoneLock.wait();
                     } catch (InterruptedException ex) {
                         // ignore.
                     }
@@ -969,15 +1136,16 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         // Runs in main thread
         public void finish() {
             waitDone();
-            synchronized (this) {
-                mStop = true;
-                notifyAll();
-            }
-            try {
-                join();
-            } catch (InterruptedException ex) {
-                // ignore.
+            mInputQueue.put(STOP_REQUEST);
+            for (Stage stage : mStages) {
+                if (stage == null) continue;
+                try {
+                    stage.join();
+                } catch (InterruptedException ex) {
+                    // ignore.
+                }
             }
+            mJournal.close();
         }
 
         // Runs in main thread (because we need to update mThumbnailView in the
@@ -993,42 +1161,238 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             if (t != null) {
                 mThumbnail = t;
                 mThumbnailView.setBitmap(mThumbnail.getBitmap());
+                LastMediaCache.instance(Camera.this).put(
+                        Storage.generateBucketId(mStorage), t);
             }
             // Share popup may still have the reference to the old thumbnail. Clear it.
             mSharePopup = null;
         }
 
-        // Runs in saver thread
-        private void storeImage(final byte[] data, Location loc, int width,
-                int height, long dateTaken, int previewWidth) {
-            String title = Util.createJpegName(dateTaken);
-            int orientation = Exif.getOrientation(data);
-            Uri uri = Storage.addImage(mContentResolver, mStorage, title, dateTaken,
-                    loc, orientation, data, width, height);
-            if (uri != null) {
-                boolean needThumbnail;
-                synchronized (this) {
-                    // If the number of requests in the queue (include the
-                    // current one) is greater than 1, we don't need to generate
-                    // thumbnail for this image. Because we'll soon replace it
-                    // with the thumbnail for some image later in the queue.
-                    needThumbnail = (mQueue.size() <= 1);
+        // Runs in the last stage thread
+        private void onRequestDone() {
+            if (mPendingCount.decrementAndGet() == 0) {
+                synchronized (mDoneLock) {
+                    mDoneLock.notifyAll();  // notify main thread in waitDone
+                }
+            }
+        }
+
+        // Runs in encode stage thread
+        private void encodeFrame(SaveRequest r) {
+            if (r.frame < 0) return;
+            // The compressed frame is usually a fraction of its raw size.
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    r.ring.getFrame(r.frame).length / 4);
+            YuvImage image = new YuvImage(r.ring.getFrame(r.frame), r.ring.getFormat(),
+                    r.width, r.height, null);
+            image.compressToJpeg(new Rect(0, 0, r.width, r.height), r.jpegQuality, out);
+            r.ring.releaseFrame(r.frame);
+            r.ring = null;
+            r.frame = -1;
+
+            ExifWriter writer = new ExifWriter()
+                    .setOrientation(r.jpegRotation)
+                    .setDateTaken(r.dateTaken)
+                    .setImageSize(r.width, r.height);
+            if (r.loc != null) {
+                writer.setLocation(r.loc.getLatitude(), r.loc.getLongitude());
+            }
+            r.data = writer.apply(out.toByteArray());
+            mBudget.acquire(r.data.length);
+        }
+
+        // Runs in thumbnail stage thread
+        private void createThumbnail(SaveRequest r) {
+            // If a later request has been added, we don't need to generate
+            // thumbnail for this image. Because we'll soon replace it with
+            // the thumbnail for the later image.
+            if (r.uri != null && r.sequence == mLastSequence) {
+                long start = LatencyTracker.now();
+                // Create a thumbnail whose width is equal or bigger than
+                // that of the preview.
+                Thumbnail t = Thumbnail.createThumbnail(r.data, r.orientation,
+                        r.previewWidth, 0, r.exifThumbnailOffset,
+                        r.exifThumbnailLength, r.uri);
+                synchronized (mUpdateThumbnailLock) {
+                    // We need to update the thumbnail in the main thread,
+                    // so send a message to run updateThumbnail().
+                    mPendingThumbnail = t;
+                    mHandler.sendEmptyMessage(UPDATE_THUMBNAIL);
                 }
-                if (needThumbnail) {
-                    // Create a thumbnail whose width is equal or bigger than
-                    // that of the preview.
-                    int ratio = (int) Math.ceil((double) width / previewWidth);
-                    int inSampleSize = Integer.highestOneBit(ratio);
-                    Thumbnail t = Thumbnail.createThumbnail(
-                                data, orientation, inSampleSize, uri);
-                    synchronized (mUpdateThumbnailLock) {
-                        // We need to update the thumbnail in the main thread,
-                        // so send a message to run updateThumbnail().
-                        mPendingThumbnail = t;
-                        mHandler.sendEmptyMessage(UPDATE_THUMBNAIL);
+                mLatencyTracker.record(LatencyTracker.SPAN_SAVE_THUMBNAIL, start);
+            }
+            // The jpeg data is not needed after this stage.
+            int size = r.data.length;
+            r.data = null;
+            mBudget.release(size);
+            if (mBudget.hasRoomForPicture() && mNotifyWhenRoom.compareAndSet(true, false)) {
+                mHandler.sendEmptyMessage(SAVE_BUDGET_AVAILABLE);
+            }
+        }
+
+        // Runs in broadcast stage thread
+        private void broadcastImage(SaveRequest r) {
+            if (r.uri != null) {
+                Util.broadcastNewPicture(Camera.this, r.uri);
+            }
+        }
+
+        // A stage takes the requests from its input queue, processes them, and
+        // passes them to its output queue. The last stage has no output queue.
+        private abstract class Stage extends Thread {
+            protected final HandoffQueue<SaveRequest> mInput;
+            protected final HandoffQueue<SaveRequest> mOutput;
+
+            public Stage(String name, HandoffQueue<SaveRequest> input,
+                    HandoffQueue<SaveRequest> output) {
+                super(name);
+                mInput = input;
+                mOutput = output;
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    SaveRequest r = mInput.take();
+                    if (r != STOP_REQUEST) process(r);
+                    if (mOutput != null) {
+                        mOutput.put(r);
+                    } else if (r != STOP_REQUEST) {
+                        onRequestDone();
                     }
+                    // Note that we can only stop after we processed all the
+                    // requests before STOP_REQUEST.
+                    if (r == STOP_REQUEST) break;
                 }
-                Util.broadcastNewPicture(Camera.this, uri);
+            }
+
+            protected abstract void process(SaveRequest r);
+        }
+
+        // The write stage writes the images through ImageWriter. The requests
+        // already waiting in the queue are written as one batch, so they can
+        // be synced together if the policy is SYNC_PER_BATCH. It does not
+        // wait for more requests because that would delay the first image.
+        private class WriteStage extends Stage {
+            private static final int WRITE_BATCH_SIZE = 4;
+
+            private final ArrayList<SaveRequest> mBatch =
+                    new ArrayList<SaveRequest>(WRITE_BATCH_SIZE);
+            private final Exif mExif = new Exif();
+
+            public WriteStage(HandoffQueue<SaveRequest> input,
+                    HandoffQueue<SaveRequest> output) {
+                super("ImageSaver-write", input, output);
+            }
+
+            @Override
+            public void run() {
+                // Finish the work left by the last process before writing
+                // anything new.
+                mJournal.recover();
+                while (true) {
+                    SaveRequest r = mInput.take();
+                    while (r != STOP_REQUEST) {
+                        process(r);
+                        mBatch.add(r);
+                        if (mBatch.size() >= WRITE_BATCH_SIZE) break;
+                        r = mInput.poll();
+                        if (r == null) break;
+                    }
+                    commitBatch();
+                    if (r == STOP_REQUEST) {
+                        mWriter.syncAll();
+                        mOutput.put(r);
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            protected void process(SaveRequest r) {
+                r.stageStartTime = LatencyTracker.now();
+                r.title = Util.createJpegName(r.dateTaken);
+                // Parse EXIF once for both the orientation and the
+                // embedded thumbnail.
+                mExif.parse(r.data);
+                r.orientation = mExif.getOrientation();
+                r.exifThumbnailOffset = mExif.getThumbnailOffset();
+                r.exifThumbnailLength = mExif.getThumbnailLength();
+                mExif.clear();
+                String path = Storage.generateFilepath(mStorage, r.title);
+                if (mWriter.write(path, r.data)) r.path = path;
+            }
+
+            private void commitBatch() {
+                ArrayList<String> failed = mWriter.flush();
+                for (SaveRequest r : mBatch) {
+                    if (r.path != null && failed.contains(r.path)) r.path = null;
+                    mLatencyTracker.record(LatencyTracker.SPAN_SAVE_WRITE, r.stageStartTime);
+                    mOutput.put(r);
+                }
+                mBatch.clear();
+            }
+        }
+
+        // The index stage inserts the images into MediaStore in batches. It
+        // keeps collecting requests while later requests are known to be on
+        // the way, up to INDEX_BATCH_SIZE requests or INDEX_BATCH_LATENCY ms.
+        // The last request of a burst is flushed as soon as it arrives, so its
+        // uri is ready for the thumbnail and the share popup right away.
+        private class IndexStage extends Stage
+                implements BatchIndexer.Listener<SaveRequest> {
+            private static final int INDEX_BATCH_SIZE = 8;
+            private static final long INDEX_BATCH_LATENCY = 300;
+
+            private final BatchIndexer<SaveRequest> mIndexer;
+
+            public IndexStage(HandoffQueue<SaveRequest> input,
+                    HandoffQueue<SaveRequest> output) {
+                super("ImageSaver-index", input, output);
+                mIndexer = new BatchIndexer<SaveRequest>(mContentResolver, this,
+                        INDEX_BATCH_SIZE, INDEX_BATCH_LATENCY);
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    SaveRequest r = mInput.take();
+                    while (r != STOP_REQUEST) {
+                        process(r);
+                        if (mIndexer.isFull() || r.sequence == mLastSequence) break;
+                        // More requests have been added. Wait for the next one.
+                        r = mInput.poll(mIndexer.getRemainingLatency(),
+                                TimeUnit.MILLISECONDS);
+                        if (r == null) break;
+                    }
+                    mIndexer.flush();
+                    if (r == STOP_REQUEST) {
+                        mOutput.put(r);
+                        break;
+                    }
+                }
+            }
+
+            @Override
+            protected void process(SaveRequest r) {
+                r.stageStartTime = LatencyTracker.now();
+                if (r.path == null) {
+                    // Nothing to index. Flush the batch first to keep the
+                    // order of the requests.
+                    mIndexer.flush();
+                    onIndexed(r, null);
+                    return;
+                }
+                mIndexer.add(r, Storage.getImageValues(r.path, r.title, r.dateTaken,
+                        r.loc, r.orientation, r.data.length, r.width, r.height));
+            }
+
+            @Override
+            public void onIndexed(SaveRequest r, Uri uri) {
+                r.uri = uri;
+                if (uri != null) mJournal.indexed(r.path);
+                mLatencyTracker.record(LatencyTracker.SPAN_SAVE_INDEX, r.stageStartTime);
+                mOutput.put(r);
             }
         }
     }
@@ -1053,7 +1417,18 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         if (mCameraState == SNAPSHOT_IN_PROGRESS || mCameraDevice == null) {
             return false;
         }
-        mCaptureStartTime = System.currentTimeMillis();
+
+        // Apply back-pressure if the pictures waiting to be saved have used up
+        // the memory budget. The picture will be taken when there is room.
+        if (!mIsImageCaptureIntent && mImageSaver != null) {
+            Size size = mParameters.getPictureSize();
+            if (!mImageSaver.hasRoomForPicture(size.width, size.height)) {
+                mSnapshotOnSaveBudget = true;
+                return false;
+            }
+        }
+
+        mLatencyTracker.begin(LatencyTracker.SPAN_SHUTTER);
         mPostViewPictureCallbackTime = 0;
         mJpegImageData = null;
 
@@ -1061,15 +1436,15 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         Util.setRotationParameter(mParameters, mCameraId, mOrientation);
         Location loc = mLocationManager.getCurrentLocation();
         Util.setGpsParameters(mParameters, loc);
-        mCameraDevice.setParameters(mParameters);
+        mParameterCache.apply(mParameters, ParameterCache.REASON_OTHER);
 
         // Restart the preview
         if (getResources().getBoolean(R.bool.restartPreviewBeforeTakePicture)) {
             if (mCameraState != PREVIEW_STOPPED) {
-                mCameraDevice.stopPreview();
+                mCommandQueue.stopPreview();
                 try {
                     Log.v(TAG, "startPreview");
-                    mCameraDevice.startPreview();
+                    mCommandQueue.startPreview();
                 } catch (Throwable ex) {
                     closeCamera();
                     throw new RuntimeException("startPreview failed", ex);
@@ -1077,7 +1452,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             }
         }
 
-        mCameraDevice.takePicture(mShutterCallback, mRawPictureCallback,
+        mCommandQueue.takePicture(mShutterCallback, mRawPictureCallback,
                 mPostViewPictureCallback, new JpegPictureCallback(loc));
         mFaceDetectionStarted = false;
         setCameraState(SNAPSHOT_IN_PROGRESS);
@@ -1086,7 +1461,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     @Override
     public void setFocusParameters() {
-        setCameraParameters(UPDATE_PARAM_PREFERENCE);
+        setCameraParameters(UPDATE_PARAM_PREFERENCE, ParameterCache.REASON_FOCUS);
     }
 
     @Override
@@ -1121,6 +1496,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     Thread mCameraOpenThread = new Thread(new Runnable() {
         public void run() {
+            int phase = mStartupProfiler.begin("open_camera");
             try {
                 mCameraDevice = Util.openCamera(Camera.this, mCameraId);
             } catch (CameraHardwareException e) {
@@ -1128,24 +1504,35 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             } catch (CameraDisabledException e) {
                 mCameraDisabled = true;
             }
+            mStartupProfiler.end(phase);
         }
-    });
+    }, "CameraOpen");
 
     Thread mCameraPreviewThread = new Thread(new Runnable() {
         public void run() {
+            int phase = mStartupProfiler.begin("initialize_capabilities");
             initializeCapabilities();
+            mStartupProfiler.end(phase);
+            phase = mStartupProfiler.begin("start_preview");
             startPreview();
+            mStartupProfiler.end(phase);
         }
-    });
+    }, "CameraPreview");
 
     @Override
     public void onCreate(Bundle icicle) {
+        mStartupProfiler.start();
+        int onCreatePhase = mStartupProfiler.begin("on_create");
         super.onCreate(icicle);
+        mCommandQueue = new CameraCommandQueue(this);
+        mParameterCache = new ParameterCache(mCommandQueue);
+        int phase = mStartupProfiler.begin("global_preferences");
         getPreferredCameraId();
         mStorage = CameraSettings.readStorage(mPreferences);
         String[] defaultFocusModes = getResources().getStringArray(
                 R.array.pref_camera_focusmode_default_array);
         mFocusManager = new FocusManager(mPreferences, defaultFocusModes);
+        mStartupProfiler.end(phase);
 
         /*
          * To reduce startup time, we start the camera open and preview threads.
@@ -1154,7 +1541,13 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mCameraOpenThread.start();
 
         mIsImageCaptureIntent = isImageCaptureIntent();
+        // The capture intent returns a full size picture, so it does not use
+        // zero shutter lag.
+        mZslEnabled = !mIsImageCaptureIntent
+                && getResources().getBoolean(R.bool.enableZeroShutterLag);
+        phase = mStartupProfiler.begin("set_content_view");
         setContentView(R.layout.camera);
+        mStartupProfiler.end(phase);
         if (mIsImageCaptureIntent) {
             mReviewDoneButton = (Rotatable) findViewById(R.id.btn_done);
             mReviewCancelButton = (Rotatable) findViewById(R.id.btn_cancel);
@@ -1167,8 +1560,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         mRotateDialog = new RotateDialogController(this, R.layout.rotate_dialog);
 
+        phase = mStartupProfiler.begin("local_preferences");
         mPreferences.setLocalId(this, mCameraId);
         CameraSettings.upgradeLocalPreferences(mPreferences.getLocal());
+        mCapabilities = CameraCapabilities.load(this, mCameraId);
+        mStartupProfiler.end(phase);
 
         mNumberOfCameras = CameraHolder.instance().getNumberOfCameras();
         mQuickCapture = getIntent().getBooleanExtra(EXTRA_QUICK_CAPTURE, false);
@@ -1187,9 +1583,11 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
 
         // Make sure camera device is opened.
+        phase = mStartupProfiler.begin("wait_open_camera");
         try {
             mCameraOpenThread.join();
             mCameraOpenThread = null;
+            mStartupProfiler.end(phase);
             if (mOpenCameraFail) {
                 Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
                 return;
@@ -1200,6 +1598,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         } catch (InterruptedException ex) {
             // ignore
         }
+        // The preview thread may replace mCapabilities, so the UI only reads
+        // it again after waiting for the thread.
+        CameraCapabilities uiCapabilities = mCapabilities;
         mCameraPreviewThread.start();
 
         if (mIsImageCaptureIntent) {
@@ -1218,7 +1619,18 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mBackCameraId = CameraHolder.instance().getBackCameraId();
         mFrontCameraId = CameraHolder.instance().getFrontCameraId();
 
+        // With the saved capabilities, the settings UI does not need to wait
+        // for the camera parameters.
+        boolean indicatorInitialized = false;
+        if (uiCapabilities != null) {
+            phase = mStartupProfiler.begin("initialize_indicator_control");
+            initializeIndicatorControl(uiCapabilities);
+            indicatorInitialized = true;
+            mStartupProfiler.end(phase);
+        }
+
         // Wait until the camera settings are retrieved.
+        phase = mStartupProfiler.begin("wait_camera_parameters");
         synchronized (mCameraPreviewThread) {
             try {
                 mCameraPreviewThread.wait();
@@ -1226,19 +1638,37 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 // ignore
             }
         }
+        mStartupProfiler.end(phase);
 
         // Do this after starting preview because it depends on camera
         // parameters.
-        initializeIndicatorControl();
+        if (!indicatorInitialized) {
+            phase = mStartupProfiler.begin("initialize_indicator_control");
+            initializeIndicatorControl(mCapabilities);
+            mStartupProfiler.end(phase);
+        }
+        updateSceneModeUI();
         mCameraSound = new CameraSound();
 
         // Make sure preview is started.
+        phase = mStartupProfiler.begin("wait_start_preview");
         try {
             mCameraPreviewThread.join();
         } catch (InterruptedException ex) {
             // ignore
         }
+        mStartupProfiler.end(phase);
         mCameraPreviewThread = null;
+
+        // The saved capabilities are stale, for example after a system
+        // update. Rebuild the settings from the ones of the camera.
+        if (indicatorInitialized && mCapabilities != null
+                && !mCapabilities.sameAs(uiCapabilities)) {
+            Log.v(TAG, "Camera capabilities changed. Rebuild the settings.");
+            initializeIndicatorControl(mCapabilities);
+            updateSceneModeUI();
+        }
+        mStartupProfiler.end(onCreatePhase);
     }
 
     private void overrideCameraSettings(final String flashMode,
@@ -1262,18 +1692,18 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
-    private void loadCameraPreferences() {
-        CameraSettings settings = new CameraSettings(this, mInitialParams,
-                mCameraId, CameraHolder.instance().getCameraInfo());
+    private void loadCameraPreferences(CameraCapabilities capabilities) {
+        CameraSettings settings = new CameraSettings(this, capabilities,
+                CameraHolder.instance().getCameraInfo());
         mPreferenceGroup = settings.getPreferenceGroup(R.xml.camera_preferences);
     }
 
-    private void initializeIndicatorControl() {
+    private void initializeIndicatorControl(CameraCapabilities capabilities) {
         // setting the indicator buttons.
         mIndicatorControlContainer =
                 (IndicatorControlContainer) findViewById(R.id.indicator_control);
         if (mIndicatorControlContainer == null) return;
-        loadCameraPreferences();
+        loadCameraPreferences(capabilities);
         final String[] SETTING_KEYS = {
                 CameraSettings.KEY_FLASH_MODE,
                 CameraSettings.KEY_WHITE_BALANCE,
@@ -1287,9 +1717,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         CameraPicker.setImageResourceId(R.drawable.ic_switch_photo_facing_holo_light);
         mIndicatorControlContainer.initialize(this, mPreferenceGroup,
-                mParameters.isZoomSupported(),
+                capabilities.isZoomSupported(),
                 SETTING_KEYS, OTHER_SETTING_KEYS);
-        updateSceneModeUI();
         mIndicatorControlContainer.setListener(this);
     }
 
@@ -1358,8 +1787,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
+    // This is called after every picture. StorageSpaceTracker only samples the
+    // storage once in a while, so it is cheap.
     private void checkStorage() {
-        mPicturesRemaining = Storage.getAvailableSpace(mStorage);
+        mPicturesRemaining = StorageSpaceTracker.instance().getAvailableSpace(mStorage);
         if (mPicturesRemaining > Storage.LOW_STORAGE_THRESHOLD) {
             mPicturesRemaining = (mPicturesRemaining - Storage.LOW_STORAGE_THRESHOLD)
                     / Storage.PICTURE_SIZE;
@@ -1477,11 +1908,28 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     @Override
     public void onShutterButtonFocus(boolean pressed) {
+        // Releasing the shutter button ends the burst, even if a picture is
+        // being taken.
+        if (!pressed && mBurstRunning) stopBurst();
+
         if (mPausing || collapseCameraControls() || mCameraState == SNAPSHOT_IN_PROGRESS) return;
 
         // Do not do focus if there is not enough storage.
         if (pressed && !canTakePicture()) return;
 
+        // The picture is taken from the frame shown at this moment, so do
+        // not move the focus.
+        if (pressed) {
+            mFocusSkipped = canCaptureFromPreview();
+            if (mFocusSkipped) {
+                mShutterDownTime = SystemClock.uptimeMillis();
+                return;
+            }
+        } else if (mFocusSkipped) {
+            mFocusSkipped = false;
+            return;
+        }
+
         if (pressed) {
             mFocusManager.onShutterDown();
         } else {
@@ -1512,9 +1960,116 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
 
         mSnapshotOnIdle = false;
+        if (captureFromPreview()) return;
+        focusIfSkipped();
         mFocusManager.doSnap();
     }
 
+    // The shutter button clicks before its release is reported, so the
+    // focus started here is not cancelled by onShutterUp().
+    private void focusIfSkipped() {
+        if (mFocusSkipped) {
+            mFocusSkipped = false;
+            mFocusManager.onShutterDown();
+        }
+    }
+
+    private boolean canCaptureFromPreview() {
+        return mPreviewFrameRing != null && mImageSaver != null
+                && mCameraState != PREVIEW_STOPPED && mPreviewFrameRing.hasFrame();
+    }
+
+    // Takes the picture from the preview frame closest to the moment the
+    // shutter button was pressed. Returns false if there is no frame, and
+    // the picture should be taken by takePicture().
+    private boolean captureFromPreview() {
+        if (!canCaptureFromPreview()) return false;
+        long time = mShutterDownTime;
+        mShutterDownTime = 0;
+        // The shutter key and the volume keys click without a press.
+        if (time == 0) time = SystemClock.uptimeMillis();
+
+        if (!mImageSaver.hasRoomForPicture(
+                mPreviewFrameRing.getWidth(), mPreviewFrameRing.getHeight())) {
+            mSnapshotOnSaveBudget = true;
+            return true;
+        }
+        int frame = mPreviewFrameRing.acquireFrame(time);
+        if (frame < 0) return false;
+
+        playSound(CameraSound.SHUTTER_CLICK);
+        mImageSaver.addFrame(mPreviewFrameRing, frame, mLocationManager.getCurrentLocation(),
+                Util.getJpegRotation(mCameraId, mOrientation), mParameters.getJpegQuality());
+        return true;
+    }
+
+    // Long pressing the shutter button starts a burst.
+    @Override
+    public boolean onLongClick(View v) {
+        if (mPausing || mIsImageCaptureIntent || collapseCameraControls()) return false;
+        if (mPicturesRemaining <= 0 || mCameraState == SNAPSHOT_IN_PROGRESS
+                || mFocusManager.isFocusingSnapOnFinish()) {
+            return false;
+        }
+
+        Log.v(TAG, "Start burst");
+        mBurstRunning = true;
+        mBurstCount = 0;
+        // A burst is taken by takePicture(), so it focuses like without
+        // zero shutter lag.
+        focusIfSkipped();
+        // onShutterDown() has locked AE and AWB if they are supported. Lock
+        // them here in case the press started before the camera was ready.
+        if (!mFocusManager.getAeAwbLock() && mCameraState == IDLE) {
+            mFocusManager.setAeAwbLock(true);
+            setCameraParameters(UPDATE_PARAM_PREFERENCE);
+        }
+        // The first picture waits for the focus. The rest are taken without
+        // focusing again.
+        mBurstLastShotTime = SystemClock.uptimeMillis();
+        mSnapshotOnIdle = false;
+        mFocusManager.doSnap();
+        return true;
+    }
+
+    private void takeBurstShot() {
+        if (!mBurstRunning || mPausing) return;
+        if (mPicturesRemaining <= 0) {
+            Log.i(TAG, "Stop burst. remaining=" + mPicturesRemaining);
+            stopBurst();
+            return;
+        }
+        mBurstLastShotTime = SystemClock.uptimeMillis();
+        // If the save budget is full, capture() returns false and the
+        // SAVE_BUDGET_AVAILABLE message brings us back here.
+        capture();
+    }
+
+    private void stopBurst() {
+        mBurstRunning = false;
+        mHandler.removeMessages(BURST_NEXT_SHOT);
+        mSnapshotOnSaveBudget = false;
+
+        // Release the focus and AE/AWB lock which the burst kept. If a
+        // picture is being taken, its startPreview() does it.
+        if (!mPausing && mCameraState == IDLE) {
+            mFocusManager.onPreviewStopped();
+            mFocusManager.setAeAwbLock(false);
+            cancelAutoFocus();
+        }
+
+        // Report the rate between the first and the last JPEG.
+        if (mBurstCount > 1 && mBurstLastJpegTime > mBurstFirstJpegTime) {
+            float fps = (mBurstCount - 1) * 1000f
+                    / (mBurstLastJpegTime - mBurstFirstJpegTime);
+            Log.v(TAG, "Burst: " + mBurstCount + " pictures, " + fps + " fps");
+            if (!mPausing) {
+                Toast.makeText(this, getString(R.string.burst_result, mBurstCount, fps),
+                        Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
     private OnScreenHint mStorageHint;
 
     private void updateStorageHint() {
@@ -1558,6 +2113,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     @Override
     protected void doOnResume() {
         if (mOpenCameraFail || mCameraDisabled) return;
+        int phase = mStartupProfiler.begin("do_on_resume");
 
         mPausing = false;
         mJpegPictureCallbackTime = 0;
@@ -1597,6 +2153,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
         // Dismiss open menu if exists.
         PopupManager.getInstance(this).notifyShowPopup(null);
+        mStartupProfiler.end(phase);
     }
 
     @Override
@@ -1620,7 +2177,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 mImageSaver = null;
             }
             if (!mIsImageCaptureIntent && mThumbnail != null && !mThumbnail.fromFile()) {
-                mThumbnail.saveTo(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
+                mThumbnail.saveToAsync(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
             }
         }
 
@@ -1643,11 +2200,30 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         // Remove the messages in the event queue.
         mHandler.removeMessages(FIRST_TIME_INIT);
         mHandler.removeMessages(CHECK_DISPLAY_ROTATION);
+        mHandler.removeMessages(SAVE_BUDGET_AVAILABLE);
+        mHandler.removeMessages(APPLY_CAMERA_PARAMETERS);
+        mSnapshotOnSaveBudget = false;
+        if (mBurstRunning) stopBurst();
+        Log.v(TAG, "Camera parameters " + mParameterCache.getStats());
         mFocusManager.removeMessages();
 
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        mCommandQueue.quit();
+        super.onDestroy();
+    }
+
+    // A camera command failed in the command queue. Before the queue, the
+    // exception was thrown to the UI thread, so treat it as fatal here too.
+    @Override
+    public void onCommandFailed(RuntimeException e) {
+        if (mPausing) return;
+        Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
+    }
+
     @Override
     protected void onActivityResult(
             int requestCode, int resultCode, Intent data) {
@@ -1677,14 +2253,14 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     @Override
     public void autoFocus() {
-        mFocusStartTime = System.currentTimeMillis();
-        mCameraDevice.autoFocus(mAutoFocusCallback);
+        mLatencyTracker.begin(LatencyTracker.SPAN_FOCUS);
+        mCommandQueue.autoFocus(mAutoFocusCallback);
         setCameraState(FOCUSING);
     }
 
     @Override
     public void cancelAutoFocus() {
-        mCameraDevice.cancelAutoFocus();
+        mCommandQueue.cancelAutoFocus();
         setCameraState(IDLE);
         setCameraParameters(UPDATE_PARAM_PREFERENCE);
     }
@@ -1826,6 +2402,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
     private void closeCamera() {
         if (mCameraDevice != null) {
+            if (mPreviewFrameRing != null) mPreviewFrameRing.detach();
+            // Let the queued commands finish before the camera is released.
+            mCommandQueue.setCamera(null);
             CameraHolder.instance().release();
             mFaceDetectionStarted = false;
             mCameraDevice.setZoomChangeListener(null);
@@ -1858,7 +2437,9 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     private void startPreview() {
         if (mPausing || isFinishing()) return;
 
-        mFocusManager.resetTouchFocus();
+        // A burst keeps the focus and the touch focus area of its first
+        // picture until stopBurst().
+        if (!mBurstRunning) mFocusManager.resetTouchFocus();
 
         mCameraDevice.setErrorCallback(mErrorCallback);
 
@@ -1869,15 +2450,16 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         setPreviewDisplay(mSurfaceHolder);
         setDisplayOrientation();
 
-        if (!mSnapshotOnIdle) {
+        if (!mSnapshotOnIdle && !mBurstRunning) {
             // If the focus mode is continuous autofocus, call cancelAutoFocus to
             // resume it because it may have been paused by autoFocus call.
             if (Parameters.FOCUS_MODE_CONTINUOUS_PICTURE.equals(mFocusManager.getFocusMode())) {
-                mCameraDevice.cancelAutoFocus();
+                mCommandQueue.cancelAutoFocus();
             }
             mFocusManager.setAeAwbLock(false); // Unlock AE and AWB.
         }
         setCameraParameters(UPDATE_PARAM_ALL);
+        if (mZslEnabled) setupPreviewFrameRing();
 
         // Inform the mainthread to go on the UI initialization.
         if (mCameraPreviewThread != null) {
@@ -1888,7 +2470,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         try {
             Log.v(TAG, "startPreview");
-            mCameraDevice.startPreview();
+            mCommandQueue.startPreview();
         } catch (Throwable ex) {
             closeCamera();
             throw new RuntimeException("startPreview failed", ex);
@@ -1897,7 +2479,8 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         mZoomState = ZOOM_STOPPED;
         setCameraState(IDLE);
         mFocusManager.onPreviewStarted();
-        mCameraDevice.setParameters(mParameters);
+        mParameterCache.invalidate();
+        mParameterCache.apply(mParameters, ParameterCache.REASON_OTHER);
 
         if (mSnapshotOnIdle) {
             mSnapshotOnIdle = false;
@@ -1905,15 +2488,40 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
+    // Feeds the preview frames to mPreviewFrameRing. The ring is allocated
+    // again if the preview size has changed. If the ring does not fit in the
+    // heap budget, the pictures are taken by takePicture().
+    private void setupPreviewFrameRing() {
+        Size size = mParameters.getPreviewSize();
+        int format = mParameters.getPreviewFormat();
+        if (mPreviewFrameRing == null
+                || !mPreviewFrameRing.matches(size.width, size.height, format)) {
+            mPreviewFrameRing = null;
+            // YuvImage can only compress NV21 and YUY2.
+            if (format != ImageFormat.NV21 && format != ImageFormat.YUY2) return;
+            long budget = Runtime.getRuntime().maxMemory()
+                    * getResources().getInteger(R.integer.zeroShutterLagHeapPercent) / 100;
+            int depth = PreviewFrameRing.getDepth(size.width, size.height, format, budget);
+            if (depth == 0) {
+                Log.w(TAG, "No room for zero shutter lag at " + size.width + "x" + size.height);
+                return;
+            }
+            mPreviewFrameRing = new PreviewFrameRing(size.width, size.height, format, depth);
+        }
+        mPreviewFrameRing.attach(mCameraDevice);
+    }
+
     private void stopPreview() {
         if (mCameraDevice != null && mCameraState != PREVIEW_STOPPED) {
             Log.v(TAG, "stopPreview");
-            mCameraDevice.cancelAutoFocus(); // Reset the focus.
-            mCameraDevice.stopPreview();
+            // Cancelling the focus moves the lens of auto focus away.
+            if (!mBurstRunning) mCommandQueue.cancelAutoFocus(); // Reset the focus.
+            mCommandQueue.stopPreview();
             mFaceDetectionStarted = false;
         }
+        if (mPreviewFrameRing != null) mPreviewFrameRing.detach();
         setCameraState(PREVIEW_STOPPED);
-        mFocusManager.onPreviewStopped();
+        if (!mBurstRunning) mFocusManager.onPreviewStopped();
     }
 
     private static boolean isSupported(String value, List<String> supported) {
@@ -1980,7 +2588,7 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
                 if (currentPictureSize.equals(pictureSize) == false) {
                     if (mCameraState != PREVIEW_STOPPED) {
                         Log.i(TAG, "pictureSize has changed, currentPictureSize=" + currentPictureSize + ", pictureSize=" + pictureSize + ", stopPreview");
-                        mCameraDevice.stopPreview();
+                        mCommandQueue.stopPreview();
                         mCameraState = PREVIEW_STOPPED;
                     }
                 }
@@ -1999,12 +2607,18 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
         // Set a preview size that is closest to the viewfinder height and has
         // the right aspect ratio.
-        List<Size> sizes = mParameters.getSupportedPreviewSizes();
-        Size optimalSize = Util.getOptimalPreviewSize(this,
-                sizes, (double) size.width / size.height);
+        double ratio = (double) size.width / size.height;
+        int[] optimalSize = mCapabilities.getOptimalPreviewSize(ratio);
+        if (optimalSize == null) {
+            List<Size> sizes = mParameters.getSupportedPreviewSizes();
+            Size optimal = Util.getOptimalPreviewSize(this, sizes, ratio);
+            optimalSize = new int[] {optimal.width, optimal.height};
+            mCapabilities.setOptimalPreviewSize(ratio, optimal.width, optimal.height);
+            mCapabilities.save(this);
+        }
         Size original = mParameters.getPreviewSize();
-        if (!original.equals(optimalSize)) {
-            mParameters.setPreviewSize(optimalSize.width, optimalSize.height);
+        if (original.width != optimalSize[0] || original.height != optimalSize[1]) {
+            mParameters.setPreviewSize(optimalSize[0], optimalSize[1]);
 
             // If preview is running, stop preview and let startPreview call
             // this function again because we cannot change size on the fly
@@ -2016,10 +2630,10 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
 
             // Zoom related settings will be changed for different preview
             // sizes, so set and read the parameters to get lastest values
-            mCameraDevice.setParameters(mParameters);
-            mParameters = mCameraDevice.getParameters();
+            mParameterCache.apply(mParameters, ParameterCache.REASON_OTHER);
+            mParameters = mParameterCache.reload();
         }
-        Log.v(TAG, "Preview size is " + optimalSize.width + "x" + optimalSize.height);
+        Log.v(TAG, "Preview size is " + optimalSize[0] + "x" + optimalSize[1]);
 
         // Since change scene mode may change supported values,
         // Set scene mode first,
@@ -2029,12 +2643,12 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         if (isSupported(mSceneMode, mParameters.getSupportedSceneModes())) {
             if (!mParameters.getSceneMode().equals(mSceneMode)) {
                 mParameters.setSceneMode(mSceneMode);
-                mCameraDevice.setParameters(mParameters);
+                mParameterCache.apply(mParameters, ParameterCache.REASON_OTHER);
 
                 // Setting scene mode will change the settings of flash mode,
                 // white balance, and focus mode. Here we read back the
                 // parameters, so we can know those settings.
-                mParameters = mCameraDevice.getParameters();
+                mParameters = mParameterCache.reload();
             }
         } else {
             mSceneMode = mParameters.getSceneMode();
@@ -2103,7 +2717,14 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     // the subsets actually need updating. The PREFERENCE set needs extra
     // locking because the preference can be changed from GLThread as well.
     private void setCameraParameters(int updateSet) {
-        mParameters = mCameraDevice.getParameters();
+        setCameraParameters(updateSet, (updateSet == UPDATE_PARAM_ZOOM)
+                ? ParameterCache.REASON_ZOOM : ParameterCache.REASON_OTHER);
+    }
+
+    // The parameters are only sent to the device if a value has changed.
+    // reason is for the statistics of ParameterCache.
+    private void setCameraParameters(int updateSet, int reason) {
+        mParameters = mParameterCache.read();
 
         if ((updateSet & UPDATE_PARAM_INITIALIZE) != 0) {
 
@@ -2121,14 +2742,14 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
             updateCameraParametersPreference();
         }
 
-        mCameraDevice.setParameters(mParameters);
+        mParameterCache.apply(mParameters, reason);
 
         if (getResources().getBoolean(R.bool.restartPreviewOnPictureSizeChange)) {
             // Start the preview again, in case we stopped it before
             if (mCameraState == PREVIEW_STOPPED) {
                 try {
                     Log.i(TAG, "startPreview");
-                    mCameraDevice.startPreview();
+                    mCommandQueue.startPreview();
                     mCameraState = IDLE;
                 } catch (Throwable ex) {
                     closeCamera();
@@ -2138,6 +2759,17 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
         }
     }
 
+    // Accumulates the update in mUpdateSet and applies it a frame later, so
+    // the updates which arrive together, like the zoom steps of a pinch,
+    // are sent to the device once.
+    private void setCameraParametersSoon(int additionalUpdateSet) {
+        mUpdateSet |= additionalUpdateSet;
+        if (!mHandler.hasMessages(APPLY_CAMERA_PARAMETERS)) {
+            mHandler.sendEmptyMessageDelayed(APPLY_CAMERA_PARAMETERS,
+                    PARAMETERS_COALESCE_DELAY);
+        }
+    }
+
     // If the Camera is idle, update the parameters immediately, otherwise
     // accumulate them in mUpdateSet and update later.
     private void setCameraParametersWhenIdle(int additionalUpdateSet) {
@@ -2386,7 +3018,15 @@ public class Camera extends ActivityBase implements FocusManager.Listener,
     }
 
     private void initializeCapabilities() {
+        mCommandQueue.setCamera(mCameraDevice);
+        mParameterCache.reset();
         mInitialParams = mCameraDevice.getParameters();
+        CameraCapabilities capabilities =
+                CameraCapabilities.fromParameters(mInitialParams, mCameraId);
+        if (!capabilities.sameAs(mCapabilities)) {
+            mCapabilities = capabilities;
+            mCapabilities.save(this);
+        }
         mFocusManager.initializeParameters(mInitialParams);
         mFocusAreaSupported = (mInitialParams.getMaxNumFocusAreas() > 0
                 && isSupported(Parameters.FOCUS_MODE_AUTO,
@@ -34,15 +34,13 @@ public class CameraButtonIntentReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(Context context, Intent intent) {
-        // Try to get the camera hardware
         CameraHolder holder = CameraHolder.instance();
         ComboPreferences pref = new ComboPreferences(context);
         int cameraId = CameraSettings.readPreferredCameraId(pref);
-        if (holder.tryOpen(cameraId) == null) return;
 
-        // We are going to launch the camera, so hold the camera for later use
-        holder.keep();
-        holder.release();
+        // Try to get the camera hardware. We are going to launch the camera,
+        // so hold the camera for later use.
+        if (!holder.prewarm(cameraId)) return;
         Intent i = new Intent(Intent.ACTION_MAIN);
         i.setClass(context, Camera.class);
         i.addCategory(Intent.CATEGORY_LAUNCHER);
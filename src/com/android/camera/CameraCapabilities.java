@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.Size;
+import android.media.CamcorderProfile;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// CameraCapabilities is the part of the camera parameters the settings UI is
+// built from: the supported values of each setting, the exposure range and
+// so on. It is saved for each camera, so the next startup can build the
+// settings before the camera is open. The saved capabilities are dropped
+// when the build fingerprint changes, because an update may change what
+// the driver supports.
+//
+// It also remembers the optimal preview size for each picture aspect ratio,
+// so Util.getOptimalPreviewSize() only scans the preview sizes once.
+public class CameraCapabilities {
+    private static final String PREFS_NAME = "camera_capabilities";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String PREVIEW_SIZE_PREFIX = "preview-size-";
+
+    private static final String KEY_PICTURE_SIZES = "picture-sizes";
+    private static final String KEY_WHITE_BALANCE = "white-balance";
+    private static final String KEY_SCENE_MODES = "scene-modes";
+    private static final String KEY_FLASH_MODES = "flash-modes";
+    private static final String KEY_FOCUS_MODES = "focus-modes";
+    private static final String KEY_VIDEO_QUALITIES = "video-qualities";
+    private static final String KEY_MAX_FOCUS_AREAS = "max-focus-areas";
+    private static final String KEY_MIN_EXPOSURE = "min-exposure";
+    private static final String KEY_MAX_EXPOSURE = "max-exposure";
+    private static final String KEY_EXPOSURE_STEP = "exposure-step";
+    private static final String KEY_ZOOM = "zoom";
+    private static final String KEY_AE_LOCK = "ae-lock";
+    private static final String KEY_AWB_LOCK = "awb-lock";
+
+    private static final int[] VIDEO_QUALITIES = {
+            CamcorderProfile.QUALITY_1080P,
+            CamcorderProfile.QUALITY_720P,
+            CamcorderProfile.QUALITY_480P};
+
+    private final int mCameraId;
+    private final HashMap<String, String> mValues;
+    // Picture aspect ratio to optimal preview size, both as strings.
+    private final HashMap<String, String> mPreviewSizes = new HashMap<String, String>();
+
+    private CameraCapabilities(int cameraId, HashMap<String, String> values) {
+        mCameraId = cameraId;
+        mValues = values;
+    }
+
+    public static CameraCapabilities fromParameters(Parameters parameters, int cameraId) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        putList(values, KEY_PICTURE_SIZES, sizeListToStringList(
+                parameters.getSupportedPictureSizes()));
+        putList(values, KEY_WHITE_BALANCE, parameters.getSupportedWhiteBalance());
+        putList(values, KEY_SCENE_MODES, parameters.getSupportedSceneModes());
+        putList(values, KEY_FLASH_MODES, parameters.getSupportedFlashModes());
+        putList(values, KEY_FOCUS_MODES, parameters.getSupportedFocusModes());
+
+        ArrayList<String> qualities = new ArrayList<String>();
+        for (int quality : VIDEO_QUALITIES) {
+            if (CamcorderProfile.hasProfile(cameraId, quality)) {
+                qualities.add(Integer.toString(quality));
+            }
+        }
+        putList(values, KEY_VIDEO_QUALITIES, qualities);
+
+        values.put(KEY_MAX_FOCUS_AREAS, Integer.toString(parameters.getMaxNumFocusAreas()));
+        values.put(KEY_MIN_EXPOSURE, Integer.toString(parameters.getMinExposureCompensation()));
+        values.put(KEY_MAX_EXPOSURE, Integer.toString(parameters.getMaxExposureCompensation()));
+        values.put(KEY_EXPOSURE_STEP, Float.toString(parameters.getExposureCompensationStep()));
+        values.put(KEY_ZOOM, Boolean.toString(parameters.isZoomSupported()));
+        values.put(KEY_AE_LOCK, Boolean.toString(parameters.isAutoExposureLockSupported()));
+        values.put(KEY_AWB_LOCK,
+                Boolean.toString(parameters.isAutoWhiteBalanceLockSupported()));
+        return new CameraCapabilities(cameraId, values);
+    }
+
+    // Returns the saved capabilities of the camera, or null if there are
+    // none for this build.
+    public static CameraCapabilities load(Context context, int cameraId) {
+        SharedPreferences prefs = getPreferences(context);
+        String saved = prefs.getString(Integer.toString(cameraId), null);
+        if (saved == null || !Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            return null;
+        }
+
+        HashMap<String, String> values = new HashMap<String, String>();
+        ParameterCache.parse(saved, values);
+        CameraCapabilities capabilities = new CameraCapabilities(cameraId, values);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getKey().startsWith(PREVIEW_SIZE_PREFIX)) {
+                capabilities.mPreviewSizes.put(
+                        entry.getKey().substring(PREVIEW_SIZE_PREFIX.length()), entry.getValue());
+            }
+        }
+        for (String ratio : capabilities.mPreviewSizes.keySet()) {
+            values.remove(PREVIEW_SIZE_PREFIX + ratio);
+        }
+        return capabilities;
+    }
+
+    // Saves the capabilities in the background. The capabilities of the
+    // other cameras are dropped if they were saved by another build.
+    public synchronized void save(Context context) {
+        StringBuilder b = new StringBuilder();
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            b.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+        }
+        for (Map.Entry<String, String> entry : mPreviewSizes.entrySet()) {
+            b.append(PREVIEW_SIZE_PREFIX).append(entry.getKey()).append('=')
+                    .append(entry.getValue()).append(';');
+        }
+
+        SharedPreferences prefs = getPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        if (!Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            editor.clear();
+            editor.putString(KEY_FINGERPRINT, Build.FINGERPRINT);
+        }
+        editor.putString(Integer.toString(mCameraId), b.toString());
+        editor.apply();
+    }
+
+    // Returns true if the other capabilities have the same values. The
+    // remembered preview sizes are not compared.
+    public boolean sameAs(CameraCapabilities other) {
+        return other != null && mCameraId == other.mCameraId && mValues.equals(other.mValues);
+    }
+
+    public List<String> getSupportedPictureSizes() {
+        return getList(KEY_PICTURE_SIZES);
+    }
+
+    public List<String> getSupportedWhiteBalance() {
+        return getList(KEY_WHITE_BALANCE);
+    }
+
+    public List<String> getSupportedSceneModes() {
+        return getList(KEY_SCENE_MODES);
+    }
+
+    public List<String> getSupportedFlashModes() {
+        return getList(KEY_FLASH_MODES);
+    }
+
+    public List<String> getSupportedFocusModes() {
+        return getList(KEY_FOCUS_MODES);
+    }
+
+    public List<String> getSupportedVideoQualities() {
+        List<String> qualities = getList(KEY_VIDEO_QUALITIES);
+        return (qualities != null) ? qualities : new ArrayList<String>();
+    }
+
+    public int getMaxNumFocusAreas() {
+        return getInt(KEY_MAX_FOCUS_AREAS);
+    }
+
+    public int getMinExposureCompensation() {
+        return getInt(KEY_MIN_EXPOSURE);
+    }
+
+    public int getMaxExposureCompensation() {
+        return getInt(KEY_MAX_EXPOSURE);
+    }
+
+    public float getExposureCompensationStep() {
+        String value = mValues.get(KEY_EXPOSURE_STEP);
+        try {
+            return (value != null) ? Float.parseFloat(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public boolean isZoomSupported() {
+        return Boolean.parseBoolean(mValues.get(KEY_ZOOM));
+    }
+
+    public boolean isAutoExposureLockSupported() {
+        return Boolean.parseBoolean(mValues.get(KEY_AE_LOCK));
+    }
+
+    public boolean isAutoWhiteBalanceLockSupported() {
+        return Boolean.parseBoolean(mValues.get(KEY_AWB_LOCK));
+    }
+
+    // Returns the remembered optimal preview size {width, height} for the
+    // aspect ratio, or null if there is none.
+    public synchronized int[] getOptimalPreviewSize(double ratio) {
+        String size = mPreviewSizes.get(ratioKey(ratio));
+        if (size == null) return null;
+        int x = size.indexOf('x');
+        try {
+            return new int[] {Integer.parseInt(size.substring(0, x)),
+                    Integer.parseInt(size.substring(x + 1))};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    public synchronized void setOptimalPreviewSize(double ratio, int width, int height) {
+        mPreviewSizes.put(ratioKey(ratio), width + "x" + height);
+    }
+
+    private static String ratioKey(double ratio) {
+        return String.format(Locale.US, "%.3f", ratio);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private int getInt(String key) {
+        String value = mValues.get(key);
+        try {
+            return (value != null) ? Integer.parseInt(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // A list which is not supported (null) has no entry.
+    private List<String> getList(String key) {
+        String value = mValues.get(key);
+        if (value == null) return null;
+        if (value.length() == 0) return new ArrayList<String>();
+        return new ArrayList<String>(Arrays.asList(value.split(",")));
+    }
+
+    private static void putList(HashMap<String, String> values, String key, List<String> list) {
+        if (list == null) return;
+        StringBuilder b = new StringBuilder();
+        for (String s : list) {
+            if (b.length() > 0) b.append(',');
+            b.append(s);
+        }
+        values.put(key, b.toString());
+    }
+
+    private static List<String> sizeListToStringList(List<Size> sizes) {
+        if (sizes == null) return null;
+        ArrayList<String> list = new ArrayList<String>();
+        for (Size size : sizes) {
+            list.add(String.format(Locale.US, "%dx%d", size.width, size.height));
+        }
+        return list;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PictureCallback;
+import android.hardware.Camera.ShutterCallback;
+import android.os.ConditionVariable;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+// CameraCommandQueue runs the slow calls to android.hardware.Camera in its
+// own thread, so they do not block the UI thread. The commands run one at a
+// time in the order they are issued.
+//
+// setParameters() and startSmoothZoom() coalesce: if the previous command
+// is of the same kind and has not run yet, its argument is replaced by the
+// newer one. Each command carries its own argument, so a command never runs
+// with the argument of one queued after a different command.
+//
+// The camera delivers the callbacks of autoFocus() and takePicture() to the
+// looper of the thread which opened it, which is the UI thread. A command
+// which fails is reported to the Listener, also in the UI thread.
+//
+// The sync methods wait for all the commands before them, so the caller
+// sees the device in a consistent state.
+//
+// Camera and VideoCamera send their commands through the queue. Before a
+// MediaRecorder is given the camera, VideoCamera calls waitDone(), because
+// the camera must not get commands from two owners after unlock().
+public class CameraCommandQueue {
+    private static final String TAG = "CameraCommandQueue";
+
+    private static final int SET_PARAMETERS = 1;
+    private static final int AUTO_FOCUS = 2;
+    private static final int CANCEL_AUTO_FOCUS = 3;
+    private static final int START_SMOOTH_ZOOM = 4;
+    private static final int STOP_SMOOTH_ZOOM = 5;
+    private static final int TAKE_PICTURE = 6;
+
+    public interface Listener {
+        // Called in the UI thread when an asynchronous command throws.
+        public void onCommandFailed(RuntimeException e);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final Handler mListenerHandler;
+    private final Listener mListener;
+
+    // Guarded by this.
+    private android.hardware.Camera mCamera;
+    // The Parameters object the flattened parameters are loaded into. It
+    // belongs to mCamera.
+    private Parameters mParameters;
+    // The kind of the last command queued, and its argument if it can
+    // still be replaced.
+    private int mLastCommand;
+    private CoalescingArgs mLastArgs;
+
+    // The argument of setParameters() or startSmoothZoom(). It is replaced
+    // until the command starts to run. Guarded by the queue.
+    private static class CoalescingArgs {
+        String parameters;
+        int zoom;
+        boolean started;
+    }
+
+    private static class TakePictureArgs {
+        ShutterCallback shutter;
+        PictureCallback raw;
+        PictureCallback postview;
+        PictureCallback jpeg;
+    }
+
+    public CameraCommandQueue(Listener listener) {
+        mListener = listener;
+        mListenerHandler = new Handler();
+        mThread = new HandlerThread("CameraCommands");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                try {
+                    run(msg);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Camera command " + msg.what + " failed", e);
+                    reportFailure(e);
+                }
+            }
+        };
+    }
+
+    // Sets the camera the commands are sent to. Waits for the commands to
+    // the previous camera to finish.
+    public void setCamera(android.hardware.Camera camera) {
+        waitDone();
+        synchronized (this) {
+            mCamera = camera;
+            mParameters = null;
+        }
+    }
+
+    // Stops the thread. The queue cannot be used after this.
+    public void quit() {
+        waitDone();
+        mThread.quit();
+    }
+
+    public synchronized void setParameters(String flattened) {
+        CoalescingArgs args = getPendingArgs(SET_PARAMETERS);
+        if (args == null) {
+            args = new CoalescingArgs();
+            send(SET_PARAMETERS, args);
+        }
+        args.parameters = flattened;
+    }
+
+    public synchronized void autoFocus(AutoFocusCallback callback) {
+        send(AUTO_FOCUS, callback);
+    }
+
+    public synchronized void cancelAutoFocus() {
+        send(CANCEL_AUTO_FOCUS, null);
+    }
+
+    public synchronized void startSmoothZoom(int value) {
+        CoalescingArgs args = getPendingArgs(START_SMOOTH_ZOOM);
+        if (args == null) {
+            args = new CoalescingArgs();
+            send(START_SMOOTH_ZOOM, args);
+        }
+        args.zoom = value;
+    }
+
+    public synchronized void stopSmoothZoom() {
+        send(STOP_SMOOTH_ZOOM, null);
+    }
+
+    public synchronized void takePicture(ShutterCallback shutter, PictureCallback raw,
+            PictureCallback postview, PictureCallback jpeg) {
+        TakePictureArgs args = new TakePictureArgs();
+        args.shutter = shutter;
+        args.raw = raw;
+        args.postview = postview;
+        args.jpeg = jpeg;
+        send(TAKE_PICTURE, args);
+    }
+
+    // Runs after the commands before it, and throws what startPreview()
+    // throws.
+    public void startPreview() {
+        runSync(new Runnable() {
+            public void run() {
+                getCamera().startPreview();
+            }
+        });
+    }
+
+    public void stopPreview() {
+        runSync(new Runnable() {
+            public void run() {
+                getCamera().stopPreview();
+            }
+        });
+    }
+
+    // Returns the parameters of the device after the commands before it.
+    // Throws IllegalStateException if there is no camera.
+    public Parameters getParameters() {
+        final Parameters[] result = new Parameters[1];
+        runSync(new Runnable() {
+            public void run() {
+                result[0] = getCamera().getParameters();
+            }
+        });
+        if (result[0] == null) throw new IllegalStateException("No camera");
+        return result[0];
+    }
+
+    // Waits for all the commands issued so far.
+    public void waitDone() {
+        runSync(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private synchronized android.hardware.Camera getCamera() {
+        return mCamera;
+    }
+
+    // Returns the argument of the last command if it is of the kind and has
+    // not started, or null.
+    private CoalescingArgs getPendingArgs(int command) {
+        if (mLastCommand != command || mLastArgs == null || mLastArgs.started) return null;
+        return mLastArgs;
+    }
+
+    private void send(int command, Object args) {
+        mLastCommand = command;
+        mLastArgs = (args instanceof CoalescingArgs) ? (CoalescingArgs) args : null;
+        mHandler.obtainMessage(command, args).sendToTarget();
+    }
+
+    private void run(Message msg) {
+        android.hardware.Camera camera;
+        String parameters = null;
+        int zoom = 0;
+        synchronized (this) {
+            if (msg.obj instanceof CoalescingArgs) {
+                // The argument is final now. A newer command of the kind is
+                // queued on its own.
+                CoalescingArgs args = (CoalescingArgs) msg.obj;
+                args.started = true;
+                parameters = args.parameters;
+                zoom = args.zoom;
+            }
+            camera = mCamera;
+            if (camera == null) return;
+            if (msg.what == SET_PARAMETERS && mParameters == null) {
+                mParameters = camera.getParameters();
+            }
+        }
+
+        switch (msg.what) {
+            case SET_PARAMETERS:
+                mParameters.unflatten(parameters);
+                camera.setParameters(mParameters);
+                break;
+            case AUTO_FOCUS:
+                camera.autoFocus((AutoFocusCallback) msg.obj);
+                break;
+            case CANCEL_AUTO_FOCUS:
+                camera.cancelAutoFocus();
+                break;
+            case START_SMOOTH_ZOOM:
+                camera.startSmoothZoom(zoom);
+                break;
+            case STOP_SMOOTH_ZOOM:
+                camera.stopSmoothZoom();
+                break;
+            case TAKE_PICTURE: {
+                TakePictureArgs args = (TakePictureArgs) msg.obj;
+                camera.takePicture(args.shutter, args.raw, args.postview, args.jpeg);
+                break;
+            }
+        }
+    }
+
+    private void runSync(final Runnable r) {
+        final ConditionVariable done = new ConditionVariable();
+        final RuntimeException[] error = new RuntimeException[1];
+        synchronized (this) {
+            // Nothing can be coalesced into the commands before this.
+            mLastArgs = null;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    try {
+                        if (getCamera() != null) r.run();
+                    } catch (RuntimeException e) {
+                        error[0] = e;
+                    }
+                    done.open();
+                }
+            });
+        }
+        done.block();
+        if (error[0] != null) throw error[0];
+    }
+
+    private void reportFailure(final RuntimeException e) {
+        mListenerHandler.post(new Runnable() {
+            public void run() {
+                mListener.onCommandFailed(e);
+            }
+        });
+    }
+}
@@ -25,6 +25,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
@@ -40,12 +41,19 @@ import java.io.IOException;
  * android.hardware.Camera}.
  *
  * <p>This is used in switching between {@code Camera} and {@code VideoCamera}
- * activities.
+ * activities. How long the camera is kept is learned from the past switches
+ * by {@link KeepAlivePolicy}.
+ *
+ * <p>{@code prewarm()} opens and keeps the camera before the activity is
+ * started, for example when the camera button is pressed.
  */
 public class CameraHolder {
     private static final String TAG = "CameraHolder";
     private android.hardware.Camera mCameraDevice;
     private long mKeepBeforeTime = 0;  // Keep the Camera before this time.
+    // When the camera was last released while it was kept, or 0.
+    private long mKeptReleaseTime = 0;
+    private final KeepAlivePolicy mKeepAlivePolicy = new KeepAlivePolicy();
     private final Handler mHandler;
     private int mUsers = 0;  // number of open() - number of release()
     private int mNumberOfCameras;
@@ -147,6 +155,10 @@ public class CameraHolder {
         ++mUsers;
         mHandler.removeMessages(RELEASE_CAMERA);
         mKeepBeforeTime = 0;
+        if (mKeptReleaseTime != 0) {
+            mKeepAlivePolicy.onReopened(SystemClock.uptimeMillis() - mKeptReleaseTime);
+            mKeptReleaseTime = 0;
+        }
         return mCameraDevice;
     }
 
@@ -167,17 +179,50 @@ public class CameraHolder {
         }
     }
 
+    /**
+     * Opens the camera and keeps it, so the activity started next does not
+     * wait for {@code open()} and {@code getParameters()} of {@code
+     * android.hardware.Camera}. Returns false if the camera cannot be opened.
+     */
+    public synchronized boolean prewarm(int cameraId) {
+        if (tryOpen(cameraId) == null) return false;
+        keep();
+        release();
+        return true;
+    }
+
+    /**
+     * Like {@code prewarm()}, but opens the camera in the CameraHolder
+     * thread, so the caller does not wait.
+     */
+    public void prewarmAsync(final int cameraId) {
+        mHandler.post(new Runnable() {
+            public void run() {
+                try {
+                    prewarm(cameraId);
+                } catch (RuntimeException e) {
+                    // tryOpen() throws in eng builds. Nobody waits for us,
+                    // so just log it.
+                    Log.e(TAG, "fail to prewarm Camera", e);
+                }
+            }
+        });
+    }
+
     public synchronized void release() {
         Assert(mUsers == 1);
         --mUsers;
         mCameraDevice.stopPreview();
+        if (SystemClock.uptimeMillis() < mKeepBeforeTime) {
+            mKeptReleaseTime = SystemClock.uptimeMillis();
+        }
         releaseCamera();
     }
 
     private synchronized void releaseCamera() {
         Assert(mUsers == 0);
         Assert(mCameraDevice != null);
-        long now = System.currentTimeMillis();
+        long now = SystemClock.uptimeMillis();
         if (now < mKeepBeforeTime) {
             mHandler.sendEmptyMessageDelayed(RELEASE_CAMERA,
                     mKeepBeforeTime - now);
@@ -196,8 +241,8 @@ public class CameraHolder {
         // The activity may not have a chance to call open() before the user
         // choose the menu item to switch to another activity.
         Assert(mUsers == 1 || mUsers == 0);
-        // Keep the camera instance for 3 seconds.
-        mKeepBeforeTime = System.currentTimeMillis() + 3000;
+        // Keep the camera instance a bit longer than the recent switches took.
+        mKeepBeforeTime = SystemClock.uptimeMillis() + mKeepAlivePolicy.getKeepTime();
     }
 
     public int getBackCameraId() {
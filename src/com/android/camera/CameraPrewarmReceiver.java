@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * {@code CameraPrewarmReceiver} receives {@link #ACTION_PREWARM}, which only
+ * opens the camera in the background, so a Camera activity launched soon
+ * after (for example by the launcher) starts faster.
+ *
+ * A prewarmed camera is held for a while and blocks the other camera
+ * clients, so the sender must hold the signature permission
+ * {@code com.android.camera.permission.PREWARM}.
+ */
+public class CameraPrewarmReceiver extends BroadcastReceiver {
+    public static final String ACTION_PREWARM = "com.android.camera.action.PREWARM";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!ACTION_PREWARM.equals(intent.getAction())) return;
+        ComboPreferences pref = new ComboPreferences(context);
+        int cameraId = CameraSettings.readPreferredCameraId(pref);
+        CameraHolder.instance().prewarmAsync(cameraId);
+    }
+}
@@ -67,15 +67,20 @@ public class CameraSettings {
     private static final String TAG = "CameraSettings";
 
     private final Context mContext;
-    private final Parameters mParameters;
+    private final CameraCapabilities mCapabilities;
     private final CameraInfo[] mCameraInfo;
-    private final int mCameraId;
 
     public CameraSettings(Activity activity, Parameters parameters,
                           int cameraId, CameraInfo[] cameraInfo) {
+        this(activity, CameraCapabilities.fromParameters(parameters, cameraId), cameraInfo);
+    }
+
+    // The capabilities may be saved ones, so the settings can be built
+    // before the camera is open.
+    public CameraSettings(Activity activity, CameraCapabilities capabilities,
+                          CameraInfo[] cameraInfo) {
         mContext = activity;
-        mParameters = parameters;
-        mCameraId = cameraId;
+        mCapabilities = capabilities;
         mCameraInfo = cameraInfo;
     }
 
@@ -155,31 +160,32 @@ public class CameraSettings {
         // Since the screen could be loaded from different resources, we need
         // to check if the preference is available here
         if (videoQuality != null) {
-            filterUnsupportedOptions(group, videoQuality, getSupportedVideoQuality());
+            filterUnsupportedOptions(group, videoQuality,
+                    mCapabilities.getSupportedVideoQualities());
         }
 
         if (pictureSize != null) {
-            filterUnsupportedOptions(group, pictureSize, sizeListToStringList(
-                    mParameters.getSupportedPictureSizes()));
+            filterUnsupportedOptions(group, pictureSize,
+                    mCapabilities.getSupportedPictureSizes());
         }
         if (whiteBalance != null) {
             filterUnsupportedOptions(group,
-                    whiteBalance, mParameters.getSupportedWhiteBalance());
+                    whiteBalance, mCapabilities.getSupportedWhiteBalance());
         }
         if (sceneMode != null) {
             filterUnsupportedOptions(group,
-                    sceneMode, mParameters.getSupportedSceneModes());
+                    sceneMode, mCapabilities.getSupportedSceneModes());
         }
         if (flashMode != null) {
             filterUnsupportedOptions(group,
-                    flashMode, mParameters.getSupportedFlashModes());
+                    flashMode, mCapabilities.getSupportedFlashModes());
         }
         if (focusMode != null) {
             boolean wantsFocus = mContext.getResources().getBoolean(R.bool.wantsFocusModes)
                 || Util.useSamsungCamSettings();
-            if (mParameters.getMaxNumFocusAreas() == 0 || wantsFocus) {
+            if (mCapabilities.getMaxNumFocusAreas() == 0 || wantsFocus) {
                 filterUnsupportedOptions(group,
-                        focusMode, mParameters.getSupportedFocusModes());
+                        focusMode, mCapabilities.getSupportedFocusModes());
             } else {
                 // Remove the focus mode if we can use tap-to-focus
                 removePreference(group, focusMode.getKey());
@@ -187,7 +193,7 @@ public class CameraSettings {
         }
         if (videoFlashMode != null) {
             filterUnsupportedOptions(group,
-                    videoFlashMode, mParameters.getSupportedFlashModes());
+                    videoFlashMode, mCapabilities.getSupportedFlashModes());
         }
         if (exposure != null) buildExposureCompensation(group, exposure);
         if (cameraIdPref != null) buildCameraId(group, cameraIdPref);
@@ -202,13 +208,13 @@ public class CameraSettings {
 
     private void buildExposureCompensation(
             PreferenceGroup group, ListPreference exposure) {
-        int max = mParameters.getMaxExposureCompensation();
-        int min = mParameters.getMinExposureCompensation();
+        int max = mCapabilities.getMaxExposureCompensation();
+        int min = mCapabilities.getMinExposureCompensation();
         if (max == 0 && min == 0) {
             removePreference(group, exposure.getKey());
             return;
         }
-        float step = mParameters.getExposureCompensationStep();
+        float step = mCapabilities.getExposureCompensationStep();
 
         // show only integer values for exposure compensation
         int maxValue = (int) Math.floor(max * step);
@@ -319,14 +325,6 @@ public class CameraSettings {
         }
     }
 
-    private static List<String> sizeListToStringList(List<Size> sizes) {
-        ArrayList<String> list = new ArrayList<String>();
-        for (Size size : sizes) {
-            list.add(String.format("%dx%d", size.width, size.height));
-        }
-        return list;
-    }
-
     public static void upgradeLocalPreferences(SharedPreferences pref) {
         int version;
         try {
@@ -499,22 +497,6 @@ public class CameraSettings {
         writePreferredCameraId(preferences, currentCameraId);
     }
 
-    private ArrayList<String> getSupportedVideoQuality() {
-        ArrayList<String> supported = new ArrayList<String>();
-        // Check for supported quality
-        if (CamcorderProfile.hasProfile(mCameraId, CamcorderProfile.QUALITY_1080P)) {
-            supported.add(Integer.toString(CamcorderProfile.QUALITY_1080P));
-        }
-        if (CamcorderProfile.hasProfile(mCameraId, CamcorderProfile.QUALITY_720P)) {
-            supported.add(Integer.toString(CamcorderProfile.QUALITY_720P));
-        }
-        if (CamcorderProfile.hasProfile(mCameraId, CamcorderProfile.QUALITY_480P)) {
-            supported.add(Integer.toString(CamcorderProfile.QUALITY_480P));
-        }
-
-        return supported;
-    }
-
 
     /**
      * Enable video mode for certain cameras.
@@ -547,8 +529,8 @@ public class CameraSettings {
                 EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_GOOFY_FACE);
         boolean backdropperSupported =
                 EffectsRecorder.isEffectSupported(EffectsRecorder.EFFECT_BACKDROPPER) &&
-                mParameters.isAutoExposureLockSupported() &&
-                mParameters.isAutoWhiteBalanceLockSupported();
+                mCapabilities.isAutoExposureLockSupported() &&
+                mCapabilities.isAutoWhiteBalanceLockSupported();
 
         ArrayList<String> supported = new ArrayList<String>();
         for (CharSequence value : values) {
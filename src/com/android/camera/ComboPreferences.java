@@ -21,14 +21,34 @@ import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.preference.PreferenceManager;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+// The reads do not go to SharedPreferences, which takes a lock for each of
+// them. They use an immutable snapshot of the global and local preferences
+// merged together, which is rebuilt when a preference changes.
 public class ComboPreferences implements SharedPreferences, OnSharedPreferenceChangeListener {
+    // The keys which are always in the global preferences.
+    private static final HashSet<String> GLOBAL_KEYS = new HashSet<String>();
+    static {
+        GLOBAL_KEYS.add(CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL);
+        GLOBAL_KEYS.add(CameraSettings.KEY_CAMERA_ID);
+        GLOBAL_KEYS.add(CameraSettings.KEY_RECORD_LOCATION);
+        GLOBAL_KEYS.add(CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN);
+        GLOBAL_KEYS.add(CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN);
+        GLOBAL_KEYS.add(CameraSettings.KEY_VIDEO_EFFECT);
+        GLOBAL_KEYS.add(CameraSettings.KEY_STORAGE);
+    }
+
     private SharedPreferences mPrefGlobal;  // global preferences
     private SharedPreferences mPrefLocal;  // per-camera preferences
+    // The local value of each key if there is one, or else the global value.
+    private volatile Map<String, ?> mSnapshot;
     private CopyOnWriteArrayList<OnSharedPreferenceChangeListener> mListeners;
     private static WeakHashMap<Context, ComboPreferences> sMap =
             new WeakHashMap<Context, ComboPreferences>();
@@ -36,6 +56,7 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     public ComboPreferences(Context context) {
         mPrefGlobal = PreferenceManager.getDefaultSharedPreferences(context);
         mPrefGlobal.registerOnSharedPreferenceChangeListener(this);
+        updateSnapshot();
         synchronized (sMap) {
             sMap.put(context, this);
         }
@@ -58,6 +79,7 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
         mPrefLocal = context.getSharedPreferences(
                 prefName, Context.MODE_PRIVATE);
         mPrefLocal.registerOnSharedPreferenceChangeListener(this);
+        updateSnapshot();
     }
 
     public SharedPreferences getGlobal() {
@@ -73,53 +95,47 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     }
 
     private static boolean isGlobal(String key) {
-        return key.equals(CameraSettings.KEY_VIDEO_TIME_LAPSE_FRAME_INTERVAL)
-                || key.equals(CameraSettings.KEY_CAMERA_ID)
-                || key.equals(CameraSettings.KEY_RECORD_LOCATION)
-                || key.equals(CameraSettings.KEY_CAMERA_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_FIRST_USE_HINT_SHOWN)
-                || key.equals(CameraSettings.KEY_VIDEO_EFFECT)
-                || key.equals(CameraSettings.KEY_STORAGE);
+        return GLOBAL_KEYS.contains(key);
     }
 
-    public String getString(String key, String defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getString(key, defValue);
-        } else {
-            return mPrefLocal.getString(key, defValue);
+    // Merges the global and local preferences into a new snapshot. Called
+    // when they are loaded and after each change, so the getters never see
+    // older values than SharedPreferences.
+    private synchronized void updateSnapshot() {
+        HashMap<String, Object> snapshot = new HashMap<String, Object>(mPrefGlobal.getAll());
+        if (mPrefLocal != null) {
+            for (Map.Entry<String, ?> entry : mPrefLocal.getAll().entrySet()) {
+                if (!isGlobal(entry.getKey())) snapshot.put(entry.getKey(), entry.getValue());
+            }
         }
+        mSnapshot = Collections.unmodifiableMap(snapshot);
+    }
+
+    // Like SharedPreferences, the getters throw ClassCastException if the
+    // value has another type.
+    public String getString(String key, String defValue) {
+        String v = (String) mSnapshot.get(key);
+        return (v != null) ? v : defValue;
     }
 
     public int getInt(String key, int defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getInt(key, defValue);
-        } else {
-            return mPrefLocal.getInt(key, defValue);
-        }
+        Integer v = (Integer) mSnapshot.get(key);
+        return (v != null) ? v : defValue;
     }
 
     public long getLong(String key, long defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getLong(key, defValue);
-        } else {
-            return mPrefLocal.getLong(key, defValue);
-        }
+        Long v = (Long) mSnapshot.get(key);
+        return (v != null) ? v : defValue;
     }
 
     public float getFloat(String key, float defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getFloat(key, defValue);
-        } else {
-            return mPrefLocal.getFloat(key, defValue);
-        }
+        Float v = (Float) mSnapshot.get(key);
+        return (v != null) ? v : defValue;
     }
 
     public boolean getBoolean(String key, boolean defValue) {
-        if (isGlobal(key) || !mPrefLocal.contains(key)) {
-            return mPrefGlobal.getBoolean(key, defValue);
-        } else {
-            return mPrefLocal.getBoolean(key, defValue);
-        }
+        Boolean v = (Boolean) mSnapshot.get(key);
+        return (v != null) ? v : defValue;
     }
 
     // This method is not used.
@@ -128,9 +144,7 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
     }
 
     public boolean contains(String key) {
-        if (mPrefLocal.contains(key)) return true;
-        if (mPrefGlobal.contains(key)) return true;
-        return false;
+        return mSnapshot.containsKey(key);
     }
 
     private class MyEditor implements Editor {
@@ -142,15 +156,19 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
             mEditorLocal = mPrefLocal.edit();
         }
 
+        // The change listeners may be called later, so the snapshot is
+        // updated here for the reads right after the change.
         public boolean commit() {
             boolean result1 = mEditorGlobal.commit();
             boolean result2 = mEditorLocal.commit();
+            updateSnapshot();
             return result1 && result2;
         }
 
         public void apply() {
             mEditorGlobal.apply();
             mEditorLocal.apply();
+            updateSnapshot();
         }
 
         // Note: clear() and remove() affects both local and global preferences.
@@ -235,6 +253,7 @@ public class ComboPreferences implements SharedPreferences, OnSharedPreferenceCh
 
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
             String key) {
+        updateSnapshot();
         for (OnSharedPreferenceChangeListener listener : mListeners) {
             listener.onSharedPreferenceChanged(this, key);
         }
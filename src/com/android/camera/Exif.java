@@ -18,20 +18,120 @@ package com.android.camera;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+
+// Exif parses the EXIF data of a JPEG in one pass and keeps an index of the
+// entries of all the IFDs: IFD0, the Exif IFD, the GPS IFD, the Interop IFD
+// and IFD1. The values are not copied; the index only remembers where they
+// are, and the accessors read them from the original data. An Exif object
+// can be reused for many images and allocates nothing after construction
+// (except for getString()).
+//
+// The offsets returned by the accessors are absolute indexes into the data
+// passed to parse().
 public class Exif {
     private static final String TAG = "CameraExif";
 
+    // The IFDs.
+    public static final int IFD_0 = 0;
+    public static final int IFD_EXIF = 1;
+    public static final int IFD_GPS = 2;
+    public static final int IFD_INTEROP = 3;
+    public static final int IFD_1 = 4;
+    private static final int IFD_COUNT = 5;
+
+    // The tags used by the camera.
+    public static final int TAG_IMAGE_WIDTH = 0x0100;
+    public static final int TAG_IMAGE_LENGTH = 0x0101;
+    public static final int TAG_ORIENTATION = 0x0112;
+    public static final int TAG_DATE_TIME = 0x0132;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    public static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    public static final int TAG_EXIF_IFD_POINTER = 0x8769;
+    public static final int TAG_GPS_IFD_POINTER = 0x8825;
+    public static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+    public static final int TAG_PIXEL_X_DIMENSION = 0xA002;
+    public static final int TAG_PIXEL_Y_DIMENSION = 0xA003;
+    public static final int TAG_INTEROP_IFD_POINTER = 0xA005;
+    public static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    public static final int TAG_GPS_LATITUDE = 0x0002;
+    public static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    public static final int TAG_GPS_LONGITUDE = 0x0004;
+
+    // The types of the values.
+    public static final int TYPE_BYTE = 1;
+    public static final int TYPE_ASCII = 2;
+    public static final int TYPE_SHORT = 3;
+    public static final int TYPE_LONG = 4;
+    public static final int TYPE_RATIONAL = 5;
+    public static final int TYPE_UNDEFINED = 7;
+    public static final int TYPE_SLONG = 9;
+    public static final int TYPE_SRATIONAL = 10;
+
+    // The size in bytes of the types above. Unknown types are 0.
+    private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8};
+
+    // The size of an IFD entry.
+    private static final int ENTRY_SIZE = 12;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final ThreadLocal<Exif> sExif = new ThreadLocal<Exif>() {
+        @Override
+        protected Exif initialValue() {
+            return new Exif();
+        }
+    };
+
+    private ByteBuffer mData;
+    private boolean mLittleEndian;
+    // The offset of the APP1 marker and the length of the whole segment
+    // including the marker. -1 if there is no EXIF.
+    private int mApp1Offset = -1;
+    private int mApp1Length;
+    // The offset of the TIFF header. All the offsets in EXIF are relative
+    // to it.
+    private int mTiffOffset;
+
+    // The entries of IFD i are mEntry*[mIfdStart[i]] to
+    // mEntry*[mIfdStart[i] + mIfdCount[i] - 1].
+    private final int[] mIfdOffset = new int[IFD_COUNT];
+    private final int[] mIfdStart = new int[IFD_COUNT];
+    private final int[] mIfdCount = new int[IFD_COUNT];
+    private final int[] mEntryTag = new int[MAX_ENTRIES];
+    private final int[] mEntryType = new int[MAX_ENTRIES];
+    private final int[] mEntryCount = new int[MAX_ENTRIES];
+    // The offset of the value, which is inside the entry if it fits in four
+    // bytes.
+    private final int[] mEntryValueOffset = new int[MAX_ENTRIES];
+    private int mEntries;
+
     public static int getOrientation(byte[] jpeg) {
         if (jpeg == null) {
             return 0;
         }
+        Exif exif = sExif.get();
+        exif.parse(jpeg);
+        int orientation = exif.getOrientation();
+        exif.clear();
+        return orientation;
+    }
 
-        int offset = 0;
+    public boolean parse(byte[] jpeg) {
+        return parse(ByteBuffer.wrap(jpeg));
+    }
+
+    // Parses the JPEG from the position to the limit of data. The position
+    // of data is not changed. Returns false if there is no valid EXIF.
+    public boolean parse(ByteBuffer data) {
+        clear();
+        mData = data;
+        int offset = data.position();
+        int end = data.limit();
         int length = 0;
 
         // ISO/IEC 10918-1:1993(E)
-        while (offset + 3 < jpeg.length && (jpeg[offset++] & 0xFF) == 0xFF) {
-            int marker = jpeg[offset] & 0xFF;
+        while (offset + 3 < end && (data.get(offset++) & 0xFF) == 0xFF) {
+            int marker = data.get(offset) & 0xFF;
 
             // Check if the marker is a padding.
             if (marker == 0xFF) {
@@ -49,16 +149,18 @@ public class Exif {
             }
 
             // Get the length and check if it is reasonable.
-            length = pack(jpeg, offset, 2, false);
-            if (length < 2 || offset + length > jpeg.length) {
+            length = pack(offset, 2, false);
+            if (length < 2 || offset + length > end) {
                 Log.e(TAG, "Invalid length");
-                return 0;
+                return false;
             }
 
             // Break if the marker is EXIF in APP1.
             if (marker == 0xE1 && length >= 8 &&
-                    pack(jpeg, offset + 2, 4, false) == 0x45786966 &&
-                    pack(jpeg, offset + 6, 2, false) == 0) {
+                    pack(offset + 2, 4, false) == 0x45786966 &&
+                    pack(offset + 6, 2, false) == 0) {
+                mApp1Offset = offset - 2;
+                mApp1Length = length + 2;
                 offset += 8;
                 length -= 8;
                 break;
@@ -70,56 +172,283 @@ public class Exif {
         }
 
         // JEITA CP-3451 Exif Version 2.2
-        if (length > 8) {
-            // Identify the byte order.
-            int tag = pack(jpeg, offset, 4, false);
-            if (tag != 0x49492A00 && tag != 0x4D4D002A) {
-                Log.e(TAG, "Invalid byte order");
-                return 0;
+        if (length <= 8) {
+            mApp1Offset = -1;
+            return false;
+        }
+
+        // Identify the byte order.
+        int tag = pack(offset, 4, false);
+        if (tag != 0x49492A00 && tag != 0x4D4D002A) {
+            Log.e(TAG, "Invalid byte order");
+            mApp1Offset = -1;
+            return false;
+        }
+        mLittleEndian = (tag == 0x49492A00);
+        mTiffOffset = offset;
+        int tiffEnd = offset + length;
+
+        // Parse IFD0 and follow the pointers to the other IFDs. Each IFD is
+        // parsed once at most, so a bad pointer cannot make us loop.
+        int next = parseIfd(IFD_0, pack(offset + 4, 4, mLittleEndian), tiffEnd);
+        parseIfd(IFD_1, next, tiffEnd);
+        parseIfd(IFD_EXIF, getInt(IFD_0, TAG_EXIF_IFD_POINTER, 0), tiffEnd);
+        parseIfd(IFD_GPS, getInt(IFD_0, TAG_GPS_IFD_POINTER, 0), tiffEnd);
+        parseIfd(IFD_INTEROP, getInt(IFD_EXIF, TAG_INTEROP_IFD_POINTER, 0), tiffEnd);
+        return mIfdCount[IFD_0] > 0;
+    }
+
+    // Forgets the last parsed data.
+    public void clear() {
+        mData = null;
+        mApp1Offset = -1;
+        mApp1Length = 0;
+        mEntries = 0;
+        for (int i = 0; i < IFD_COUNT; i++) {
+            mIfdOffset[i] = 0;
+            mIfdStart[i] = 0;
+            mIfdCount[i] = 0;
+        }
+    }
+
+    // Parses the IFD at the offset (relative to the TIFF header). Returns the
+    // offset of the next IFD, or 0 if there is none.
+    private int parseIfd(int ifd, int ifdOffset, int tiffEnd) {
+        if (ifdOffset < 8 || mIfdOffset[ifd] != 0) return 0;
+        if (ifdOffset > tiffEnd - mTiffOffset - 2) {
+            Log.e(TAG, "Invalid offset");
+            return 0;
+        }
+        int offset = mTiffOffset + ifdOffset;
+        mIfdOffset[ifd] = offset;
+        mIfdStart[ifd] = mEntries;
+
+        int count = pack(offset, 2, mLittleEndian);
+        offset += 2;
+        while (count-- > 0 && offset + ENTRY_SIZE <= tiffEnd && mEntries < MAX_ENTRIES) {
+            int type = pack(offset + 2, 2, mLittleEndian);
+            // The count and the offset are unsigned 32-bit values. They are
+            // checked as longs, so a crafted entry cannot overflow the bounds
+            // check and point the getters past the buffer.
+            long valueCount = pack(offset + 4, 4, mLittleEndian) & 0xffffffffL;
+            long size = getTypeSize(type) * valueCount;
+            long valueOffset = offset + 8;
+            if (size > 4) {
+                valueOffset = mTiffOffset + (pack(offset + 8, 4, mLittleEndian) & 0xffffffffL);
+            }
+            // Skip the entries with unknown types or values out of range.
+            if (size > 0 && valueOffset >= mTiffOffset
+                    && valueOffset + size <= tiffEnd) {
+                mEntryTag[mEntries] = pack(offset, 2, mLittleEndian);
+                mEntryType[mEntries] = type;
+                mEntryCount[mEntries] = (int) valueCount;
+                mEntryValueOffset[mEntries] = (int) valueOffset;
+                mEntries++;
             }
-            boolean littleEndian = (tag == 0x49492A00);
+            offset += ENTRY_SIZE;
+        }
+        mIfdCount[ifd] = mEntries - mIfdStart[ifd];
 
-            // Get the offset and check if it is reasonable.
-            int count = pack(jpeg, offset + 4, 4, littleEndian) + 2;
-            if (count < 10 || count > length) {
-                Log.e(TAG, "Invalid offset");
-                return 0;
+        if (offset + 4 > tiffEnd) return 0;
+        return pack(offset, 4, mLittleEndian);
+    }
+
+    // Returns the index of the entry, or -1 if it is not found.
+    private int findEntry(int ifd, int tag) {
+        int end = mIfdStart[ifd] + mIfdCount[ifd];
+        for (int i = mIfdStart[ifd]; i < end; i++) {
+            if (mEntryTag[i] == tag) return i;
+        }
+        return -1;
+    }
+
+    public boolean hasExif() {
+        return mApp1Offset >= 0;
+    }
+
+    public boolean hasTag(int ifd, int tag) {
+        return findEntry(ifd, tag) >= 0;
+    }
+
+    public boolean isLittleEndian() {
+        return mLittleEndian;
+    }
+
+    // Returns the offset of the APP1 marker, or -1 if there is no EXIF.
+    public int getApp1Offset() {
+        return mApp1Offset;
+    }
+
+    // Returns the length of the APP1 segment including the marker.
+    public int getApp1Length() {
+        return mApp1Length;
+    }
+
+    public int getTiffOffset() {
+        return mTiffOffset;
+    }
+
+    // Returns the offset of the IFD, or 0 if it does not exist.
+    public int getIfdOffset(int ifd) {
+        return mIfdOffset[ifd];
+    }
+
+    // Returns the number of entries in the IFD.
+    public int getEntryCount(int ifd) {
+        return mIfdCount[ifd];
+    }
+
+    // Returns the tag of the index-th entry in the IFD.
+    public int getEntryTag(int ifd, int index) {
+        return mEntryTag[mIfdStart[ifd] + index];
+    }
+
+    public int getTagType(int ifd, int tag) {
+        int i = findEntry(ifd, tag);
+        return (i < 0) ? 0 : mEntryType[i];
+    }
+
+    public int getTagCount(int ifd, int tag) {
+        int i = findEntry(ifd, tag);
+        return (i < 0) ? 0 : mEntryCount[i];
+    }
+
+    // Returns the offset of the value of the tag, or -1 if it is not found.
+    public int getTagValueOffset(int ifd, int tag) {
+        int i = findEntry(ifd, tag);
+        return (i < 0) ? -1 : mEntryValueOffset[i];
+    }
+
+    public int getInt(int ifd, int tag, int defaultValue) {
+        return getInt(ifd, tag, 0, defaultValue);
+    }
+
+    // Returns the index-th value of an integer tag.
+    public int getInt(int ifd, int tag, int index, int defaultValue) {
+        int i = findEntry(ifd, tag);
+        if (i < 0 || index >= mEntryCount[i]) return defaultValue;
+        int offset = mEntryValueOffset[i];
+        switch (mEntryType[i]) {
+            case TYPE_BYTE:
+            case TYPE_ASCII:
+            case TYPE_UNDEFINED:
+                return mData.get(offset + index) & 0xFF;
+            case TYPE_SHORT:
+                return pack(offset + index * 2, 2, mLittleEndian);
+            case TYPE_LONG:
+            case TYPE_SLONG:
+                return pack(offset + index * 4, 4, mLittleEndian);
+        }
+        return defaultValue;
+    }
+
+    // Returns the index-th value of a rational tag.
+    public double getRational(int ifd, int tag, int index, double defaultValue) {
+        int i = findEntry(ifd, tag);
+        if (i < 0 || index >= mEntryCount[i]) return defaultValue;
+        int offset = mEntryValueOffset[i] + index * 8;
+        switch (mEntryType[i]) {
+            case TYPE_RATIONAL: {
+                long numerator = pack(offset, 4, mLittleEndian) & 0xFFFFFFFFL;
+                long denominator = pack(offset + 4, 4, mLittleEndian) & 0xFFFFFFFFL;
+                return (denominator == 0) ? defaultValue : (double) numerator / denominator;
             }
-            offset += count;
-            length -= count;
-
-            // Get the count and go through all the elements.
-            count = pack(jpeg, offset - 2, 2, littleEndian);
-            while (count-- > 0 && length >= 12) {
-                // Get the tag and check if it is orientation.
-                tag = pack(jpeg, offset, 2, littleEndian);
-                if (tag == 0x0112) {
-                    // We do not really care about type and count, do we?
-                    int orientation = pack(jpeg, offset + 8, 2, littleEndian);
-                    switch (orientation) {
-                        case 1:
-                            return 0;
-                        case 3:
-                            return 180;
-                        case 6:
-                            return 90;
-                        case 8:
-                            return 270;
-                    }
-                    Log.i(TAG, "Unsupported orientation");
-                    return 0;
-                }
-                offset += 12;
-                length -= 12;
+            case TYPE_SRATIONAL: {
+                int numerator = pack(offset, 4, mLittleEndian);
+                int denominator = pack(offset + 4, 4, mLittleEndian);
+                return (denominator == 0) ? defaultValue : (double) numerator / denominator;
             }
         }
+        return defaultValue;
+    }
 
-        Log.i(TAG, "Orientation not found");
+    // Returns the value of an ASCII tag, or null if it is not found.
+    public String getString(int ifd, int tag) {
+        int i = findEntry(ifd, tag);
+        if (i < 0 || mEntryType[i] != TYPE_ASCII) return null;
+        int offset = mEntryValueOffset[i];
+        int length = 0;
+        while (length < mEntryCount[i] && mData.get(offset + length) != 0) {
+            length++;
+        }
+        char[] chars = new char[length];
+        for (int j = 0; j < length; j++) {
+            chars[j] = (char) (mData.get(offset + j) & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    // Returns the size in bytes of a value of the type, or 0 if the type is
+    // unknown.
+    public static int getTypeSize(int type) {
+        return (type > 0 && type < TYPE_SIZES.length) ? TYPE_SIZES[type] : 0;
+    }
+
+    // Returns the orientation in degrees.
+    public int getOrientation() {
+        int orientation = getInt(IFD_0, TAG_ORIENTATION, 1);
+        switch (orientation) {
+            case 1:
+                return 0;
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+        }
+        Log.i(TAG, "Unsupported orientation");
         return 0;
     }
 
-    private static int pack(byte[] bytes, int offset, int length,
-            boolean littleEndian) {
+    // Returns the width of the image, or 0 if it is unknown.
+    public int getImageWidth() {
+        int width = getInt(IFD_EXIF, TAG_PIXEL_X_DIMENSION, 0);
+        return (width > 0) ? width : getInt(IFD_0, TAG_IMAGE_WIDTH, 0);
+    }
+
+    // Returns the height of the image, or 0 if it is unknown.
+    public int getImageHeight() {
+        int height = getInt(IFD_EXIF, TAG_PIXEL_Y_DIMENSION, 0);
+        return (height > 0) ? height : getInt(IFD_0, TAG_IMAGE_LENGTH, 0);
+    }
+
+    // Stores the latitude and longitude in degrees in latLong. Returns false
+    // if there is no GPS location.
+    public boolean getLatLong(double[] latLong) {
+        if (!hasTag(IFD_GPS, TAG_GPS_LATITUDE) || !hasTag(IFD_GPS, TAG_GPS_LONGITUDE)) {
+            return false;
+        }
+        latLong[0] = getDegrees(TAG_GPS_LATITUDE);
+        latLong[1] = getDegrees(TAG_GPS_LONGITUDE);
+        if (getInt(IFD_GPS, TAG_GPS_LATITUDE_REF, 'N') == 'S') latLong[0] = -latLong[0];
+        if (getInt(IFD_GPS, TAG_GPS_LONGITUDE_REF, 'E') == 'W') latLong[1] = -latLong[1];
+        return true;
+    }
+
+    private double getDegrees(int tag) {
+        return getRational(IFD_GPS, tag, 0, 0)
+                + getRational(IFD_GPS, tag, 1, 0) / 60
+                + getRational(IFD_GPS, tag, 2, 0) / 3600;
+    }
+
+    // Returns the offset of the embedded JPEG thumbnail, or -1 if there is
+    // none.
+    public int getThumbnailOffset() {
+        int offset = getInt(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT, 0);
+        int length = getThumbnailLength();
+        if (offset <= 0 || length <= 0) return -1;
+        if (offset > mApp1Offset + mApp1Length - mTiffOffset - length) return -1;
+        return mTiffOffset + offset;
+    }
+
+    // Returns the length of the embedded JPEG thumbnail, or 0 if there is
+    // none.
+    public int getThumbnailLength() {
+        return getInt(IFD_1, TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, 0);
+    }
+
+    private int pack(int offset, int length, boolean littleEndian) {
         int step = 1;
         if (littleEndian) {
             offset += length - 1;
@@ -128,7 +457,7 @@ public class Exif {
 
         int value = 0;
         while (length-- > 0) {
-            value = (value << 8) | (bytes[offset] & 0xFF);
+            value = (value << 8) | (mData.get(offset) & 0xFF);
             offset += step;
         }
         return value;
@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+// ExifWriter sets the orientation, the date, the GPS location and the
+// dimensions in the EXIF of a JPEG.
+//
+// apply() works on a JPEG in memory, before it is written. If the JPEG
+// already has all the tags, their values are patched in place. Otherwise a
+// new APP1 segment is built, with the existing tags and the embedded
+// thumbnail kept, and replaces the old one. patchFile() works on a JPEG
+// already written. It only patches the existing tags, so it never rewrites
+// the file.
+//
+// This class is not thread-safe.
+public class ExifWriter {
+    private static final String TAG = "ExifWriter";
+
+    private static final int MAX_APP1_LENGTH = 0xFFFF + 2;
+    // The length of the APP1 marker, length and "Exif\0\0".
+    private static final int APP1_HEADER_LENGTH = 10;
+    private static final int TIFF_HEADER_LENGTH = 8;
+    private static final int DATE_TIME_LENGTH = 20;
+
+    private static final int TAG_GPS_VERSION_ID = 0x0000;
+
+    private int mOrientation = -1;
+    private long mDateTaken = -1;
+    private boolean mHasLocation;
+    private double mLatitude;
+    private double mLongitude;
+    private int mWidth;
+    private int mHeight;
+
+    private final Exif mExif = new Exif();
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("yyyy:MM:dd HH:mm:ss");
+
+    // Sets the orientation in degrees.
+    public ExifWriter setOrientation(int degrees) {
+        mOrientation = degrees;
+        return this;
+    }
+
+    public ExifWriter setDateTaken(long dateTaken) {
+        mDateTaken = dateTaken;
+        return this;
+    }
+
+    public ExifWriter setLocation(double latitude, double longitude) {
+        mHasLocation = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+        return this;
+    }
+
+    public ExifWriter setImageSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        return this;
+    }
+
+    // Returns the JPEG with the attributes set. This is jpeg itself if the
+    // tags could be patched in place, or a new array if the APP1 segment
+    // had to be built. Returns jpeg unchanged if it is not a valid JPEG.
+    public byte[] apply(byte[] jpeg) {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(jpeg);
+            if (mExif.parse(data) && patch(data)) return jpeg;
+
+            if (jpeg.length < 2 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) {
+                Log.e(TAG, "Invalid JPEG");
+                return jpeg;
+            }
+            byte[] app1 = buildApp1(data);
+            if (app1 == null) return jpeg;
+
+            // Replace the old APP1 segment, or put the new one right after
+            // SOI as the EXIF spec requires.
+            int offset = mExif.hasExif() ? mExif.getApp1Offset() : 2;
+            int removed = mExif.hasExif() ? mExif.getApp1Length() : 0;
+            byte[] result = new byte[jpeg.length - removed + app1.length];
+            System.arraycopy(jpeg, 0, result, 0, offset);
+            System.arraycopy(app1, 0, result, offset, app1.length);
+            System.arraycopy(jpeg, offset + removed, result, offset + app1.length,
+                    jpeg.length - offset - removed);
+            return result;
+        } finally {
+            mExif.clear();
+        }
+    }
+
+    // Patches the tags in the EXIF of the file. Only the bytes of the APP1
+    // segment are written. Returns false if the file does not have all the
+    // tags, in which case the file is not changed.
+    public boolean patchFile(String path) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            // The APP1 segment is usually right after SOI and APP0, so the
+            // beginning of the file is enough.
+            byte[] head = new byte[(int) Math.min(file.length(), 2 * MAX_APP1_LENGTH)];
+            file.readFully(head);
+            ByteBuffer data = ByteBuffer.wrap(head);
+            if (!mExif.parse(data) || !patch(data)) return false;
+            file.seek(mExif.getApp1Offset());
+            file.write(head, mExif.getApp1Offset(), mExif.getApp1Length());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to patch " + path, e);
+            return false;
+        } finally {
+            mExif.clear();
+            Util.closeSilently(file);
+        }
+    }
+
+    // Patches the values of the tags in data, which is parsed by mExif.
+    // Nothing is changed unless all the tags exist with suitable types.
+    private boolean patch(ByteBuffer data) {
+        if (mOrientation >= 0 && !canPatch(Exif.IFD_0, Exif.TAG_ORIENTATION, Exif.TYPE_SHORT, 1)) {
+            return false;
+        }
+        if (mDateTaken >= 0 && !canPatch(Exif.IFD_0, Exif.TAG_DATE_TIME,
+                Exif.TYPE_ASCII, DATE_TIME_LENGTH)) {
+            return false;
+        }
+        if (mHasLocation && !(canPatch(Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE_REF, Exif.TYPE_ASCII, 2)
+                && canPatch(Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE, Exif.TYPE_RATIONAL, 3)
+                && canPatch(Exif.IFD_GPS, Exif.TAG_GPS_LONGITUDE_REF, Exif.TYPE_ASCII, 2)
+                && canPatch(Exif.IFD_GPS, Exif.TAG_GPS_LONGITUDE, Exif.TYPE_RATIONAL, 3))) {
+            return false;
+        }
+        if (mWidth > 0 && !(canPatchSize(Exif.TAG_PIXEL_X_DIMENSION, mWidth)
+                && canPatchSize(Exif.TAG_PIXEL_Y_DIMENSION, mHeight))) {
+            return false;
+        }
+
+        ByteOrder order = mExif.isLittleEndian() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        if (mOrientation >= 0) {
+            write(data, Exif.IFD_0, Exif.TAG_ORIENTATION, encodeOrientation(order));
+        }
+        if (mDateTaken >= 0) {
+            write(data, Exif.IFD_0, Exif.TAG_DATE_TIME, encodeDateTime());
+            if (mExif.getTagCount(Exif.IFD_EXIF, Exif.TAG_DATE_TIME_ORIGINAL)
+                    == DATE_TIME_LENGTH) {
+                write(data, Exif.IFD_EXIF, Exif.TAG_DATE_TIME_ORIGINAL, encodeDateTime());
+            }
+        }
+        if (mHasLocation) {
+            write(data, Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE_REF,
+                    encodeRef(mLatitude >= 0 ? 'N' : 'S'));
+            write(data, Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE, encodeDegrees(mLatitude, order));
+            write(data, Exif.IFD_GPS, Exif.TAG_GPS_LONGITUDE_REF,
+                    encodeRef(mLongitude >= 0 ? 'E' : 'W'));
+            write(data, Exif.IFD_GPS, Exif.TAG_GPS_LONGITUDE, encodeDegrees(mLongitude, order));
+        }
+        if (mWidth > 0) {
+            write(data, Exif.IFD_EXIF, Exif.TAG_PIXEL_X_DIMENSION,
+                    encodeSize(mWidth, mExif.getTagType(Exif.IFD_EXIF,
+                    Exif.TAG_PIXEL_X_DIMENSION), order));
+            write(data, Exif.IFD_EXIF, Exif.TAG_PIXEL_Y_DIMENSION,
+                    encodeSize(mHeight, mExif.getTagType(Exif.IFD_EXIF,
+                    Exif.TAG_PIXEL_Y_DIMENSION), order));
+        }
+        return true;
+    }
+
+    private boolean canPatch(int ifd, int tag, int type, int count) {
+        return mExif.getTagType(ifd, tag) == type && mExif.getTagCount(ifd, tag) == count;
+    }
+
+    private boolean canPatchSize(int tag, int size) {
+        int type = mExif.getTagType(Exif.IFD_EXIF, tag);
+        if (mExif.getTagCount(Exif.IFD_EXIF, tag) != 1) return false;
+        return type == Exif.TYPE_LONG || (type == Exif.TYPE_SHORT && size <= 0xFFFF);
+    }
+
+    private void write(ByteBuffer data, int ifd, int tag, byte[] value) {
+        int offset = mExif.getTagValueOffset(ifd, tag);
+        for (int i = 0; i < value.length; i++) {
+            data.put(offset + i, value[i]);
+        }
+    }
+
+    // Builds an APP1 segment with the tags of mExif and the new values.
+    // Returns null if the segment would be too big.
+    private byte[] buildApp1(ByteBuffer data) {
+        ByteOrder order = (mExif.hasExif() && mExif.isLittleEndian())
+                ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        // Collect the entries. The pointers to the IFDs and the thumbnail
+        // are added when the layout is known.
+        Ifd[] ifds = new Ifd[] {new Ifd(), new Ifd(), new Ifd(), new Ifd(), new Ifd()};
+        int thumbnailOffset = mExif.getThumbnailOffset();
+        int thumbnailLength = (thumbnailOffset < 0) ? 0 : mExif.getThumbnailLength();
+        if (mExif.hasExif()) {
+            for (int ifd = Exif.IFD_0; ifd <= Exif.IFD_1; ifd++) {
+                // Keep IFD1 only for a JPEG thumbnail.
+                if (ifd == Exif.IFD_1 && thumbnailLength == 0) continue;
+                for (int i = 0; i < mExif.getEntryCount(ifd); i++) {
+                    int tag = mExif.getEntryTag(ifd, i);
+                    if (isPointer(ifd, tag)) continue;
+                    int type = mExif.getTagType(ifd, tag);
+                    int count = mExif.getTagCount(ifd, tag);
+                    byte[] value = new byte[Exif.getTypeSize(type) * count];
+                    int offset = mExif.getTagValueOffset(ifd, tag);
+                    for (int j = 0; j < value.length; j++) {
+                        value[j] = data.get(offset + j);
+                    }
+                    ifds[ifd].put(tag, type, count, value);
+                }
+            }
+        }
+
+        if (mOrientation >= 0) {
+            ifds[Exif.IFD_0].put(Exif.TAG_ORIENTATION, Exif.TYPE_SHORT, 1,
+                    encodeOrientation(order));
+        }
+        if (mDateTaken >= 0) {
+            ifds[Exif.IFD_0].put(Exif.TAG_DATE_TIME, Exif.TYPE_ASCII, DATE_TIME_LENGTH,
+                    encodeDateTime());
+            ifds[Exif.IFD_EXIF].put(Exif.TAG_DATE_TIME_ORIGINAL, Exif.TYPE_ASCII,
+                    DATE_TIME_LENGTH, encodeDateTime());
+        }
+        if (mHasLocation) {
+            Ifd gps = ifds[Exif.IFD_GPS];
+            if (gps.find(TAG_GPS_VERSION_ID) < 0) {
+                gps.put(TAG_GPS_VERSION_ID, Exif.TYPE_BYTE, 4, new byte[] {2, 2, 0, 0});
+            }
+            gps.put(Exif.TAG_GPS_LATITUDE_REF, Exif.TYPE_ASCII, 2,
+                    encodeRef(mLatitude >= 0 ? 'N' : 'S'));
+            gps.put(Exif.TAG_GPS_LATITUDE, Exif.TYPE_RATIONAL, 3,
+                    encodeDegrees(mLatitude, order));
+            gps.put(Exif.TAG_GPS_LONGITUDE_REF, Exif.TYPE_ASCII, 2,
+                    encodeRef(mLongitude >= 0 ? 'E' : 'W'));
+            gps.put(Exif.TAG_GPS_LONGITUDE, Exif.TYPE_RATIONAL, 3,
+                    encodeDegrees(mLongitude, order));
+        }
+        if (mWidth > 0) {
+            ifds[Exif.IFD_EXIF].put(Exif.TAG_PIXEL_X_DIMENSION, Exif.TYPE_LONG, 1,
+                    encodeSize(mWidth, Exif.TYPE_LONG, order));
+            ifds[Exif.IFD_EXIF].put(Exif.TAG_PIXEL_Y_DIMENSION, Exif.TYPE_LONG, 1,
+                    encodeSize(mHeight, Exif.TYPE_LONG, order));
+        }
+
+        // Add the pointers with dummy values so they are counted in the
+        // layout.
+        byte[] dummy = new byte[4];
+        if (!ifds[Exif.IFD_INTEROP].isEmpty()) {
+            ifds[Exif.IFD_EXIF].put(Exif.TAG_INTEROP_IFD_POINTER, Exif.TYPE_LONG, 1, dummy);
+        }
+        if (!ifds[Exif.IFD_EXIF].isEmpty()) {
+            ifds[Exif.IFD_0].put(Exif.TAG_EXIF_IFD_POINTER, Exif.TYPE_LONG, 1, dummy);
+        }
+        if (!ifds[Exif.IFD_GPS].isEmpty()) {
+            ifds[Exif.IFD_0].put(Exif.TAG_GPS_IFD_POINTER, Exif.TYPE_LONG, 1, dummy);
+        }
+        if (thumbnailLength > 0) {
+            ifds[Exif.IFD_1].put(Exif.TAG_JPEG_INTERCHANGE_FORMAT, Exif.TYPE_LONG, 1, dummy);
+            ifds[Exif.IFD_1].put(Exif.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, Exif.TYPE_LONG, 1,
+                    encodeSize(thumbnailLength, Exif.TYPE_LONG, order));
+        }
+
+        // Lay out the IFDs. The offsets are relative to the TIFF header.
+        int[] ifdOffsets = new int[ifds.length];
+        int length = TIFF_HEADER_LENGTH;
+        for (int ifd = Exif.IFD_0; ifd <= Exif.IFD_1; ifd++) {
+            if (ifds[ifd].isEmpty()) continue;
+            ifdOffsets[ifd] = length;
+            length += ifds[ifd].getLength();
+        }
+        int tiffThumbnailOffset = length;
+        length += thumbnailLength;
+        if (APP1_HEADER_LENGTH + length > MAX_APP1_LENGTH) {
+            Log.e(TAG, "EXIF is too big: " + length);
+            return null;
+        }
+
+        // Now the pointers can be filled in.
+        setLong(ifds[Exif.IFD_0], Exif.TAG_EXIF_IFD_POINTER, ifdOffsets[Exif.IFD_EXIF], order);
+        setLong(ifds[Exif.IFD_0], Exif.TAG_GPS_IFD_POINTER, ifdOffsets[Exif.IFD_GPS], order);
+        setLong(ifds[Exif.IFD_EXIF], Exif.TAG_INTEROP_IFD_POINTER,
+                ifdOffsets[Exif.IFD_INTEROP], order);
+        setLong(ifds[Exif.IFD_1], Exif.TAG_JPEG_INTERCHANGE_FORMAT, tiffThumbnailOffset, order);
+
+        ByteBuffer app1 = ByteBuffer.allocate(APP1_HEADER_LENGTH + length);
+        app1.putShort((short) 0xFFE1);
+        app1.putShort((short) (app1.capacity() - 2));
+        app1.put(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+        ByteBuffer tiff = app1.slice();
+        tiff.order(order);
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        tiff.putShort((short) 0x2A);
+        tiff.putInt(TIFF_HEADER_LENGTH);
+        for (int ifd = Exif.IFD_0; ifd <= Exif.IFD_1; ifd++) {
+            if (ifds[ifd].isEmpty()) continue;
+            // Only IFD0 links to another IFD, which is IFD1.
+            int next = (ifd == Exif.IFD_0) ? ifdOffsets[Exif.IFD_1] : 0;
+            ifds[ifd].writeTo(tiff, next);
+        }
+        for (int i = 0; i < thumbnailLength; i++) {
+            tiff.put(data.get(thumbnailOffset + i));
+        }
+        return app1.array();
+    }
+
+    private static boolean isPointer(int ifd, int tag) {
+        switch (ifd) {
+            case Exif.IFD_0:
+                return tag == Exif.TAG_EXIF_IFD_POINTER || tag == Exif.TAG_GPS_IFD_POINTER;
+            case Exif.IFD_EXIF:
+                return tag == Exif.TAG_INTEROP_IFD_POINTER;
+            case Exif.IFD_1:
+                return tag == Exif.TAG_JPEG_INTERCHANGE_FORMAT
+                        || tag == Exif.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH;
+        }
+        return false;
+    }
+
+    private static void setLong(Ifd ifd, int tag, int value, ByteOrder order) {
+        if (ifd.find(tag) >= 0) {
+            ifd.put(tag, Exif.TYPE_LONG, 1, encodeSize(value, Exif.TYPE_LONG, order));
+        }
+    }
+
+    private byte[] encodeOrientation(ByteOrder order) {
+        int value;
+        switch (mOrientation) {
+            case 90:
+                value = 6;
+                break;
+            case 180:
+                value = 3;
+                break;
+            case 270:
+                value = 8;
+                break;
+            default:
+                value = 1;
+                break;
+        }
+        return encodeSize(value, Exif.TYPE_SHORT, order);
+    }
+
+    private byte[] encodeDateTime() {
+        String dateTime = mDateFormat.format(new Date(mDateTaken));
+        byte[] value = new byte[DATE_TIME_LENGTH];
+        for (int i = 0; i < dateTime.length() && i < DATE_TIME_LENGTH - 1; i++) {
+            value[i] = (byte) dateTime.charAt(i);
+        }
+        return value;
+    }
+
+    private static byte[] encodeRef(char ref) {
+        return new byte[] {(byte) ref, 0};
+    }
+
+    // Encodes the degrees as three rationals: degrees, minutes and seconds.
+    private static byte[] encodeDegrees(double degrees, ByteOrder order) {
+        degrees = Math.abs(degrees);
+        int d = (int) degrees;
+        degrees = (degrees - d) * 60;
+        int m = (int) degrees;
+        int s = (int) Math.round((degrees - m) * 60 * 1000);
+        ByteBuffer value = ByteBuffer.allocate(24).order(order);
+        value.putInt(d).putInt(1).putInt(m).putInt(1).putInt(s).putInt(1000);
+        return value.array();
+    }
+
+    private static byte[] encodeSize(int size, int type, ByteOrder order) {
+        ByteBuffer value = ByteBuffer.allocate(type == Exif.TYPE_SHORT ? 2 : 4).order(order);
+        if (type == Exif.TYPE_SHORT) {
+            value.putShort((short) size);
+        } else {
+            value.putInt(size);
+        }
+        return value.array();
+    }
+
+    // An IFD being built. The entries are sorted by tag as TIFF requires.
+    private static class Ifd {
+        private final ArrayList<Entry> mEntries = new ArrayList<Entry>();
+
+        public boolean isEmpty() {
+            return mEntries.isEmpty();
+        }
+
+        public int find(int tag) {
+            for (int i = 0; i < mEntries.size(); i++) {
+                if (mEntries.get(i).tag == tag) return i;
+            }
+            return -1;
+        }
+
+        public void put(int tag, int type, int count, byte[] value) {
+            Entry entry = new Entry(tag, type, count, value);
+            int i = find(tag);
+            if (i >= 0) {
+                mEntries.set(i, entry);
+                return;
+            }
+            i = 0;
+            while (i < mEntries.size() && mEntries.get(i).tag < tag) i++;
+            mEntries.add(i, entry);
+        }
+
+        // Returns the length of the IFD and the values which do not fit in
+        // the entries.
+        public int getLength() {
+            int length = 2 + mEntries.size() * 12 + 4;
+            for (Entry entry : mEntries) {
+                length += entry.getDataLength();
+            }
+            return length;
+        }
+
+        // Writes the IFD at the position of tiff, followed by the values
+        // which do not fit in the entries.
+        public void writeTo(ByteBuffer tiff, int next) {
+            int dataOffset = tiff.position() + 2 + mEntries.size() * 12 + 4;
+            tiff.putShort((short) mEntries.size());
+            for (Entry entry : mEntries) {
+                tiff.putShort((short) entry.tag);
+                tiff.putShort((short) entry.type);
+                tiff.putInt(entry.count);
+                if (entry.value.length <= 4) {
+                    tiff.put(entry.value);
+                    for (int i = entry.value.length; i < 4; i++) tiff.put((byte) 0);
+                } else {
+                    tiff.putInt(dataOffset);
+                    dataOffset += entry.getDataLength();
+                }
+            }
+            tiff.putInt(next);
+            for (Entry entry : mEntries) {
+                int length = entry.getDataLength();
+                if (length == 0) continue;
+                tiff.put(entry.value);
+                // Values start at word boundaries.
+                if (length > entry.value.length) tiff.put((byte) 0);
+            }
+        }
+    }
+
+    private static class Entry {
+        public final int tag;
+        public final int type;
+        public final int count;
+        public final byte[] value;
+
+        public Entry(int tag, int type, int count, byte[] value) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.value = value;
+        }
+
+        // Returns the length of the value outside the entry, padded to an
+        // even length.
+        public int getDataLength() {
+            if (value.length <= 4) return 0;
+            return (value.length + 1) & ~1;
+        }
+    }
+}
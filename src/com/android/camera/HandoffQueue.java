@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+// A bounded queue which hands items from exactly one producer thread to
+// exactly one consumer thread. Neither side takes a lock. If the queue is full
+// the producer parks until the consumer takes an item; if it is empty the
+// consumer parks until the producer puts one.
+public class HandoffQueue<E> {
+    private final AtomicReferenceArray<E> mItems;
+    private final int mCapacity;
+
+    // mHead is the index of the next item to take and mTail is the index of
+    // the next item to put. They only grow, so the size is mTail - mHead.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    // The thread (if any) parked waiting for the other side.
+    private volatile Thread mParkedProducer;
+    private volatile Thread mParkedConsumer;
+
+    public HandoffQueue(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity=" + capacity);
+        mCapacity = capacity;
+        mItems = new AtomicReferenceArray<E>(capacity);
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    // Runs in producer thread. Blocks while the queue is full.
+    public void put(E item) {
+        if (item == null) throw new NullPointerException();
+        long tail = mTail.get();
+        while (tail - mHead.get() >= mCapacity) {
+            mParkedProducer = Thread.currentThread();
+            // Check again after publishing ourselves, otherwise we may miss
+            // the unpark from a take() that ran in between.
+            if (tail - mHead.get() >= mCapacity) LockSupport.park(this);
+            mParkedProducer = null;
+        }
+        mItems.set((int) (tail % mCapacity), item);
+        mTail.set(tail + 1);
+        Thread consumer = mParkedConsumer;
+        if (consumer != null) LockSupport.unpark(consumer);
+    }
+
+    // Runs in consumer thread. Blocks while the queue is empty.
+    public E take() {
+        long head = mHead.get();
+        while (head == mTail.get()) {
+            mParkedConsumer = Thread.currentThread();
+            if (head == mTail.get()) LockSupport.park(this);
+            mParkedConsumer = null;
+        }
+        return remove(head);
+    }
+
+    // Runs in consumer thread. Returns null if the queue is empty.
+    public E poll() {
+        long head = mHead.get();
+        if (head == mTail.get()) return null;
+        return remove(head);
+    }
+
+    // Runs in consumer thread. Returns null if the queue is still empty after
+    // the timeout.
+    public E poll(long timeout, TimeUnit unit) {
+        long head = mHead.get();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (head == mTail.get()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return null;
+            mParkedConsumer = Thread.currentThread();
+            if (head == mTail.get()) LockSupport.parkNanos(this, remaining);
+            mParkedConsumer = null;
+        }
+        return remove(head);
+    }
+
+    private E remove(long head) {
+        int index = (int) (head % mCapacity);
+        E item = mItems.get(index);
+        mItems.set(index, null);
+        mHead.set(head + 1);
+        Thread producer = mParkedProducer;
+        if (producer != null) LockSupport.unpark(producer);
+        return item;
+    }
+}
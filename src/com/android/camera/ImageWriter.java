@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+
+// ImageWriter writes each image to a temp file, syncs it according to the
+// sync policy, and renames it to the final path. So a picture in DCIM is
+// never truncated even if the process is killed in the middle of a write.
+//
+// SYNC_PER_FILE syncs every file before it is renamed. SYNC_PER_BATCH writes
+// a batch of temp files first and syncs and renames them together in
+// flush(), which lets the storage merge the writes. SYNC_ON_PAUSE renames the
+// files right away and syncs them in syncAll(). The page cache survives a
+// process kill, so this is still safe against a crash of the camera, but not
+// against a power loss before syncAll().
+//
+// This class is not thread-safe. It is used by one thread only.
+public class ImageWriter {
+    private static final String TAG = "ImageWriter";
+
+    public static final int SYNC_PER_FILE = 0;
+    public static final int SYNC_PER_BATCH = 1;
+    public static final int SYNC_ON_PAUSE = 2;
+
+    private final int mSyncPolicy;
+    private final SaveJournal mJournal;
+
+    // The paths whose temp files are written but not renamed yet.
+    private final ArrayList<String> mUncommitted = new ArrayList<String>();
+    // The paths renamed but not synced yet.
+    private final ArrayList<String> mUnsynced = new ArrayList<String>();
+    private final ArrayList<String> mFailed = new ArrayList<String>();
+
+    public ImageWriter(int syncPolicy, SaveJournal journal) {
+        mSyncPolicy = syncPolicy;
+        mJournal = journal;
+    }
+
+    // Writes the data for path. Returns false if it fails. With
+    // SYNC_PER_BATCH the file is not at path until flush() is called.
+    public boolean write(String path, byte[] data) {
+        mJournal.begin(path);
+        String temp = Storage.getTempFilepath(path);
+        if (!Storage.writeFile(temp, data, mSyncPolicy == SYNC_PER_FILE)) {
+            new File(temp).delete();
+            return false;
+        }
+        StorageSpaceTracker.instance().debit(path, data.length);
+
+        switch (mSyncPolicy) {
+            case SYNC_PER_BATCH:
+                mUncommitted.add(path);
+                return true;
+            case SYNC_ON_PAUSE:
+                mUnsynced.add(path);
+                break;
+        }
+        return commit(temp, path);
+    }
+
+    // Syncs and renames the files written since the last flush. Returns the
+    // paths which failed. The returned list is only valid until the next call.
+    public ArrayList<String> flush() {
+        mFailed.clear();
+        if (mUncommitted.isEmpty()) return mFailed;
+
+        for (String path : mUncommitted) {
+            if (!Storage.syncFile(Storage.getTempFilepath(path))) mFailed.add(path);
+        }
+        for (String path : mUncommitted) {
+            if (mFailed.contains(path)) {
+                new File(Storage.getTempFilepath(path)).delete();
+            } else if (!commit(Storage.getTempFilepath(path), path)) {
+                mFailed.add(path);
+            }
+        }
+        mUncommitted.clear();
+        mJournal.sync();
+        return mFailed;
+    }
+
+    // Syncs the files which are renamed but not synced yet.
+    public void syncAll() {
+        for (String path : mUnsynced) {
+            Storage.syncFile(path);
+        }
+        mUnsynced.clear();
+        mJournal.sync();
+    }
+
+    private boolean commit(String temp, String path) {
+        if (!new File(temp).renameTo(new File(path))) {
+            Log.e(TAG, "Failed to rename " + temp);
+            new File(temp).delete();
+            return false;
+        }
+        mJournal.written(path);
+        return true;
+    }
+}
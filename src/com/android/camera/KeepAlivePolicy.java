@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+// KeepAlivePolicy decides how long CameraHolder keeps the camera after
+// keep(). It remembers the last few gaps between releasing a kept camera and
+// opening it again, and keeps the camera a bit longer than the longest of
+// them. So a device which switches activities quickly releases the camera
+// sooner, and a slow one does not miss the kept camera. Gaps longer than
+// MAX_KEEP_TIME are not switches, so they are ignored.
+public class KeepAlivePolicy {
+    public static final long DEFAULT_KEEP_TIME = 3000;
+    public static final long MIN_KEEP_TIME = 1000;
+    public static final long MAX_KEEP_TIME = 10000;
+    // The keep time is the longest recent gap plus a quarter and this.
+    private static final long MARGIN = 300;
+    private static final int HISTORY_SIZE = 8;
+
+    private final long[] mGaps = new long[HISTORY_SIZE];
+    private int mCount;
+    private int mNext;
+
+    // Called when the camera is opened gap ms after a kept camera was
+    // released, whether it was still kept or not.
+    public synchronized void onReopened(long gap) {
+        if (gap < 0 || gap > MAX_KEEP_TIME) return;
+        mGaps[mNext] = gap;
+        mNext = (mNext + 1) % HISTORY_SIZE;
+        if (mCount < HISTORY_SIZE) mCount++;
+    }
+
+    public synchronized long getKeepTime() {
+        if (mCount == 0) return DEFAULT_KEEP_TIME;
+        long max = 0;
+        for (int i = 0; i < mCount; i++) {
+            max = Math.max(max, mGaps[i]);
+        }
+        long keepTime = max + max / 4 + MARGIN;
+        return Math.max(MIN_KEEP_TIME, Math.min(MAX_KEEP_TIME, keepTime));
+    }
+}
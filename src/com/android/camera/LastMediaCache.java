@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.MediaStore.Images;
+import android.provider.MediaStore.Video;
+import android.util.Log;
+
+import java.util.HashMap;
+
+// LastMediaCache remembers the thumbnail of the newest image or video of
+// each bucket, so the thumbnail button can be updated without querying
+// MediaStore. The entries are put by our own saves and marked dirty by a
+// ContentObserver on the images and videos. A dirty entry is checked with
+// a cheap query of the newest uri, and the thumbnail is only fetched again
+// if the newest media has changed.
+//
+// Camera, VideoCamera and PanoramaActivity share the cache, so switching
+// between them does not query MediaStore either.
+public class LastMediaCache {
+    private static final String TAG = "LastMediaCache";
+
+    private static LastMediaCache sInstance;
+
+    private static class Entry {
+        // null if the bucket is known to be empty.
+        Thumbnail thumbnail;
+        boolean dirty;
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    // Increased for each change notification. Used to find out if a change
+    // arrives while we query MediaStore.
+    private int mGeneration;
+
+    public static synchronized LastMediaCache instance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LastMediaCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LastMediaCache(Context context) {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate();
+            }
+        };
+        ContentResolver resolver = context.getContentResolver();
+        resolver.registerContentObserver(Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+        resolver.registerContentObserver(Video.Media.EXTERNAL_CONTENT_URI, true, observer);
+    }
+
+    // Returns the thumbnail of the newest media in the bucket, or null if
+    // the bucket is empty. candidate is a thumbnail the caller already has,
+    // for example one loaded from a file. It is returned if it is still the
+    // newest, which saves fetching the thumbnail from MediaStore.
+    public Thumbnail getLastThumbnail(ContentResolver resolver, String bucketId,
+            Thumbnail candidate) {
+        int generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(bucketId);
+            if (entry != null) {
+                if (!entry.dirty) return entry.thumbnail;
+                if (entry.thumbnail != null) candidate = entry.thumbnail;
+            }
+            generation = mGeneration;
+        }
+
+        Thumbnail thumbnail;
+        Uri last = Thumbnail.getLastMediaUri(resolver, bucketId);
+        if (last == null) {
+            thumbnail = null;
+        } else if (candidate != null && last.equals(candidate.getUri())) {
+            thumbnail = candidate;
+        } else {
+            Log.v(TAG, "Fetch the last thumbnail of bucket " + bucketId);
+            thumbnail = Thumbnail.getLastThumbnail(resolver, bucketId);
+        }
+
+        synchronized (this) {
+            // If MediaStore changed during the queries, keep the entry dirty
+            // so the next call checks again.
+            put(bucketId, thumbnail, generation != mGeneration);
+        }
+        return thumbnail;
+    }
+
+    // Puts the thumbnail of media we just saved into the bucket.
+    public synchronized void put(String bucketId, Thumbnail thumbnail) {
+        put(bucketId, thumbnail, false);
+    }
+
+    // Marks all the entries dirty.
+    public synchronized void invalidate() {
+        mGeneration++;
+        for (Entry entry : mEntries.values()) {
+            entry.dirty = true;
+        }
+    }
+
+    private void put(String bucketId, Thumbnail thumbnail, boolean dirty) {
+        Entry entry = mEntries.get(bucketId);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(bucketId, entry);
+        }
+        entry.thumbnail = thumbnail;
+        entry.dirty = dirty;
+    }
+}
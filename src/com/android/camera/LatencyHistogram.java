@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyHistogram counts latencies in a fixed set of buckets, so any number
+// of samples takes the same memory and recording never allocates or locks.
+// Values below 2 * SUB_BUCKETS have a bucket each. Above that, every power of
+// two is split into SUB_BUCKETS buckets, so a percentile is off by at most
+// 1 / SUB_BUCKETS (about 6%) of its value.
+//
+// The unit of the values is up to the caller. LatencyTracker uses
+// microseconds.
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values above 2^MAX_BITS - 1 are counted in the last bucket.
+    private static final int MAX_BITS = 32;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKET_COUNT = getBucketIndex(MAX_VALUE) + 1;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    // Can be called from any thread.
+    public void record(long value) {
+        if (value < 0) value = 0;
+        if (value > MAX_VALUE) value = MAX_VALUE;
+        mBuckets.incrementAndGet(getBucketIndex(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        do {
+            max = mMax.get();
+        } while (value > max && !mMax.compareAndSet(max, value));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    // Returns the value below which the given fraction (0 to 1) of the
+    // samples fall, rounded up to the end of its bucket. Returns 0 if there
+    // are no samples. If samples are recorded at the same time, the result is
+    // taken from a slightly inconsistent view, which is fine for statistics.
+    public long getPercentile(double fraction) {
+        long count = mCount.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) return Math.min(getBucketMax(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        // The shift which brings value into [SUB_BUCKETS, 2 * SUB_BUCKETS).
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+    }
+
+    // Returns the largest value counted in the bucket.
+    static long getBucketMax(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long min = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return min + (1L << shift) - 1;
+    }
+}
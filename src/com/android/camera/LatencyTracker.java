@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// LatencyTracker collects the latency of each step of taking and saving a
+// picture into a LatencyHistogram per span, so the latency tests can read
+// the distributions of many shots. The timestamps come from System.nanoTime(),
+// which is monotonic, and the histograms are in microseconds.
+//
+// A span which is only open once at a time (like the shutter lag) can use
+// begin() and end(). Spans which overlap, like the save stages working on
+// several pictures, keep their own start time and call record().
+public class LatencyTracker {
+    // From autoFocus() to the focus callback.
+    public static final int SPAN_FOCUS = 0;
+    // From capture() to the shutter callback.
+    public static final int SPAN_SHUTTER = 1;
+    // From the shutter callback to the raw callback.
+    public static final int SPAN_RAW = 2;
+    // From the shutter callback to the postview callback.
+    public static final int SPAN_POSTVIEW = 3;
+    // From the shutter callback to the jpeg callback.
+    public static final int SPAN_JPEG = 4;
+    // The time the jpeg callback takes.
+    public static final int SPAN_JPEG_CALLBACK = 5;
+    // The ImageSaver stages, for each picture.
+    public static final int SPAN_SAVE_WRITE = 6;
+    public static final int SPAN_SAVE_INDEX = 7;
+    public static final int SPAN_SAVE_THUMBNAIL = 8;
+    public static final int SPAN_COUNT = 9;
+
+    private static final String[] SPAN_NAMES = {
+        "focus", "shutter", "raw", "postview", "jpeg", "jpeg_callback",
+        "save_write", "save_index", "save_thumbnail",
+    };
+
+    private static LatencyTracker sInstance;
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[SPAN_COUNT];
+    // The start time of the spans opened by begin(), or 0.
+    private final AtomicLongArray mStartTimes = new AtomicLongArray(SPAN_COUNT);
+
+    public static synchronized LatencyTracker instance() {
+        if (sInstance == null) sInstance = new LatencyTracker();
+        return sInstance;
+    }
+
+    private LatencyTracker() {
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    public static String getSpanName(int span) {
+        return SPAN_NAMES[span];
+    }
+
+    public void begin(int span) {
+        mStartTimes.set(span, now());
+    }
+
+    // Ends the span opened by begin() and returns its length in ms. Returns
+    // -1 and records nothing if the span is not open, for example if the
+    // camera sends a callback we did not wait for.
+    public long end(int span) {
+        long start = mStartTimes.getAndSet(span, 0);
+        if (start == 0) return -1;
+        return record(span, start);
+    }
+
+    // Records a span which started at the given time and ends now. Returns
+    // its length in ms.
+    public long record(int span, long startTime) {
+        long micros = (now() - startTime) / 1000;
+        mHistograms[span].record(micros);
+        return micros / 1000;
+    }
+
+    public LatencyHistogram getHistogram(int span) {
+        return mHistograms[span];
+    }
+
+    public void reset() {
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            mStartTimes.set(i, 0);
+            mHistograms[i].reset();
+        }
+    }
+
+    // Writes a line for each span which has samples. The times are in ms.
+    public void dump(Writer out) throws IOException {
+        out.write("span count mean p50 p95 p99 max\n");
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            LatencyHistogram h = mHistograms[i];
+            if (h.getCount() == 0) continue;
+            out.write(String.format(Locale.US, "%s %d %.1f %.1f %.1f %.1f %.1f\n",
+                    SPAN_NAMES[i], h.getCount(), h.getMean() / 1000f,
+                    h.getPercentile(0.5) / 1000f, h.getPercentile(0.95) / 1000f,
+                    h.getPercentile(0.99) / 1000f, h.getMax() / 1000f));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.hardware.Camera.Parameters;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// ParameterCache saves the camera device round trips of getParameters() and
+// setParameters().
+//
+// read() returns the Parameters of the device, and only asks the device
+// again after reload(). The caller changes the returned Parameters and
+// passes them to apply(), which compares the values with the ones last sent
+// to the device. setParameters() is only called if a value has changed, and
+// the changed keys are logged.
+//
+// If the device may have changed a value by itself, call invalidate() so
+// the next apply() sends everything.
+//
+// The parameters are sent through a CameraCommandQueue, so apply() does not
+// wait for the device, and the updates queued behind each other coalesce.
+public class ParameterCache {
+    private static final String TAG = "ParameterCache";
+
+    // Why the parameters are applied, for the statistics.
+    public static final int REASON_ZOOM = 0;
+    public static final int REASON_FOCUS = 1;
+    public static final int REASON_OTHER = 2;
+    private static final int REASON_COUNT = 3;
+    private static final String[] REASON_NAMES = {"zoom", "focus", "other"};
+
+    private final CameraCommandQueue mQueue;
+    private Parameters mParameters;
+    // The values last sent to the device, or empty if unknown.
+    private HashMap<String, String> mApplied = new HashMap<String, String>();
+    private HashMap<String, String> mPending = new HashMap<String, String>();
+    private final ArrayList<String> mChangedKeys = new ArrayList<String>();
+
+    private final int[] mAppliedCounts = new int[REASON_COUNT];
+    private final int[] mSkippedCounts = new int[REASON_COUNT];
+
+    public ParameterCache(CameraCommandQueue queue) {
+        mQueue = queue;
+    }
+
+    // Starts caching the parameters of a newly opened camera. The parameters
+    // are read at the next read().
+    public void reset() {
+        mParameters = null;
+        mApplied.clear();
+    }
+
+    public Parameters read() {
+        if (mParameters == null) reload();
+        return mParameters;
+    }
+
+    // Reads the parameters from the device, for example after a change which
+    // makes the device change other values too.
+    public Parameters reload() {
+        mParameters = mQueue.getParameters();
+        parse(mParameters.flatten(), mApplied);
+        return mParameters;
+    }
+
+    // Forgets the values sent to the device, so the next apply() sends the
+    // parameters even if they have not changed.
+    public void invalidate() {
+        mApplied.clear();
+    }
+
+    // Queues the parameters for the device if any value differs from what
+    // was sent before. Returns true if they are queued.
+    public boolean apply(Parameters parameters, int reason) {
+        String flattened = parameters.flatten();
+        parse(flattened, mPending);
+        if (mPending.equals(mApplied)) {
+            mSkippedCounts[reason]++;
+            return false;
+        }
+
+        if (!mApplied.isEmpty()) {
+            mChangedKeys.clear();
+            for (String key : mPending.keySet()) {
+                if (!mPending.get(key).equals(mApplied.get(key))) mChangedKeys.add(key);
+            }
+            Log.v(TAG, "Apply " + REASON_NAMES[reason] + ": " + mChangedKeys);
+        }
+        mQueue.setParameters(flattened);
+        mParameters = parameters;
+        HashMap<String, String> t = mApplied;
+        mApplied = mPending;
+        mPending = t;
+        mAppliedCounts[reason]++;
+        return true;
+    }
+
+    public int getAppliedCount(int reason) {
+        return mAppliedCounts[reason];
+    }
+
+    public int getSkippedCount(int reason) {
+        return mSkippedCounts[reason];
+    }
+
+    public String getStats() {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < REASON_COUNT; i++) {
+            if (i > 0) b.append(", ");
+            b.append(REASON_NAMES[i]).append(": applied ").append(mAppliedCounts[i])
+                    .append(" skipped ").append(mSkippedCounts[i]);
+        }
+        return b.toString();
+    }
+
+    // Parses the "key1=value1;key2=value2" format of Parameters.flatten().
+    static void parse(String flattened, HashMap<String, String> out) {
+        out.clear();
+        int start = 0;
+        int length = flattened.length();
+        while (start < length) {
+            int end = flattened.indexOf(';', start);
+            if (end < 0) end = length;
+            int equal = flattened.indexOf('=', start);
+            if (equal > start && equal < end) {
+                out.put(flattened.substring(start, equal), flattened.substring(equal + 1, end));
+            }
+            start = end + 1;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.hardware.Camera.Parameters;
+import android.hardware.Camera.PreviewCallback;
+import android.hardware.Camera.Size;
+import android.util.Log;
+
+// PreviewFrameGrabber takes the next preview frame and scales it down to a
+// small bitmap. The video thumbnail is made from it, which is much cheaper
+// than decoding the recorded file.
+//
+// The camera writes the frame into a buffer given by addCallbackBuffer().
+// The buffer and the scaled pixels are allocated once, and again only when
+// the preview size changes.
+public class PreviewFrameGrabber implements PreviewCallback {
+    private static final String TAG = "PreviewFrameGrabber";
+
+    public interface Listener {
+        // Called with the scaled frame, or null if the grab is cancelled.
+        public void onFrameGrabbed(Bitmap frame);
+    }
+
+    private android.hardware.Camera mCamera;
+    private Listener mListener;
+    private byte[] mBuffer;
+    private int[] mPixels;
+    private int mWidth;
+    private int mHeight;
+    private int mStep;
+
+    // Asks the camera for the next preview frame, scaled down to at least
+    // targetWidth. The parameters must be the ones of the running preview.
+    // Returns false if the frame cannot be grabbed.
+    public boolean grab(android.hardware.Camera camera, Parameters parameters,
+            int targetWidth, Listener listener) {
+        cancel();
+        if (camera == null || targetWidth <= 0
+                || parameters.getPreviewFormat() != ImageFormat.NV21) {
+            return false;
+        }
+
+        Size size = parameters.getPreviewSize();
+        int bufferSize = size.width * size.height * 3 / 2;
+        if (mBuffer == null || mBuffer.length != bufferSize) mBuffer = new byte[bufferSize];
+        mWidth = size.width;
+        mHeight = size.height;
+        mStep = Math.max(1, mWidth / targetWidth);
+        int pixelCount = (mWidth / mStep) * (mHeight / mStep);
+        if (mPixels == null || mPixels.length != pixelCount) mPixels = new int[pixelCount];
+
+        try {
+            camera.addCallbackBuffer(mBuffer);
+            camera.setPreviewCallbackWithBuffer(this);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Cannot grab the preview frame", e);
+            return false;
+        }
+        mCamera = camera;
+        mListener = listener;
+        return true;
+    }
+
+    // Stops waiting for the frame. The listener gets null.
+    public void cancel() {
+        if (mListener == null) return;
+        Listener listener = mListener;
+        stop();
+        listener.onFrameGrabbed(null);
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+        if (mListener == null || data == null) return;
+        Listener listener = mListener;
+        stop();
+
+        int width = mWidth / mStep;
+        int height = mHeight / mStep;
+        scaleNv21(data, mWidth, mHeight, mStep, mPixels);
+        Bitmap frame = BitmapPool.instance().get(width, height, Bitmap.Config.ARGB_8888);
+        if (frame == null) frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        frame.setPixels(mPixels, 0, width, 0, 0, width, height);
+        listener.onFrameGrabbed(frame);
+    }
+
+    private void stop() {
+        try {
+            mCamera.setPreviewCallbackWithBuffer(null);
+        } catch (RuntimeException e) {
+            // The camera may be released already.
+        }
+        mCamera = null;
+        mListener = null;
+    }
+
+    // Converts every step-th pixel of every step-th row of the NV21 frame to
+    // ARGB. The output is (width / step) x (height / step).
+    public static void scaleNv21(byte[] nv21, int width, int height, int step, int[] out) {
+        int outWidth = width / step;
+        int outHeight = height / step;
+        int frameSize = width * height;
+        int i = 0;
+        for (int row = 0; row < outHeight; row++) {
+            int y = row * step;
+            int yOffset = y * width;
+            int uvOffset = frameSize + (y >> 1) * width;
+            for (int col = 0; col < outWidth; col++) {
+                int x = col * step;
+                int luma = Math.max(0, (nv21[yOffset + x] & 0xff) - 16);
+                int uv = uvOffset + (x & ~1);
+                int v = (nv21[uv] & 0xff) - 128;
+                int u = (nv21[uv + 1] & 0xff) - 128;
+
+                int y1192 = 1192 * luma;
+                int r = clamp(y1192 + 1634 * v);
+                int g = clamp(y1192 - 833 * v - 400 * u);
+                int b = clamp(y1192 + 2066 * u);
+                out[i++] = 0xff000000 | ((r << 6) & 0xff0000)
+                        | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(262143, value));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.graphics.PixelFormat;
+import android.hardware.Camera.PreviewCallback;
+import android.os.SystemClock;
+import android.util.Log;
+
+// PreviewFrameRing keeps the last few preview frames, so a picture can be
+// taken from the frame shown when the shutter was pressed (zero shutter lag).
+// The frame buffers are allocated once and passed between the camera and
+// the ring with setPreviewCallbackWithBuffer() and addCallbackBuffer(). Each
+// buffer is in one of three places:
+// (1) queued in the camera, waiting to be filled,
+// (2) in the ring, holding one of the last frames, or
+// (3) taken by acquireFrame(), until it is given back by releaseFrame().
+// When a new frame arrives and the ring is full, the oldest frame goes back
+// to the camera, so nothing is allocated while the preview runs.
+public class PreviewFrameRing implements PreviewCallback {
+    private static final String TAG = "PreviewFrameRing";
+
+    // The buffers queued in the camera when the ring is full. With fewer
+    // the camera may drop frames while we handle the callback.
+    private static final int CAMERA_BUFFERS = 2;
+    private static final int MIN_DEPTH = CAMERA_BUFFERS + 1;
+    private static final int MAX_DEPTH = 8;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFormat;
+    private final byte[][] mBuffers;
+    private final long[] mTimestamps;
+    private final boolean[] mAcquired;
+    // The indices of the frames in the ring, the oldest first.
+    private final int[] mRing;
+    private final int mRingCapacity;
+    private int mRingSize;
+
+    private android.hardware.Camera mCamera;
+
+    // Returns the number of frames which fit in the heap budget, or 0 if
+    // there is no room for the smallest useful ring.
+    public static int getDepth(int width, int height, int format, long budget) {
+        int frameSize = getFrameSize(width, height, format);
+        long depth = budget / frameSize;
+        if (depth < MIN_DEPTH) return 0;
+        return (int) Math.min(depth, MAX_DEPTH);
+    }
+
+    public static int getFrameSize(int width, int height, int format) {
+        PixelFormat pixelInfo = new PixelFormat();
+        PixelFormat.getPixelFormatInfo(format, pixelInfo);
+        return width * height * pixelInfo.bitsPerPixel / 8;
+    }
+
+    public PreviewFrameRing(int width, int height, int format, int depth) {
+        if (depth < MIN_DEPTH) throw new IllegalArgumentException("depth=" + depth);
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        int frameSize = getFrameSize(width, height, format);
+        mBuffers = new byte[depth][];
+        for (int i = 0; i < depth; i++) {
+            mBuffers[i] = new byte[frameSize];
+        }
+        mTimestamps = new long[depth];
+        mAcquired = new boolean[depth];
+        mRingCapacity = depth - CAMERA_BUFFERS;
+        mRing = new int[mRingCapacity];
+        Log.v(TAG, "Allocated " + depth + " frames of " + width + "x" + height);
+    }
+
+    public boolean matches(int width, int height, int format) {
+        return mWidth == width && mHeight == height && mFormat == format;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    // Runs in main thread. Starts receiving the preview frames of the camera.
+    // Must be called before the preview is started.
+    public synchronized void attach(android.hardware.Camera camera) {
+        mCamera = camera;
+        mRingSize = 0;
+        camera.setPreviewCallbackWithBuffer(this);
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (!mAcquired[i]) camera.addCallbackBuffer(mBuffers[i]);
+        }
+    }
+
+    // Runs in main thread. Stops receiving the preview frames. This also
+    // takes back the buffers queued in the camera.
+    public synchronized void detach() {
+        if (mCamera == null) return;
+        mCamera.setPreviewCallbackWithBuffer(null);
+        mCamera = null;
+        mRingSize = 0;
+    }
+
+    // Runs in main thread
+    @Override
+    public synchronized void onPreviewFrame(byte[] data, android.hardware.Camera camera) {
+        if (mCamera == null || data == null) return;
+        int index = indexOf(data);
+        if (index < 0) return;  // not one of ours
+
+        mTimestamps[index] = SystemClock.uptimeMillis();
+        if (mRingSize == mRingCapacity) {
+            int oldest = mRing[0];
+            System.arraycopy(mRing, 1, mRing, 0, mRingSize - 1);
+            mRingSize--;
+            mCamera.addCallbackBuffer(mBuffers[oldest]);
+        }
+        mRing[mRingSize++] = index;
+    }
+
+    public synchronized boolean hasFrame() {
+        return mRingSize > 0;
+    }
+
+    // Takes the frame which arrived closest to the given uptime out of the
+    // ring. Returns the index of the frame, or -1 if the ring is empty. The
+    // frame stays untouched until it is given to releaseFrame().
+    public synchronized int acquireFrame(long uptime) {
+        if (mRingSize == 0) return -1;
+        int best = 0;
+        for (int i = 1; i < mRingSize; i++) {
+            if (Math.abs(mTimestamps[mRing[i]] - uptime)
+                    < Math.abs(mTimestamps[mRing[best]] - uptime)) {
+                best = i;
+            }
+        }
+        int index = mRing[best];
+        System.arraycopy(mRing, best + 1, mRing, best, mRingSize - best - 1);
+        mRingSize--;
+        mAcquired[index] = true;
+        Log.v(TAG, "Acquired frame " + (mTimestamps[index] - uptime) + "ms from the shutter");
+        return index;
+    }
+
+    // The data of a frame returned by acquireFrame().
+    public byte[] getFrame(int index) {
+        return mBuffers[index];
+    }
+
+    // Can be called from any thread. Gives the frame back to the camera.
+    public synchronized void releaseFrame(int index) {
+        if (!mAcquired[index]) return;
+        mAcquired[index] = false;
+        // If we are detached, the buffer is queued at the next attach().
+        if (mCamera != null) mCamera.addCallbackBuffer(mBuffers[index]);
+    }
+
+    private int indexOf(byte[] data) {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mBuffers[i] == data) return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+// SaveBudget limits the number of bytes of jpeg data held by the images which
+// are waiting to be saved. The budget is a fraction of the heap limit, so a
+// device with a big sensor keeps fewer pictures in memory than a device with
+// a small one.
+public class SaveBudget {
+    private static final String TAG = "SaveBudget";
+
+    // The fraction of the heap limit the pending jpegs can use.
+    private static final float HEAP_FRACTION = 0.25f;
+    // A rough size of a high quality camera jpeg. It is used to estimate the
+    // size of the next picture before it is taken.
+    private static final float JPEG_BYTES_PER_PIXEL = 0.5f;
+
+    private final long mHeapLimit;
+    private long mMaxBytes;
+    private long mUsedBytes;
+    private long mEstimatedPictureBytes;
+
+    public SaveBudget() {
+        this(Runtime.getRuntime().maxMemory());
+    }
+
+    public SaveBudget(long heapLimit) {
+        mHeapLimit = heapLimit;
+        mMaxBytes = (long) (heapLimit * HEAP_FRACTION);
+    }
+
+    // Sets the size of the pictures which will be taken. It is used to
+    // estimate the size of the next jpeg.
+    public synchronized void setPictureSize(int width, int height) {
+        long estimated = (long) (width * (long) height * JPEG_BYTES_PER_PIXEL);
+        if (estimated == mEstimatedPictureBytes) return;
+        mEstimatedPictureBytes = estimated;
+        // We always need room for at least one picture.
+        mMaxBytes = Math.max((long) (mHeapLimit * HEAP_FRACTION), estimated);
+        Log.v(TAG, "max=" + mMaxBytes + ", estimated picture=" + estimated);
+    }
+
+    // Returns true if there is room for one more picture of the current size.
+    public synchronized boolean hasRoomForPicture() {
+        return mUsedBytes == 0 || mUsedBytes + mEstimatedPictureBytes <= mMaxBytes;
+    }
+
+    // Takes the bytes from the budget. Blocks until there is enough room. If
+    // nothing is used, it never blocks even if the bytes are more than the
+    // budget. Otherwise a huge jpeg could never be saved.
+    public synchronized void acquire(int bytes) {
+        while (mUsedBytes > 0 && mUsedBytes + bytes > mMaxBytes) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+        mUsedBytes += bytes;
+    }
+
+    public synchronized void release(int bytes) {
+        mUsedBytes -= bytes;
+        notifyAll();  // the main thread may wait in acquire
+    }
+
+    public synchronized long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    // Returns the fraction of the budget in use, from 0 to 1.
+    public synchronized float getOccupancy() {
+        return Math.min(1f, (float) mUsedBytes / mMaxBytes);
+    }
+
+    // Returns how many more pictures of the current size fit in the budget.
+    public synchronized int getRemainingPictures() {
+        if (mEstimatedPictureBytes == 0) return 0;
+        return (int) (Math.max(0, mMaxBytes - mUsedBytes) / mEstimatedPictureBytes);
+    }
+}
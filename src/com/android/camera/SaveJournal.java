@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// SaveJournal is a small append-only log of the images being saved. Each
+// image gets up to three records:
+//   B <path>  the temp file of path is about to be written,
+//   W <path>  the temp file is renamed to path,
+//   I <path>  path is inserted into MediaStore.
+// If the process is killed in the middle of a burst, recover() deletes the
+// temp files which were never renamed and asks the media scanner to index
+// the images which were written but not inserted.
+public class SaveJournal {
+    private static final String TAG = "SaveJournal";
+
+    public static final String JOURNAL_FILENAME = "save_journal";
+
+    private static final char BEGIN = 'B';
+    private static final char WRITTEN = 'W';
+    private static final char INDEXED = 'I';
+
+    private final Context mContext;
+    private final File mFile;
+    private FileOutputStream mOut;
+    // The images written but not indexed yet.
+    private final HashSet<String> mUnindexed = new HashSet<String>();
+
+    public SaveJournal(Context context) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), JOURNAL_FILENAME);
+    }
+
+    public synchronized void begin(String path) {
+        append(BEGIN, path);
+    }
+
+    public synchronized void written(String path) {
+        mUnindexed.add(path);
+        append(WRITTEN, path);
+    }
+
+    public synchronized void indexed(String path) {
+        mUnindexed.remove(path);
+        append(INDEXED, path);
+    }
+
+    // Makes sure the records reach the storage.
+    public synchronized void sync() {
+        if (mOut == null) return;
+        try {
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to sync journal", e);
+        }
+    }
+
+    // Closes the journal. The journal is deleted if all the images written
+    // are indexed, otherwise it is kept for recover().
+    public synchronized void close() {
+        Util.closeSilently(mOut);
+        mOut = null;
+        if (mUnindexed.isEmpty()) mFile.delete();
+    }
+
+    // Finishes the work left by a previous process and clears the journal.
+    // This must be called before any new record is added.
+    public synchronized void recover() {
+        if (!mFile.exists()) return;
+
+        HashSet<String> begun = new HashSet<String>();
+        HashSet<String> written = new HashSet<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A record cut by the kill is shorter than this.
+                if (line.length() < 3) continue;
+                String path = line.substring(2);
+                switch (line.charAt(0)) {
+                    case BEGIN:
+                        begun.add(path);
+                        break;
+                    case WRITTEN:
+                        begun.remove(path);
+                        written.add(path);
+                        break;
+                    case INDEXED:
+                        written.remove(path);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read journal", e);
+        } finally {
+            Util.closeSilently(reader);
+        }
+
+        for (String path : begun) {
+            File temp = new File(Storage.getTempFilepath(path));
+            if (temp.delete()) Log.i(TAG, "Deleted orphaned temp file " + temp);
+        }
+
+        ArrayList<String> orphans = new ArrayList<String>();
+        for (String path : written) {
+            if (new File(path).exists()) orphans.add(path);
+        }
+        if (!orphans.isEmpty()) {
+            Log.i(TAG, "Indexing " + orphans.size() + " orphaned images");
+            MediaScannerConnection.scanFile(mContext,
+                    orphans.toArray(new String[orphans.size()]), null, null);
+        }
+        mFile.delete();
+    }
+
+    private void append(char type, String path) {
+        try {
+            if (mOut == null) mOut = new FileOutputStream(mFile, true);
+            mOut.write((type + " " + path + "\n").getBytes());
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write journal", e);
+        }
+    }
+}
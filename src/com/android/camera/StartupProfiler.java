@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+// StartupProfiler records a timeline of the phases of the camera startup.
+// onCreate() runs the camera open and preview threads in parallel with the
+// UI setup, so each phase is recorded with the thread it ran on. The
+// timeline starts at start() and is written to the trace file, if one is
+// set, by finish().
+//
+// Each line of the trace file is a phase: the thread name, the phase name,
+// the start time and the duration, in ms from start(). The tests read it
+// with readDurations() and compare it with a baseline.
+public class StartupProfiler {
+    private static final String TAG = "StartupProfiler";
+
+    // The phases after this are not recorded. A startup has about a dozen.
+    private static final int MAX_PHASES = 64;
+
+    private static StartupProfiler sInstance;
+
+    private final String[] mThreads = new String[MAX_PHASES];
+    private final String[] mPhases = new String[MAX_PHASES];
+    private final long[] mStartTimes = new long[MAX_PHASES];
+    private final long[] mEndTimes = new long[MAX_PHASES];
+    private int mCount;
+    private long mOrigin;
+    private boolean mRunning;
+    private File mTraceFile;
+
+    public static synchronized StartupProfiler instance() {
+        if (sInstance == null) sInstance = new StartupProfiler();
+        return sInstance;
+    }
+
+    // Sets the file the next timeline is written to. null (the default)
+    // turns off writing.
+    public synchronized void setTraceFile(File file) {
+        mTraceFile = file;
+    }
+
+    // Starts a new timeline.
+    public synchronized void start() {
+        mCount = 0;
+        mOrigin = System.nanoTime();
+        mRunning = true;
+    }
+
+    // Begins a phase in the current thread. Returns the id to pass to end(),
+    // or -1 if the phase is not recorded.
+    public synchronized int begin(String phase) {
+        if (!mRunning || mCount == MAX_PHASES) return -1;
+        int id = mCount++;
+        mThreads[id] = Thread.currentThread().getName();
+        mPhases[id] = phase;
+        mStartTimes[id] = System.nanoTime();
+        mEndTimes[id] = 0;
+        return id;
+    }
+
+    public synchronized void end(int id) {
+        if (!mRunning || id < 0 || id >= mCount) return;
+        mEndTimes[id] = System.nanoTime();
+    }
+
+    // Ends the timeline and writes it to the trace file. The phases which
+    // have not ended are left out.
+    public void finish() {
+        File file;
+        StringBuilder trace = new StringBuilder();
+        synchronized (this) {
+            if (!mRunning) return;
+            mRunning = false;
+            file = mTraceFile;
+            if (file == null) return;
+            for (int i = 0; i < mCount; i++) {
+                if (mEndTimes[i] == 0) continue;
+                trace.append(String.format(Locale.US, "%s\t%s\t%.1f\t%.1f\n",
+                        mThreads[i], mPhases[i], (mStartTimes[i] - mOrigin) / 1e6,
+                        (mEndTimes[i] - mStartTimes[i]) / 1e6));
+            }
+        }
+
+        // The trace is written to a temp file and renamed, so a reader
+        // waiting for the file never sees it half-written.
+        File temp = new File(file.getPath() + ".tmp");
+        BufferedWriter out = null;
+        try {
+            out = new BufferedWriter(new FileWriter(temp));
+            out.write(trace.toString());
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) throw new IOException("Cannot rename " + temp);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write " + file, e);
+            temp.delete();
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
+
+    // Reads a trace file and returns the duration of each phase in ms. The
+    // durations of a phase which ran more than once are added. Returns null
+    // if the file cannot be read.
+    public static HashMap<String, Float> readDurations(File file) {
+        HashMap<String, Float> durations = new HashMap<String, Float>();
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 4) continue;
+                Float total = durations.get(fields[1]);
+                float duration = Float.parseFloat(fields[3]);
+                durations.put(fields[1], (total == null) ? duration : total + duration);
+            }
+            return durations;
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + file, e);
+            return null;
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Bad trace file " + file, e);
+            return null;
+        } finally {
+            Util.closeSilently(in);
+        }
+    }
+}
@@ -16,18 +16,27 @@
 
 package com.android.camera;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -42,7 +51,15 @@ public class Storage {
 
     public static Uri addImage(ContentResolver resolver, String storage, String title, long date,
                 Location location, int orientation, byte[] jpeg, int width, int height) {
-        // Save the image.
+        String path = writeImage(storage, title, jpeg);
+        if (path == null) return null;
+        return insertImage(resolver, path, title, date, location, orientation,
+                jpeg.length, width, height);
+    }
+
+    // Saves the image to storage. Returns the path of the file, or null if it
+    // fails.
+    public static String writeImage(String storage, String title, byte[] jpeg) {
         String path = generateFilepath(storage, title);
         FileOutputStream out = null;
         try {
@@ -57,24 +74,55 @@ public class Storage {
             } catch (Exception e) {
             }
         }
+        StorageSpaceTracker.instance().debit(path, jpeg.length);
+        return path;
+    }
 
-        // Insert into MediaStore.
-        ContentValues values = new ContentValues(9);
-        values.put(ImageColumns.TITLE, title);
-        values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
-        values.put(ImageColumns.DATE_TAKEN, date);
-        values.put(ImageColumns.MIME_TYPE, "image/jpeg");
-        values.put(ImageColumns.ORIENTATION, orientation);
-        values.put(ImageColumns.DATA, path);
-        values.put(ImageColumns.SIZE, jpeg.length);
-        values.put(ImageColumns.WIDTH, width);
-        values.put(ImageColumns.HEIGHT, height);
+    // Writes the data to path through a FileChannel. If sync is true, the
+    // data is synced to the storage before this returns.
+    public static boolean writeFile(String path, byte[] data, boolean sync) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(path);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) channel.force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + path, e);
+            return false;
+        } finally {
+            Util.closeSilently(out);
+        }
+    }
 
-        if (location != null) {
-            values.put(ImageColumns.LATITUDE, location.getLatitude());
-            values.put(ImageColumns.LONGITUDE, location.getLongitude());
+    // Syncs a file which is already written and closed.
+    public static boolean syncFile(String path) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(path, "rw");
+            file.getChannel().force(false);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to sync " + path, e);
+            return false;
+        } finally {
+            Util.closeSilently(file);
         }
+    }
+
+    // Inserts an image which is already saved at path into MediaStore.
+    public static Uri insertImage(ContentResolver resolver, String path, String title,
+            long date, Location location, int orientation, int size, int width, int height) {
+        return insert(resolver, getImageValues(path, title, date, location, orientation,
+                size, width, height));
+    }
 
+    // Inserts an image into MediaStore. Returns null if it fails.
+    public static Uri insert(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
             uri = resolver.insert(Images.Media.EXTERNAL_CONTENT_URI, values);
@@ -89,6 +137,54 @@ public class Storage {
         return uri;
     }
 
+    // Inserts several images into MediaStore with one applyBatch call.
+    // Returns the uris in the same order. An element is null if the image
+    // cannot be inserted.
+    public static Uri[] insertImages(ContentResolver resolver, List<ContentValues> values) {
+        Uri[] uris = new Uri[values.size()];
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < results.length && i < uris.length; i++) {
+                uris[i] = results[i].uri;
+            }
+            return uris;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to batch write MediaStore" + th);
+        }
+
+        // Insert them one by one, so one bad image does not lose the others.
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = insert(resolver, values.get(i));
+        }
+        return uris;
+    }
+
+    public static ContentValues getImageValues(String path, String title, long date,
+            Location location, int orientation, int size, int width, int height) {
+        ContentValues values = new ContentValues(11);
+        values.put(ImageColumns.TITLE, title);
+        values.put(ImageColumns.DISPLAY_NAME, title + ".jpg");
+        values.put(ImageColumns.DATE_TAKEN, date);
+        values.put(ImageColumns.MIME_TYPE, "image/jpeg");
+        values.put(ImageColumns.ORIENTATION, orientation);
+        values.put(ImageColumns.DATA, path);
+        values.put(ImageColumns.SIZE, size);
+        values.put(ImageColumns.WIDTH, width);
+        values.put(ImageColumns.HEIGHT, height);
+
+        if (location != null) {
+            values.put(ImageColumns.LATITUDE, location.getLatitude());
+            values.put(ImageColumns.LONGITUDE, location.getLongitude());
+        }
+        return values;
+    }
+
     public static String generateDCIM(String storage) {
         return new File(storage, Environment.DIRECTORY_DCIM).toString();
     }
@@ -101,6 +197,11 @@ public class Storage {
         return generateDirectory(storage) + '/' + title + ".jpg";
     }
 
+    // The temp file an image is written to before it is renamed to path.
+    public static String getTempFilepath(String path) {
+        return path + ".tmp";
+    }
+
     public static String generateBucketId(String storage) {
         // Match the code in MediaProvider.computeBucketValues().
         return String.valueOf(generateDirectory(storage).toLowerCase().hashCode());
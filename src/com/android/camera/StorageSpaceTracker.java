@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+// StorageSpaceTracker keeps track of the available space of the storage
+// without calling Storage.getAvailableSpace() for every picture. It samples
+// the space once, and then debits the bytes of the files we save from the
+// sample. It samples again when:
+// (1) The debits since the last sample exceed RESAMPLE_THRESHOLD, because
+//     the file system overhead and other apps make the estimate drift.
+// (2) The estimate gets close to Storage.LOW_STORAGE_THRESHOLD, where we want
+//     an exact answer.
+// (3) invalidate() is called, for example when a media broadcast arrives or
+//     a file is deleted.
+// (4) The storage changes or the last sample was not a valid size.
+public class StorageSpaceTracker {
+    private static final String TAG = "StorageSpaceTracker";
+
+    private static final long RESAMPLE_THRESHOLD = 64 * 1024 * 1024;
+
+    private static StorageSpaceTracker sInstance;
+
+    private String mStorage;
+    private long mSampledSpace = Storage.UNKNOWN_SIZE;
+    private long mDebitedBytes;
+
+    public static synchronized StorageSpaceTracker instance() {
+        if (sInstance == null) {
+            sInstance = new StorageSpaceTracker();
+        }
+        return sInstance;
+    }
+
+    private StorageSpaceTracker() {
+    }
+
+    // Returns the available space of the storage, or one of Storage.UNAVAILABLE,
+    // Storage.PREPARING and Storage.UNKNOWN_SIZE.
+    public synchronized long getAvailableSpace(String storage) {
+        if (needResample(storage)) {
+            mStorage = storage;
+            mSampledSpace = Storage.getAvailableSpace(storage);
+            mDebitedBytes = 0;
+        }
+        if (mSampledSpace < 0) return mSampledSpace;
+        return Math.max(0, mSampledSpace - mDebitedBytes);
+    }
+
+    // Debits the bytes of a file which has been saved at path.
+    public synchronized void debit(String path, long bytes) {
+        if (mStorage != null && path.startsWith(mStorage)) {
+            mDebitedBytes += bytes;
+        }
+    }
+
+    // Makes the next getAvailableSpace() sample the storage again.
+    public synchronized void invalidate() {
+        Log.v(TAG, "invalidate");
+        mStorage = null;
+    }
+
+    private boolean needResample(String storage) {
+        return !storage.equals(mStorage)
+                || mSampledSpace < 0
+                || mDebitedBytes >= RESAMPLE_THRESHOLD
+                || mSampledSpace - mDebitedBytes
+                        < Storage.LOW_STORAGE_THRESHOLD + RESAMPLE_THRESHOLD;
+    }
+}
@@ -31,21 +31,27 @@ import android.provider.MediaStore.Video;
 import android.provider.MediaStore.Video.VideoColumns;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class Thumbnail {
     private static final String TAG = "Thumbnail";
 
     public static final String LAST_THUMB_FILENAME = "last_thumb";
-    private static final int BUFSIZE = 4096;
+    private static final int MAGIC = 0x54484D42;  // "THMB"
+    private static final int VERSION = 1;
+    // The length of the header before the uri.
+    private static final int HEADER_LENGTH = 7 * 4;
+    private static final int CONFIG_ARGB_8888 = 0;
+    private static final int CONFIG_RGB_565 = 1;
+    private static final String UTF_8 = "UTF-8";
+    private static final float MAX_ASPECT_RATIO_DIFF = 0.02f;
 
     private Uri mUri;
     private Bitmap mBitmap;
@@ -55,6 +61,15 @@ public class Thumbnail {
     // Camera, VideoCamera, and Panorama share the same thumbnail. Use sLock
     // to serialize the access.
     private static Object sLock = new Object();
+    // The thumbnail being stored by saveToAsync() and its file. sLock is
+    // only held to read or change them, never across the file I/O, so
+    // loadFrom() does not wait for the disk when the pending thumbnail can
+    // answer it.
+    private static Thumbnail sPendingThumbnail;
+    private static File sPendingFile;
+    // Serializes the writers of the temp file.
+    private static Object sSaveLock = new Object();
+    private static final Executor sSaveExecutor = Executors.newSingleThreadExecutor();
 
     public Thumbnail(Uri uri, Bitmap bitmap, int orientation) {
         mUri = uri;
@@ -86,12 +101,9 @@ public class Thumbnail {
                     bitmap.getHeight() * 0.5f);
 
             try {
-                Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0,
-                        bitmap.getWidth(), bitmap.getHeight(), m, true);
-                // If the rotated bitmap is the original bitmap, then it
-                // should not be recycled.
-                if (rotated != bitmap) bitmap.recycle();
-                return rotated;
+                // The original bitmap goes back to the pool for the next
+                // thumbnail.
+                return BitmapPool.instance().transform(bitmap, m);
             } catch (Throwable t) {
                 Log.w(TAG, "Failed to rotate thumbnail", t);
             }
@@ -99,25 +111,77 @@ public class Thumbnail {
         return bitmap;
     }
 
-    // Stores the bitmap to the specified file.
-    public void saveTo(File file) {
-        FileOutputStream f = null;
-        BufferedOutputStream b = null;
-        DataOutputStream d = null;
+    // Stores the thumbnail to the specified file in a background thread.
+    // loadFrom() returns this thumbnail until it is stored.
+    public void saveToAsync(final File file) {
         synchronized (sLock) {
+            sPendingThumbnail = this;
+            sPendingFile = file;
+        }
+        sSaveExecutor.execute(new Runnable() {
+            public void run() {
+                synchronized (sLock) {
+                    // Skip it if a later thumbnail is waiting to be stored.
+                    if (sPendingThumbnail != Thumbnail.this) return;
+                }
+                saveTo(file);
+                synchronized (sLock) {
+                    // The file is renamed now, so loadFrom() can read it.
+                    if (sPendingThumbnail == Thumbnail.this) {
+                        sPendingThumbnail = null;
+                        sPendingFile = null;
+                    }
+                }
+            }
+        });
+    }
+
+    // Stores the bitmap to the specified file. The pixels are stored as they
+    // are after a small header, so loadFrom() can copy them back without
+    // decoding. The file is written to a temp file first and renamed, so a
+    // half-written file is never loaded.
+    //
+    // The format is: magic, version, width, height, row bytes, config, the
+    // length of the uri, the uri in UTF-8 padded to four bytes, and the
+    // pixels.
+    public void saveTo(File file) {
+        Bitmap.Config config = mBitmap.getConfig();
+        int configId = getConfigId(config);
+        if (configId < 0) {
+            Log.e(TAG, "Unsupported bitmap config: " + config);
+            return;
+        }
+        int pixelsLength = mBitmap.getRowBytes() * mBitmap.getHeight();
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile f = null;
+        synchronized (sSaveLock) {
             try {
-                f = new FileOutputStream(file);
-                b = new BufferedOutputStream(f, BUFSIZE);
-                d = new DataOutputStream(b);
-                d.writeUTF(mUri.toString());
-                mBitmap.compress(Bitmap.CompressFormat.JPEG, 90, d);
-                d.close();
+                byte[] uri = mUri.toString().getBytes(UTF_8);
+                int headerLength = HEADER_LENGTH + ((uri.length + 3) & ~3);
+                f = new RandomAccessFile(temp, "rw");
+                f.setLength(headerLength + pixelsLength);
+                MappedByteBuffer buffer = f.getChannel().map(
+                        FileChannel.MapMode.READ_WRITE, 0, headerLength + pixelsLength);
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putInt(mBitmap.getWidth());
+                buffer.putInt(mBitmap.getHeight());
+                buffer.putInt(mBitmap.getRowBytes());
+                buffer.putInt(configId);
+                buffer.putInt(uri.length);
+                buffer.put(uri);
+                buffer.position(headerLength);
+                mBitmap.copyPixelsToBuffer(buffer);
+                f.close();
+                f = null;
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Cannot rename " + temp);
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Fail to store bitmap. path=" + file.getPath(), e);
+                temp.delete();
             } finally {
                 Util.closeSilently(f);
-                Util.closeSilently(b);
-                Util.closeSilently(d);
             }
         }
     }
@@ -127,24 +191,50 @@ public class Thumbnail {
     public static Thumbnail loadFrom(File file) {
         Uri uri = null;
         Bitmap bitmap = null;
-        FileInputStream f = null;
-        BufferedInputStream b = null;
-        DataInputStream d = null;
+        RandomAccessFile f = null;
         synchronized (sLock) {
+            if (sPendingThumbnail != null && file.equals(sPendingFile)) {
+                // The thumbnail is not stored yet. Use it directly.
+                uri = sPendingThumbnail.getUri();
+                bitmap = sPendingThumbnail.getBitmap();
+            }
+        }
+        if (bitmap == null) {
             try {
-                f = new FileInputStream(file);
-                b = new BufferedInputStream(f, BUFSIZE);
-                d = new DataInputStream(b);
-                uri = Uri.parse(d.readUTF());
-                bitmap = BitmapFactory.decodeStream(d);
-                d.close();
+                f = new RandomAccessFile(file, "r");
+                MappedByteBuffer buffer = f.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, f.length());
+                if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC
+                        || buffer.getInt() != VERSION) {
+                    throw new IOException("Invalid header");
+                }
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                int rowBytes = buffer.getInt();
+                Bitmap.Config config = getConfig(buffer.getInt());
+                int uriLength = buffer.getInt();
+                int headerLength = HEADER_LENGTH + ((uriLength + 3) & ~3);
+                if (config == null || width <= 0 || height <= 0 || uriLength < 0
+                        || headerLength > buffer.limit()) {
+                    throw new IOException("Invalid header");
+                }
+                byte[] uriBytes = new byte[uriLength];
+                buffer.get(uriBytes);
+                uri = Uri.parse(new String(uriBytes, UTF_8));
+
+                bitmap = Bitmap.createBitmap(width, height, config);
+                if (bitmap.getRowBytes() != rowBytes
+                        || buffer.limit() - headerLength < rowBytes * height) {
+                    bitmap.recycle();
+                    throw new IOException("Invalid pixels");
+                }
+                buffer.position(headerLength);
+                bitmap.copyPixelsFromBuffer(buffer);
             } catch (IOException e) {
                 Log.i(TAG, "Fail to load bitmap. " + e);
                 return null;
             } finally {
                 Util.closeSilently(f);
-                Util.closeSilently(b);
-                Util.closeSilently(d);
             }
         }
         Thumbnail thumbnail = createThumbnail(uri, bitmap, 0);
@@ -152,6 +242,31 @@ public class Thumbnail {
         return thumbnail;
     }
 
+    private static int getConfigId(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) return CONFIG_ARGB_8888;
+        if (config == Bitmap.Config.RGB_565) return CONFIG_RGB_565;
+        return -1;
+    }
+
+    private static Bitmap.Config getConfig(int configId) {
+        switch (configId) {
+            case CONFIG_ARGB_8888:
+                return Bitmap.Config.ARGB_8888;
+            case CONFIG_RGB_565:
+                return Bitmap.Config.RGB_565;
+        }
+        return null;
+    }
+
+    // Returns the uri of the newest image or video in the bucket, or null if
+    // there is none. This does not fetch the thumbnail.
+    public static Uri getLastMediaUri(ContentResolver resolver, String bucketId) {
+        Media image = getLastImageThumbnail(resolver, bucketId);
+        Media video = getLastVideoThumbnail(resolver, bucketId);
+        if (image == null && video == null) return null;
+        return isNewer(image, video) ? image.uri : video.uri;
+    }
+
     public static Thumbnail getLastThumbnail(ContentResolver resolver, String bucketId) {
         Media image = getLastImageThumbnail(resolver, bucketId);
         Media video = getLastVideoThumbnail(resolver, bucketId);
@@ -161,7 +276,7 @@ public class Thumbnail {
         Media lastMedia;
         // If there is only image or video, get its thumbnail. If both exist,
         // get the thumbnail of the one that is newer.
-        if (image != null && (video == null || image.dateTaken >= video.dateTaken)) {
+        if (isNewer(image, video)) {
             bitmap = Images.Thumbnails.getThumbnail(resolver, image.id,
                     Images.Thumbnails.MINI_KIND, null);
             lastMedia = image;
@@ -178,6 +293,11 @@ public class Thumbnail {
         return null;
     }
 
+    // Returns true if image exists and is not older than video.
+    private static boolean isNewer(Media image, Media video) {
+        return image != null && (video == null || image.dateTaken >= video.dateTaken);
+    }
+
     private static class Media {
         public Media(long id, int orientation, long dateTaken, Uri uri) {
             this.id = id;
@@ -244,15 +364,75 @@ public class Thumbnail {
         return null;
     }
 
-    public static Thumbnail createThumbnail(byte[] jpeg, int orientation, int inSampleSize,
-            Uri uri) {
-        // Create the thumbnail.
+    // Creates a thumbnail whose width is equal or bigger than minWidth, or
+    // whose height is equal or bigger than minHeight if minHeight is not 0.
+    // The sizes are before the rotation.
+    public static Thumbnail createThumbnail(byte[] jpeg, int orientation, int minWidth,
+            int minHeight, Uri uri) {
+        Exif exif = new Exif();
+        exif.parse(jpeg);
+        return createThumbnail(jpeg, orientation, minWidth, minHeight,
+                exif.getThumbnailOffset(), exif.getThumbnailLength(), uri);
+    }
+
+    // Same as above, but the caller has already found the thumbnail embedded
+    // in EXIF. exifThumbnailOffset is -1 if there is none. The embedded
+    // thumbnail is used if it is big enough, which saves decoding the whole
+    // picture.
+    public static Thumbnail createThumbnail(byte[] jpeg, int orientation, int minWidth,
+            int minHeight, int exifThumbnailOffset, int exifThumbnailLength, Uri uri) {
+        // Get the size of the picture without decoding it.
         BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = inSampleSize;
-        Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int width = options.outWidth;
+        int height = options.outHeight;
+        if (width <= 0 || height <= 0) {
+            Log.e(TAG, "Failed to decode the size of the picture");
+            return null;
+        }
+
+        Bitmap bitmap = null;
+        if (exifThumbnailOffset >= 0) {
+            bitmap = decodeExifThumbnail(jpeg, exifThumbnailOffset, exifThumbnailLength,
+                    width, height, minWidth, minHeight);
+        }
+        if (bitmap == null) {
+            options.inSampleSize = computeSampleSize(width, height, minWidth, minHeight);
+            bitmap = BitmapPool.instance().decode(jpeg, 0, jpeg.length, options);
+        }
         return createThumbnail(uri, bitmap, orientation);
     }
 
+    // Decodes the thumbnail embedded in EXIF. Returns null if it is smaller
+    // than required, or its aspect ratio is different from the picture (some
+    // cameras pad the thumbnail with black bars).
+    private static Bitmap decodeExifThumbnail(byte[] jpeg, int offset, int length,
+            int width, int height, int minWidth, int minHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, offset, length, options);
+        int thumbWidth = options.outWidth;
+        int thumbHeight = options.outHeight;
+        if (thumbHeight <= 0) return null;
+        if (thumbWidth < minWidth && (minHeight == 0 || thumbHeight < minHeight)) return null;
+        if (Math.abs((float) thumbWidth / thumbHeight - (float) width / height)
+                > MAX_ASPECT_RATIO_DIFF) {
+            return null;
+        }
+
+        options.inSampleSize = computeSampleSize(thumbWidth, thumbHeight, minWidth, minHeight);
+        return BitmapPool.instance().decode(jpeg, offset, length, options);
+    }
+
+    // Returns the biggest power of two that scales the width down to no
+    // smaller than minWidth, or the height to no smaller than minHeight.
+    private static int computeSampleSize(int width, int height, int minWidth, int minHeight) {
+        int ratio = width / Math.max(1, minWidth);
+        if (minHeight > 0) ratio = Math.max(ratio, height / minHeight);
+        return Integer.highestOneBit(Math.max(1, ratio));
+    }
+
     public static Bitmap createVideoThumbnail(FileDescriptor fd, int targetWidth) {
         return createVideoThumbnail(null, fd, targetWidth);
     }
@@ -289,9 +469,9 @@ public class Thumbnail {
         int height = bitmap.getHeight();
         if (width > targetWidth) {
             float scale = (float) targetWidth / width;
-            int w = Math.round(scale * width);
-            int h = Math.round(scale * height);
-            bitmap = Bitmap.createScaledBitmap(bitmap, w, h, true);
+            Matrix m = new Matrix();
+            m.setScale(scale, scale);
+            bitmap = BitmapPool.instance().transform(bitmap, m);
         }
         return bitmap;
     }
@@ -141,7 +141,7 @@ public class Util {
     }
 
     // Rotates and/or mirrors the bitmap. If a new bitmap is created, the
-    // original bitmap is recycled.
+    // original bitmap is put into BitmapPool.
     public static Bitmap rotateAndMirror(Bitmap b, int degrees, boolean mirror) {
         if ((degrees != 0 || mirror) && b != null) {
             Matrix m = new Matrix();
@@ -165,11 +165,15 @@ public class Util {
             }
 
             try {
-                Bitmap b2 = Bitmap.createBitmap(
-                        b, 0, 0, b.getWidth(), b.getHeight(), m, true);
-                if (b != b2) {
-                    b.recycle();
-                    b = b2;
+                if (degrees % 90 == 0) {
+                    b = BitmapPool.instance().transform(b, m);
+                } else {
+                    Bitmap b2 = Bitmap.createBitmap(
+                            b, 0, 0, b.getWidth(), b.getHeight(), m, true);
+                    if (b != b2) {
+                        b.recycle();
+                        b = b2;
+                    }
                 }
             } catch (OutOfMemoryError ex) {
                 // We have no memory to rotate. Return the original bitmap.
@@ -256,7 +260,7 @@ public class Util {
 
             options.inDither = false;
             options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            return BitmapFactory.decodeByteArray(jpegData, 0, jpegData.length,
+            return BitmapPool.instance().decode(jpegData, 0, jpegData.length,
                     options);
         } catch (OutOfMemoryError ex) {
             Log.e(TAG, "Got oom exception ", ex);
@@ -641,6 +645,12 @@ public class Util {
     }
 
     public static void setRotationParameter(Parameters parameters, int cameraId, int orientation) {
+        parameters.setRotation(getJpegRotation(cameraId, orientation));
+    }
+
+    // Returns the clockwise rotation of a picture taken by the camera when
+    // the device is in the given orientation.
+    public static int getJpegRotation(int cameraId, int orientation) {
         // See android.hardware.Camera.Parameters.setRotation for
         // documentation.
         int rotation = 0;
@@ -652,7 +662,7 @@ public class Util {
                 rotation = (info.orientation + orientation) % 360;
             }
         }
-        parameters.setRotation(rotation);
+        return rotation;
     }
 
     public static void setGpsParameters(Parameters parameters, Location loc) {
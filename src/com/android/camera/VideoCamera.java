@@ -77,6 +77,7 @@ import android.widget.Toast;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -91,7 +92,7 @@ public class VideoCamera extends ActivityBase
         ShutterButton.OnShutterButtonListener, SurfaceHolder.Callback,
         MediaRecorder.OnErrorListener, MediaRecorder.OnInfoListener,
         ModePicker.OnModeChangeListener, View.OnTouchListener,
-        EffectsRecorder.EffectsListener {
+        EffectsRecorder.EffectsListener, CameraCommandQueue.Listener {
 
     private static final String TAG = "videocamera";
 
@@ -100,6 +101,10 @@ public class VideoCamera extends ActivityBase
     private static final int UPDATE_RECORD_TIME = 5;
     private static final int ENABLE_SHUTTER_BUTTON = 6;
     private static final int SHOW_TAP_TO_SNAPSHOT_TOAST = 7;
+    private static final int PREPARE_RECORDER = 8;
+    private static final int UPDATE_THUMBNAIL = 9;
+    private static final int VIDEO_FILE_RESERVED = 10;
+    private static final int PREPARED_RECORDER_EXPIRED = 11;
 
     private static final int SCREEN_DELAY = 2 * 60 * 1000;
 
@@ -111,6 +116,21 @@ public class VideoCamera extends ActivityBase
     private static final boolean SWITCH_VIDEO = false;
 
     private static final long SHUTTER_BUTTON_TIMEOUT = 500L; // 500ms
+    // How long the preview must be left alone before the next recorder is
+    // prepared.
+    private static final long PREPARE_RECORDER_DELAY = 1000L;
+    // A prepared recorder older than this is prepared again, because its
+    // file name and title come from the time it was prepared.
+    private static final long PREPARED_RECORDER_MAX_AGE = 30 * 1000L;
+    // How far in meters the device may move before a prepared recorder is
+    // prepared again with the new location.
+    private static final float PREPARED_RECORDER_LOCATION_TOLERANCE = 100f;
+    // The size of a segment in the segmented recording mode. It leaves room
+    // below the 4GB file size limit of FAT for the end of the file.
+    private static final long SEGMENT_MAX_SIZE = 4000L * 1000 * 1000;
+    // The expected duration of a video without a duration limit, for the
+    // space reserved for it.
+    private static final long RESERVE_DURATION = 60 * 1000;
 
     private static final int[] TIME_LAPSE_VIDEO_QUALITY = {
             CamcorderProfile.QUALITY_TIME_LAPSE_1080P,
@@ -163,6 +183,8 @@ public class VideoCamera extends ActivityBase
     // The bitmap of the last captured video thumbnail and the URI of the
     // original video.
     private Thumbnail mThumbnail;
+    private VideoFinalizer mVideoFinalizer;
+    private final PreviewFrameGrabber mFrameGrabber = new PreviewFrameGrabber();
     // An imageview showing showing the last captured picture thumbnail.
     private RotateImageView mThumbnailView;
     private Rotatable mReviewCancelButton;
@@ -198,13 +220,41 @@ public class VideoCamera extends ActivityBase
 
     private boolean mMediaRecorderRecording = false;
     private long mRecordingStartTime;
+    // In the segmented recording mode, a recording which reaches
+    // SEGMENT_MAX_SIZE goes on in a new file, and each file is added to the
+    // media store on its own. mSegmentSizeLimited is true if the size limit
+    // of the current recorder is SEGMENT_MAX_SIZE, not the free space.
+    private boolean mSegmentedRecordingEnabled;
+    private boolean mSegmentSizeLimited;
+    private long mSegmentStartTime;
+    // The file the recorder writes to, if its space is reserved.
+    private boolean mReservedOutputFileEnabled;
+    private VideoOutputFile mVideoOutputFile;
+    private VideoFileReserver mVideoFileReserver;
     private boolean mRecordingTimeCountsDown = false;
     private RotateLayout mRecordingTimeRect;
     private long mOnResumeTime;
     // The video file that the hardware camera is about to record into
     // (or is recording into.)
     private String mVideoFilename;
+
+    // In the prepared recorder mode, the recorder for the next recording is
+    // prepared in the background while the preview is idle, so the shutter
+    // only needs to start it. While mRecorderPrepared is true,
+    // mMediaRecorder is set and the camera is unlocked, so any camera call
+    // must discard the recorder first.
+    private boolean mPreparedRecorderEnabled;
+    private boolean mRecorderPrepared;
+    private Thread mPrepareRecorderThread;
+    private volatile boolean mPrepareRecorderFailed;
+    // The orientation hint, max file size and location the recorder was
+    // built with, and when it was built.
+    private int mRecorderRotation;
+    private long mRecorderMaxFileSize;
+    private Location mRecorderLocation;
+    private long mRecorderCreatedTime;
     private ParcelFileDescriptor mVideoFileDescriptor;
+    private CameraCommandQueue mCommandQueue;
 
     // The video file that has already been recorded, and that is being
     // examined by the user.
@@ -315,6 +365,30 @@ public class VideoCamera extends ActivityBase
                     break;
                 }
 
+                case PREPARE_RECORDER: {
+                    prepareRecorderInBackground();
+                    break;
+                }
+
+                case UPDATE_THUMBNAIL: {
+                    if (mVideoFinalizer != null) mVideoFinalizer.updateThumbnail();
+                    break;
+                }
+
+                case PREPARED_RECORDER_EXPIRED: {
+                    invalidatePreparedRecorder();
+                    break;
+                }
+
+                case VIDEO_FILE_RESERVED: {
+                    // The prepared recorder writes into a file without
+                    // reserved space. Prepare a new one with the file.
+                    if (mRecorderPrepared && mVideoOutputFile == null) {
+                        invalidatePreparedRecorder();
+                    }
+                    break;
+                }
+
                 default:
                     Log.v(TAG, "Unhandled message: " + msg.what);
                     break;
@@ -329,9 +403,11 @@ public class VideoCamera extends ActivityBase
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
             if (action.equals(Intent.ACTION_MEDIA_EJECT)) {
+                StorageSpaceTracker.instance().invalidate();
                 updateAndShowStorageHint();
                 stopVideoRecording();
             } else if (action.equals(Intent.ACTION_MEDIA_MOUNTED)) {
+                StorageSpaceTracker.instance().invalidate();
                 updateAndShowStorageHint();
                 updateThumbnailButton();
             } else if (action.equals(Intent.ACTION_MEDIA_UNMOUNTED)) {
@@ -341,6 +417,7 @@ public class VideoCamera extends ActivityBase
                 Toast.makeText(VideoCamera.this,
                         getResources().getString(R.string.wait), Toast.LENGTH_LONG).show();
             } else if (action.equals(Intent.ACTION_MEDIA_SCANNER_FINISHED)) {
+                StorageSpaceTracker.instance().invalidate();
                 updateAndShowStorageHint();
             }
         }
@@ -357,9 +434,15 @@ public class VideoCamera extends ActivityBase
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
+        mCommandQueue = new CameraCommandQueue(this);
 
         Util.initializeScreenBrightness(getWindow(), getContentResolver());
 
+        mPreparedRecorderEnabled = getResources().getBoolean(R.bool.enablePreparedRecorder);
+        mSegmentedRecordingEnabled =
+                getResources().getBoolean(R.bool.enableSegmentedRecording);
+        mReservedOutputFileEnabled =
+                getResources().getBoolean(R.bool.enableReservedVideoFile);
         mPreferences = new ComboPreferences(this);
         CameraSettings.upgradeGlobalPreferences(mPreferences.getGlobal());
         mCameraId = CameraSettings.readPreferredCameraId(mPreferences);
@@ -391,6 +474,7 @@ public class VideoCamera extends ActivityBase
             public void run() {
                 try {
                     mCameraDevice = Util.openCamera(VideoCamera.this, mCameraId);
+                    mCommandQueue.setCamera(mCameraDevice);
                     readVideoPreferences();
                     startPreview();
                 } catch (CameraHardwareException e) {
@@ -689,10 +773,16 @@ public class VideoCamera extends ActivityBase
     private OnScreenHint mStorageHint;
 
     private void updateAndShowStorageHint() {
-        mStorageSpace = Storage.getAvailableSpace(mStorage);
+        mStorageSpace = StorageSpaceTracker.instance().getAvailableSpace(mStorage);
         showStorageHint();
     }
 
+    // Reads the free space from the storage, not from the cache.
+    private void updateStorageSpace() {
+        StorageSpaceTracker.instance().invalidate();
+        mStorageSpace = StorageSpaceTracker.instance().getAvailableSpace(mStorage);
+    }
+
     private void showStorageHint() {
         String errorMessage = null;
         if (mStorageSpace == Storage.UNAVAILABLE) {
@@ -795,7 +885,7 @@ public class VideoCamera extends ActivityBase
     }
 
     private void getDesiredPreviewSize() {
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mCommandQueue.getParameters();
         if (mParameters.getSupportedVideoSizes() == null ||
                 (!getResources().getBoolean(R.bool.alwaysUsePreferredPreviewSize) && effectsActive())) {
             mDesiredPreviewWidth = mProfile.videoFrameWidth;
@@ -832,6 +922,7 @@ public class VideoCamera extends ActivityBase
     @Override
     protected void doOnResume() {
         if (mOpenCameraFail || mCameraDisabled) return;
+        if (mVideoFinalizer == null) mVideoFinalizer = new VideoFinalizer();
 
         mPausing = false;
         mZoomValue = 0;
@@ -848,6 +939,7 @@ public class VideoCamera extends ActivityBase
             }
             try {
                 mCameraDevice = Util.openCamera(this, mCameraId);
+                mCommandQueue.setCamera(mCameraDevice);
                 readVideoPreferences();
                 resizeForPreviewAspectRatio();
                 startPreview();
@@ -875,7 +967,8 @@ public class VideoCamera extends ActivityBase
         intentFilter.addDataScheme("file");
         mReceiver = new MyBroadcastReceiver();
         registerReceiver(mReceiver, intentFilter);
-        mStorageSpace = Storage.getAvailableSpace(mStorage);
+        // Other apps may have used the storage while we were paused.
+        updateStorageSpace();
 
         mHandler.postDelayed(new Runnable() {
             public void run() {
@@ -920,9 +1013,11 @@ public class VideoCamera extends ActivityBase
     private void startPreview() {
         Log.v(TAG, "startPreview");
 
+        discardPreparedRecorder();
+        mFrameGrabber.cancel();
         mCameraDevice.setErrorCallback(mErrorCallback);
         if (mPreviewing == true) {
-            mCameraDevice.stopPreview();
+            mCommandQueue.stopPreview();
             if (effectsActive() && mEffectsRecorder != null) {
                 mEffectsRecorder.release();
             }
@@ -937,7 +1032,7 @@ public class VideoCamera extends ActivityBase
         if (!effectsActive()) {
             setPreviewDisplay(mSurfaceHolder);
             try {
-                mCameraDevice.startPreview();
+                mCommandQueue.startPreview();
             } catch (Throwable ex) {
                 closeCamera();
                 throw new RuntimeException("startPreview failed", ex);
@@ -950,6 +1045,8 @@ public class VideoCamera extends ActivityBase
 
         mZoomState = ZOOM_STOPPED;
         mPreviewing = true;
+        reserveVideoFile();
+        prepareRecorderSoon();
     }
 
     private void closeCamera() {
@@ -958,10 +1055,14 @@ public class VideoCamera extends ActivityBase
             Log.d(TAG, "already stopped.");
             return;
         }
+        discardPreparedRecorder();
+        mFrameGrabber.cancel();
         if (mEffectsRecorder != null) {
             mEffectsRecorder.release();
         }
         mEffectType = EffectsRecorder.EFFECT_NONE;
+        // Let the queued commands finish before the camera is released.
+        mCommandQueue.setCamera(null);
         CameraHolder.instance().release();
         mCameraDevice.setZoomChangeListener(null);
         mCameraDevice.setErrorCallback(null);
@@ -986,6 +1087,14 @@ public class VideoCamera extends ActivityBase
             stopVideoRecording();
         }
         closeCamera();
+        if (mVideoFinalizer != null) {
+            mVideoFinalizer.finish();
+            mVideoFinalizer = null;
+        }
+        if (mVideoFileReserver != null) {
+            mVideoFileReserver.release();
+            mVideoFileReserver = null;
+        }
     }
 
     @Override
@@ -1009,7 +1118,7 @@ public class VideoCamera extends ActivityBase
         resetScreenOn();
 
         if (!mIsVideoCaptureIntent && mThumbnail != null && !mThumbnail.fromFile()) {
-            mThumbnail.saveTo(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
+            mThumbnail.saveToAsync(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
         }
 
         if (mStorageHint != null) {
@@ -1021,6 +1130,21 @@ public class VideoCamera extends ActivityBase
         mLocationManager.recordLocation(false);
 
         mHandler.removeMessages(CHECK_DISPLAY_ROTATION);
+        mHandler.removeMessages(PREPARE_RECORDER);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mCommandQueue.quit();
+        super.onDestroy();
+    }
+
+    // A camera command failed in the command queue. Before the queue, the
+    // exception was thrown to the UI thread, so treat it as fatal here too.
+    @Override
+    public void onCommandFailed(RuntimeException e) {
+        if (mPausing) return;
+        Util.showErrorAndFinish(this, R.string.cannot_connect_camera);
     }
 
     @Override
@@ -1112,6 +1236,8 @@ public class VideoCamera extends ActivityBase
         // display rotation in onCreate may not be what we want.
         if (mPreviewing && (Util.getDisplayRotation(this) == mDisplayRotation)
                 && holder.isCreating()) {
+            // The prepared recorder uses the old surface.
+            invalidatePreparedRecorder();
             setPreviewDisplay(holder);
         } else {
             stopVideoRecording();
@@ -1123,6 +1249,7 @@ public class VideoCamera extends ActivityBase
     }
 
     public void surfaceDestroyed(SurfaceHolder holder) {
+        if (mCameraDevice != null) discardPreparedRecorder();
         mSurfaceHolder = null;
     }
 
@@ -1174,6 +1301,23 @@ public class VideoCamera extends ActivityBase
     // Prepares media recorder.
     private void initializeRecorder() {
         Log.v(TAG, "initializeRecorder");
+        createRecorder();
+        if (mMediaRecorder == null) return;
+
+        try {
+            mMediaRecorder.prepare();
+        } catch (IOException e) {
+            Log.e(TAG, "prepare failed for " + mVideoFilename, e);
+            releaseMediaRecorder();
+            throw new RuntimeException(e);
+        }
+
+        mMediaRecorder.setOnErrorListener(this);
+        mMediaRecorder.setOnInfoListener(this);
+    }
+
+    // Sets up mMediaRecorder up to prepare().
+    private void createRecorder() {
         // If the mCameraDevice is null, then this activity is going to finish
         if (mCameraDevice == null) return;
 
@@ -1206,7 +1350,10 @@ public class VideoCamera extends ActivityBase
         }
         mMediaRecorder = new MediaRecorder();
 
-        // Unlock the camera object before passing it to media recorder.
+        // Unlock the camera object before passing it to media recorder. The
+        // queued commands must reach the camera before the recorder owns it.
+        mFrameGrabber.cancel();
+        mCommandQueue.waitDone();
         mCameraDevice.unlock();
         mMediaRecorder.setCamera(mCameraDevice);
         if (!mCaptureTimeLapse) {
@@ -1224,8 +1371,17 @@ public class VideoCamera extends ActivityBase
             mMediaRecorder.setLocation((float) loc.getLatitude(),
                     (float) loc.getLongitude());
         }
+        mRecorderLocation = loc;
 
 
+        // Set maximum file size.
+        long maxFileSize = mStorageSpace - Storage.LOW_STORAGE_THRESHOLD;
+        if (requestedSizeLimit > 0 && requestedSizeLimit < maxFileSize) {
+            maxFileSize = requestedSizeLimit;
+        }
+        mSegmentSizeLimited = isSegmentedRecording() && maxFileSize > SEGMENT_MAX_SIZE;
+        if (mSegmentSizeLimited) maxFileSize = SEGMENT_MAX_SIZE;
+
         // Set output file.
         // Try Uri in the intent first. If it doesn't exist, use our own
         // instead.
@@ -1233,17 +1389,13 @@ public class VideoCamera extends ActivityBase
             mMediaRecorder.setOutputFile(mVideoFileDescriptor.getFileDescriptor());
         } else {
             generateVideoFilename(mProfile.fileFormat);
-            mMediaRecorder.setOutputFile(mVideoFilename);
+            if (!setReservedOutputFile()) {
+                mMediaRecorder.setOutputFile(mVideoFilename);
+            }
         }
 
         mMediaRecorder.setPreviewDisplay(mSurfaceHolder.getSurface());
 
-        // Set maximum file size.
-        long maxFileSize = mStorageSpace - Storage.LOW_STORAGE_THRESHOLD;
-        if (requestedSizeLimit > 0 && requestedSizeLimit < maxFileSize) {
-            maxFileSize = requestedSizeLimit;
-        }
-
         try {
             mMediaRecorder.setMaxFileSize(maxFileSize);
         } catch (RuntimeException exception) {
@@ -1253,6 +1405,88 @@ public class VideoCamera extends ActivityBase
             // on the size restriction.
         }
 
+        mRecorderMaxFileSize = maxFileSize;
+        mRecorderCreatedTime = SystemClock.uptimeMillis();
+        mRecorderRotation = getRecordingRotation();
+        mMediaRecorder.setOrientationHint(mRecorderRotation);
+        mOrientationCompensationAtRecordStart = mOrientationCompensation;
+    }
+
+    // Starts reserving the space of the next video in the background, for
+    // the expected duration. It is not done while recording, so the zeros
+    // are not written at the same time as the video.
+    private void reserveVideoFile() {
+        // A time lapse video grows slowly. A capture intent records once,
+        // often into its own file.
+        if (!mReservedOutputFileEnabled || mPausing || mCaptureTimeLapse
+                || mIsVideoCaptureIntent || mMediaRecorderRecording || effectsActive()) {
+            return;
+        }
+
+        long duration = (mMaxVideoDurationInMs > 0) ? mMaxVideoDurationInMs : RESERVE_DURATION;
+        // Leave most of the free space to the recording itself.
+        long maxBytes = Math.min(SEGMENT_MAX_SIZE,
+                (mStorageSpace - Storage.LOW_STORAGE_THRESHOLD) / 2);
+        long reserveSize = VideoOutputFile.getReserveSize(mProfile.videoBitRate,
+                mProfile.audioBitRate, duration, maxBytes);
+
+        String directory = Storage.generateDirectory(mStorage);
+        if (mVideoFileReserver != null
+                && !directory.equals(mVideoFileReserver.getDirectory())) {
+            mVideoFileReserver.release();
+            mVideoFileReserver = null;
+        }
+        if (mVideoFileReserver == null) {
+            mVideoFileReserver = new VideoFileReserver(directory,
+                    new VideoFileReserver.Listener() {
+                public void onReserved() {
+                    mHandler.sendEmptyMessage(VIDEO_FILE_RESERVED);
+                }
+            });
+        }
+        mVideoFileReserver.reserve(reserveSize);
+    }
+
+    // Gives the recorder the reserved file, if it is ready. Returns false
+    // if there is none, and the recorder creates the file.
+    private boolean setReservedOutputFile() {
+        if (mVideoFileReserver == null || mCaptureTimeLapse
+                || !mVideoFileReserver.take(mVideoFilename)) {
+            return false;
+        }
+        try {
+            mVideoOutputFile = VideoOutputFile.open(mVideoFilename);
+            mMediaRecorder.setOutputFile(mVideoOutputFile.getFileDescriptor());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the reserved file " + mVideoFilename, e);
+            closeVideoOutputFile();
+            return false;
+        }
+    }
+
+    // Truncates the reserved file to the length of the video. The recorder
+    // must be stopped. An unused file goes back to the reserver.
+    private void closeVideoOutputFile() {
+        if (mVideoOutputFile == null) return;
+        boolean used = true;
+        try {
+            used = mVideoOutputFile.isUsed();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot read " + mVideoOutputFile.getPath(), e);
+        }
+        if (!used && mVideoFileReserver != null) {
+            mVideoOutputFile.release();
+            if (!mVideoFileReserver.giveBack(mVideoOutputFile.getPath())) {
+                deleteVideoFile(mVideoOutputFile.getPath());
+            }
+        } else {
+            mVideoOutputFile.close();
+        }
+        mVideoOutputFile = null;
+    }
+
+    private int getRecordingRotation() {
         // See android.hardware.Camera.Parameters.setRotation for
         // documentation.
         // Note that mOrientation here is the device orientation, which is the opposite of
@@ -1267,19 +1501,109 @@ public class VideoCamera extends ActivityBase
                 rotation = (info.orientation + mOrientation) % 360;
             }
         }
-        mMediaRecorder.setOrientationHint(rotation);
-        mOrientationCompensationAtRecordStart = mOrientationCompensation;
+        return rotation;
+    }
 
-        try {
-            mMediaRecorder.prepare();
-        } catch (IOException e) {
-            Log.e(TAG, "prepare failed for " + mVideoFilename, e);
-            releaseMediaRecorder();
-            throw new RuntimeException(e);
+    private void prepareRecorderSoon() {
+        if (!mPreparedRecorderEnabled) return;
+        mHandler.removeMessages(PREPARE_RECORDER);
+        mHandler.sendEmptyMessageDelayed(PREPARE_RECORDER, PREPARE_RECORDER_DELAY);
+    }
+
+    // Builds the recorder for the next recording with the current profile,
+    // file name and location, and prepares it in another thread.
+    private void prepareRecorderInBackground() {
+        if (mPausing || !mPreviewing || mCameraDevice == null || mIsVideoCaptureIntent
+                || mMediaRecorderRecording || mMediaRecorder != null || effectsActive()
+                || mZoomState != ZOOM_STOPPED) {
+            return;
         }
+        // The max file size of the recorder comes from the free space, which
+        // the last recording has used.
+        updateStorageSpace();
+        if (mStorageSpace < Storage.LOW_STORAGE_THRESHOLD) return;
+
+        createRecorder();
+        if (mMediaRecorder == null) return;
+        Log.v(TAG, "Preparing recorder for " + mVideoFilename);
+        final MediaRecorder recorder = mMediaRecorder;
+        mPrepareRecorderFailed = false;
+        mPrepareRecorderThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    recorder.prepare();
+                } catch (IOException e) {
+                    Log.e(TAG, "Background prepare failed", e);
+                    mPrepareRecorderFailed = true;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Background prepare failed", e);
+                    mPrepareRecorderFailed = true;
+                }
+            }
+        }, "PrepareRecorder");
+        mPrepareRecorderThread.start();
+        mRecorderPrepared = true;
+        mHandler.sendEmptyMessageDelayed(PREPARED_RECORDER_EXPIRED, PREPARED_RECORDER_MAX_AGE);
+    }
 
+    // Returns false if the prepared recorder failed to prepare.
+    private boolean waitPreparedRecorder() {
+        if (mPrepareRecorderThread != null) {
+            try {
+                mPrepareRecorderThread.join();
+            } catch (InterruptedException ex) {
+                // ignore
+            }
+            mPrepareRecorderThread = null;
+        }
+        return !mPrepareRecorderFailed;
+    }
+
+    // Releases the prepared recorder and locks the camera again.
+    private void discardPreparedRecorder() {
+        mHandler.removeMessages(PREPARE_RECORDER);
+        mHandler.removeMessages(PREPARED_RECORDER_EXPIRED);
+        if (!mRecorderPrepared) return;
+        waitPreparedRecorder();
+        mRecorderPrepared = false;
+        releaseMediaRecorder();
+        mCameraDevice.lock();
+    }
+
+    // Called before a change the prepared recorder does not know about, or
+    // which needs the camera. A new recorder is prepared later.
+    private void invalidatePreparedRecorder() {
+        if (mMediaRecorderRecording) return;
+        discardPreparedRecorder();
+        prepareRecorderSoon();
+    }
+
+    // Takes the prepared recorder for the recording. Returns false if there
+    // is none, or it does not match the current orientation, free space or
+    // location, or it is too old. mStorageSpace must be up to date.
+    private boolean usePreparedRecorder() {
+        mHandler.removeMessages(PREPARE_RECORDER);
+        if (!mRecorderPrepared) return false;
+        if (!waitPreparedRecorder() || getRecordingRotation() != mRecorderRotation
+                || mRecorderMaxFileSize > mStorageSpace - Storage.LOW_STORAGE_THRESHOLD
+                || SystemClock.uptimeMillis() - mRecorderCreatedTime > PREPARED_RECORDER_MAX_AGE
+                || !isRecorderLocationCurrent()) {
+            discardPreparedRecorder();
+            return false;
+        }
+        mHandler.removeMessages(PREPARED_RECORDER_EXPIRED);
+        mRecorderPrepared = false;
         mMediaRecorder.setOnErrorListener(this);
         mMediaRecorder.setOnInfoListener(this);
+        mOrientationCompensationAtRecordStart = mOrientationCompensation;
+        mCurrentVideoValues.put(Video.Media.DATE_TAKEN, System.currentTimeMillis());
+        return true;
+    }
+
+    private boolean isRecorderLocationCurrent() {
+        Location loc = mLocationManager.getCurrentLocation();
+        if (loc == null || mRecorderLocation == null) return loc == mRecorderLocation;
+        return loc.distanceTo(mRecorderLocation) <= PREPARED_RECORDER_LOCATION_TOLERANCE;
     }
 
     private void initializeEffectsPreview() {
@@ -1383,6 +1707,8 @@ public class VideoCamera extends ActivityBase
     private void releaseMediaRecorder() {
         Log.v(TAG, "Releasing media recorder.");
         if (mMediaRecorder != null) {
+            // An unused reserved file goes back to the reserver.
+            closeVideoOutputFile();
             cleanupEmptyFile();
             mMediaRecorder.reset();
             mMediaRecorder.release();
@@ -1425,25 +1751,39 @@ public class VideoCamera extends ActivityBase
         Log.v(TAG, "New video filename: " + mVideoFilename);
     }
 
+    private static void putVideoSize(String filename, ContentValues values) {
+        long size = new File(filename).length();
+        values.put(Video.Media.SIZE, size);
+        StorageSpaceTracker.instance().debit(filename, size);
+    }
+
+    // Puts the duration of a video which has been recorded since
+    // mSegmentStartTime.
+    private void putVideoDuration(ContentValues values) {
+        long duration = SystemClock.uptimeMillis() - mSegmentStartTime;
+        if (duration > 0) {
+            if (mCaptureTimeLapse) {
+                duration = getTimeLapseVideoLength(duration);
+            }
+            values.put(Video.Media.DURATION, duration);
+        } else {
+            Log.w(TAG, "Video duration <= 0 : " + duration);
+        }
+    }
+
+    private Uri insertVideo(ContentValues values) {
+        Uri videoTable = Uri.parse("content://media/external/video/media");
+        Uri uri = mContentResolver.insert(videoTable, values);
+        sendBroadcast(new Intent(android.hardware.Camera.ACTION_NEW_VIDEO, uri));
+        return uri;
+    }
+
     private void addVideoToMediaStore() {
         if (mVideoFileDescriptor == null) {
-            Uri videoTable = Uri.parse("content://media/external/video/media");
-            mCurrentVideoValues.put(Video.Media.SIZE,
-                    new File(mCurrentVideoFilename).length());
-            long duration = SystemClock.uptimeMillis() - mRecordingStartTime;
-            if (duration > 0) {
-                if (mCaptureTimeLapse) {
-                    duration = getTimeLapseVideoLength(duration);
-                }
-                mCurrentVideoValues.put(Video.Media.DURATION, duration);
-            } else {
-                Log.w(TAG, "Video duration <= 0 : " + duration);
-            }
+            putVideoSize(mCurrentVideoFilename, mCurrentVideoValues);
+            putVideoDuration(mCurrentVideoValues);
             try {
-                mCurrentVideoUri = mContentResolver.insert(videoTable,
-                        mCurrentVideoValues);
-                sendBroadcast(new Intent(android.hardware.Camera.ACTION_NEW_VIDEO,
-                        mCurrentVideoUri));
+                mCurrentVideoUri = insertVideo(mCurrentVideoValues);
             } catch (Exception e) {
                 // We failed to insert into the database. This can happen if
                 // the SD card is unmounted.
@@ -1465,6 +1805,7 @@ public class VideoCamera extends ActivityBase
                 mContentResolver.delete(mCurrentVideoUri, null, null);
                 mCurrentVideoUri = null;
             }
+            StorageSpaceTracker.instance().invalidate();
         }
         updateAndShowStorageHint();
     }
@@ -1524,6 +1865,7 @@ public class VideoCamera extends ActivityBase
         if (what == MediaRecorder.MEDIA_RECORDER_ERROR_UNKNOWN) {
             // We may have run out of space on the sdcard.
             stopVideoRecording();
+            StorageSpaceTracker.instance().invalidate();
             updateAndShowStorageHint();
         }
     }
@@ -1531,8 +1873,17 @@ public class VideoCamera extends ActivityBase
     // from MediaRecorder.OnInfoListener
     public void onInfo(MediaRecorder mr, int what, int extra) {
         if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED) {
-            if (mMediaRecorderRecording) onStopVideoRecording(true);
+            if (!mMediaRecorderRecording) return;
+            if (isSegmentedRecording()) {
+                startNextSegment();
+            } else {
+                onStopVideoRecording(true);
+            }
         } else if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+            if (mMediaRecorderRecording && mSegmentSizeLimited) {
+                startNextSegment();
+                return;
+            }
             if (mMediaRecorderRecording) onStopVideoRecording(true);
 
             // Show the toast.
@@ -1569,6 +1920,7 @@ public class VideoCamera extends ActivityBase
         }
 
         mCurrentVideoUri = null;
+        mFrameGrabber.cancel();
         if (effectsActive()) {
             initializeEffectsRecording();
             if (mEffectsRecorder == null) {
@@ -1576,7 +1928,7 @@ public class VideoCamera extends ActivityBase
                 return;
             }
         } else {
-            initializeRecorder();
+            if (!usePreparedRecorder()) initializeRecorder();
             if (mMediaRecorder == null) {
                 Log.e(TAG, "Fail to initialize media recorder");
                 return;
@@ -1609,6 +1961,7 @@ public class VideoCamera extends ActivityBase
 
         mMediaRecorderRecording = true;
         mRecordingStartTime = SystemClock.uptimeMillis();
+        mSegmentStartTime = mRecordingStartTime;
         showRecordingUI(true);
 
         updateRecordingTime();
@@ -1652,6 +2005,8 @@ public class VideoCamera extends ActivityBase
             if (videoFrame != null) {
                 mThumbnail = new Thumbnail(mCurrentVideoUri, videoFrame, 0);
                 mThumbnailView.setBitmap(mThumbnail.getBitmap());
+                LastMediaCache.instance(this).put(Storage.generateBucketId(mStorage),
+                        mThumbnail);
                 // Share popup may still have the reference to the old thumbnail. Clear it.
                 mSharePopup = null;
             }
@@ -1707,6 +2062,7 @@ public class VideoCamera extends ActivityBase
 
     private void stopVideoRecording() {
         Log.v(TAG, "stopVideoRecording");
+        discardPreparedRecorder();
         if (mMediaRecorderRecording) {
             boolean shouldAddToMediaStoreNow = false;
 
@@ -1721,6 +2077,7 @@ public class VideoCamera extends ActivityBase
                     mMediaRecorder.setOnErrorListener(null);
                     mMediaRecorder.setOnInfoListener(null);
                     mMediaRecorder.stop();
+                    closeVideoOutputFile();
                     shouldAddToMediaStoreNow = true;
                 }
                 mCurrentVideoFilename = mVideoFilename;
@@ -1731,23 +2088,313 @@ public class VideoCamera extends ActivityBase
                 if (mVideoFilename != null) deleteVideoFile(mVideoFilename);
             }
 
-            mMediaRecorderRecording = false;
-            showRecordingUI(false);
-            if (!mIsVideoCaptureIntent) {
-                enableCameraControls(true);
-            }
-            // The orientation was fixed during video recording. Now make it
-            // reflect the device orientation as video recording is stopped.
-            setOrientationIndicator(mOrientationCompensation);
-            keepScreenOnAwhile();
+            showRecordingStopped();
             if (shouldAddToMediaStoreNow) {
-                addVideoToMediaStore();
+                if (mIsVideoCaptureIntent) {
+                    // The caller needs the uri right away.
+                    addVideoToMediaStore();
+                } else {
+                    // getThumbnail() does nothing because mCurrentVideoUri
+                    // is not set. The finalizer posts the thumbnail instead.
+                    putVideoDuration(mCurrentVideoValues);
+                    mVideoFinalizer.addVideo(mCurrentVideoFilename, mCurrentVideoValues, true);
+                    mCurrentVideoValues = null;
+                }
             }
         }
         // always release media recorder
         if (!effectsActive()) {
             releaseMediaRecorder();
         }
+        updateStorageSpace();
+        reserveVideoFile();
+        prepareRecorderSoon();
+    }
+
+    private void showRecordingStopped() {
+        mMediaRecorderRecording = false;
+        showRecordingUI(false);
+        if (!mIsVideoCaptureIntent) {
+            enableCameraControls(true);
+        }
+        // The orientation was fixed during video recording. Now make it
+        // reflect the device orientation as video recording is stopped.
+        setOrientationIndicator(mOrientationCompensation);
+        keepScreenOnAwhile();
+    }
+
+    private boolean isSegmentedRecording() {
+        return mSegmentedRecordingEnabled && !mIsVideoCaptureIntent && !effectsActive();
+    }
+
+    // Ends the current segment and goes on recording into a new file. The
+    // camera can only feed one recorder, so the next recorder can only be
+    // prepared after the current one stops. The finished segment is added
+    // to the media store after the next one has started.
+    private void startNextSegment() {
+        updateStorageSpace();
+        if (mStorageSpace < Storage.LOW_STORAGE_THRESHOLD) {
+            onStopVideoRecording(true);
+            showStorageHint();
+            return;
+        }
+        Log.v(TAG, "Starting the next segment");
+
+        String filename = mVideoFilename;
+        ContentValues values = mCurrentVideoValues;
+        mMediaRecorder.setOnErrorListener(null);
+        mMediaRecorder.setOnInfoListener(null);
+        try {
+            mMediaRecorder.stop();
+            closeVideoOutputFile();
+            putVideoDuration(values);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "stop fail",  e);
+            deleteVideoFile(filename);
+            filename = null;
+        }
+        mVideoFilename = null;
+        releaseMediaRecorder();
+
+        // The segments of a recording share its orientation.
+        int rotation = mRecorderRotation;
+        int compensation = mOrientationCompensationAtRecordStart;
+        try {
+            createRecorder();
+            mMediaRecorder.setOrientationHint(rotation);
+            mMediaRecorder.prepare();
+            mMediaRecorder.setOnErrorListener(this);
+            mMediaRecorder.setOnInfoListener(this);
+            mMediaRecorder.start();
+            mRecorderRotation = rotation;
+            mOrientationCompensationAtRecordStart = compensation;
+            mSegmentStartTime = SystemClock.uptimeMillis();
+        } catch (Exception e) {
+            // The finished segment is the last one.
+            Log.e(TAG, "Could not start the next segment", e);
+            releaseMediaRecorder();
+            if (mCameraDevice != null) mCameraDevice.lock();
+            mOrientationCompensationAtRecordStart = compensation;
+            showRecordingStopped();
+            if (filename != null) {
+                mCurrentVideoFilename = filename;
+                mVideoFinalizer.addVideo(filename, values, true);
+            }
+            updateStorageSpace();
+            reserveVideoFile();
+            prepareRecorderSoon();
+            return;
+        }
+
+        if (filename != null) mVideoFinalizer.addVideo(filename, values, false);
+    }
+
+    private static class FinalizeRequest {
+        String filename;
+        ContentValues values;
+        boolean updateThumbnail;
+        int thumbnailWidth;
+        int orientation;
+        // The preview frame grabbed for the thumbnail. Guarded by this
+        // request.
+        Bitmap frame;
+        boolean framePending;
+    }
+
+    // VideoFinalizer adds the finished videos to the media store in the
+    // order they are added, and then makes the thumbnail of the video. They
+    // are slow for a long video, so they run in this thread and the UI is
+    // ready for the next recording right away. The thumbnail is posted back
+    // to the main thread.
+    //
+    // The thumbnail is made from a preview frame grabbed when the video is
+    // added. Only if the frame does not come, the last frame of the video
+    // is decoded.
+    private class VideoFinalizer extends Thread {
+        // How long to wait for the preview frame, in ms.
+        private static final long FRAME_TIMEOUT = 500;
+
+        private ArrayList<FinalizeRequest> mQueue;
+        private Thumbnail mPendingThumbnail;
+        private Object mUpdateThumbnailLock = new Object();
+        private boolean mStop;
+
+        // Runs in main thread
+        public VideoFinalizer() {
+            super("VideoFinalizer");
+            mQueue = new ArrayList<FinalizeRequest>();
+            start();
+        }
+
+        // Runs in main thread
+        public void addVideo(String filename, ContentValues values, boolean updateThumbnail) {
+            FinalizeRequest r = new FinalizeRequest();
+            r.filename = filename;
+            r.values = values;
+            r.updateThumbnail = updateThumbnail;
+            r.thumbnailWidth = mPreviewFrameLayout.getWidth();
+            if (updateThumbnail) grabFrame(r);
+            synchronized (this) {
+                mQueue.add(r);
+                notifyAll();  // Tell finalizer thread there is new work to do.
+            }
+        }
+
+        // Runs in finalizer thread
+        @Override
+        public void run() {
+            while (true) {
+                FinalizeRequest r;
+                synchronized (this) {
+                    if (mQueue.isEmpty()) {
+                        notifyAll();  // notify main thread in waitDone
+
+                        // Note that we can only stop after all the videos
+                        // in the queue are finalized.
+                        if (mStop) break;
+
+                        try {
+                            wait();
+                        } catch (InterruptedException ex) {
+                            // ignore.
+                        }
+                        continue;
+                    }
+                    r = mQueue.get(0);
+                }
+                finalizeVideo(r);
+                synchronized (this) {
+                    mQueue.remove(0);
+                    notifyAll();
+                }
+            }
+        }
+
+        // Runs in main thread
+        public void waitDone() {
+            synchronized (this) {
+                while (!mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                }
+            }
+            updateThumbnail();
+        }
+
+        // Runs in main thread
+        public void finish() {
+            waitDone();
+            synchronized (this) {
+                mStop = true;
+                notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException ex) {
+                // ignore.
+            }
+        }
+
+        // Runs in main thread (because we need to update mThumbnailView in the
+        // main thread)
+        public void updateThumbnail() {
+            Thumbnail t;
+            synchronized (mUpdateThumbnailLock) {
+                mHandler.removeMessages(UPDATE_THUMBNAIL);
+                t = mPendingThumbnail;
+                mPendingThumbnail = null;
+            }
+
+            if (t != null) {
+                mThumbnail = t;
+                mThumbnailView.setBitmap(mThumbnail.getBitmap());
+                LastMediaCache.instance(VideoCamera.this).put(
+                        Storage.generateBucketId(mStorage), mThumbnail);
+                // Share popup may still have the reference to the old thumbnail. Clear it.
+                mSharePopup = null;
+            }
+        }
+
+        // Runs in main thread
+        private void grabFrame(final FinalizeRequest r) {
+            // The recorder has locked the camera again, so the preview
+            // frames come to us. They are not rotated like the video is.
+            r.orientation = mRecorderRotation;
+            r.framePending = mParameters != null && mFrameGrabber.grab(mCameraDevice,
+                    mParameters, mThumbnailView.getWidth(),
+                    new PreviewFrameGrabber.Listener() {
+                        public void onFrameGrabbed(Bitmap frame) {
+                            setFrame(r, frame);
+                        }
+                    });
+        }
+
+        // Runs in main thread
+        private void setFrame(FinalizeRequest r, Bitmap frame) {
+            synchronized (r) {
+                if (r.framePending) {
+                    r.frame = frame;
+                    r.framePending = false;
+                    r.notifyAll();
+                    return;
+                }
+            }
+            // It is too late. The thumbnail is decoded from the file.
+            if (frame != null) BitmapPool.instance().put(frame);
+        }
+
+        // Runs in finalizer thread
+        private Bitmap waitFrame(FinalizeRequest r) {
+            long end = SystemClock.uptimeMillis() + FRAME_TIMEOUT;
+            synchronized (r) {
+                while (r.framePending) {
+                    long timeout = end - SystemClock.uptimeMillis();
+                    if (timeout <= 0) break;
+                    try {
+                        r.wait(timeout);
+                    } catch (InterruptedException ex) {
+                        // ignore.
+                    }
+                }
+                r.framePending = false;
+                Bitmap frame = r.frame;
+                r.frame = null;
+                return frame;
+            }
+        }
+
+        // Runs in finalizer thread
+        private void finalizeVideo(FinalizeRequest r) {
+            putVideoSize(r.filename, r.values);
+            Uri uri;
+            try {
+                uri = insertVideo(r.values);
+            } catch (Exception e) {
+                // We failed to insert into the database. This can happen if
+                // the SD card is unmounted.
+                Log.e(TAG, "Could not add " + r.filename + " to the media store", e);
+                return;
+            }
+            Log.v(TAG, "Finalized video URI: " + uri);
+            if (!r.updateThumbnail || uri == null) return;
+
+            Thumbnail thumbnail;
+            Bitmap frame = waitFrame(r);
+            if (frame != null) {
+                thumbnail = new Thumbnail(uri, frame, r.orientation);
+            } else {
+                Bitmap videoFrame = Thumbnail.createVideoThumbnail(r.filename, r.thumbnailWidth);
+                if (videoFrame == null) return;
+                thumbnail = new Thumbnail(uri, videoFrame, 0);
+            }
+            synchronized (mUpdateThumbnailLock) {
+                mPendingThumbnail = thumbnail;
+                mHandler.sendEmptyMessage(UPDATE_THUMBNAIL);
+            }
+        }
     }
 
     private void resetScreenOn() {
@@ -1775,10 +2422,8 @@ public class VideoCamera extends ActivityBase
     }
 
     private void updateThumbnailButton() {
-        if (mThumbnail == null || !Util.isUriValid(mThumbnail.getUri(), mContentResolver)) {
-            mThumbnail = Thumbnail.getLastThumbnail(mContentResolver,
-                Storage.generateBucketId(mStorage));
-        }
+        mThumbnail = LastMediaCache.instance(this).getLastThumbnail(mContentResolver,
+                Storage.generateBucketId(mStorage), mThumbnail);
         if (mThumbnail != null) {
             mThumbnailView.setBitmap(mThumbnail.getBitmap());
         } else {
@@ -1892,11 +2537,12 @@ public class VideoCamera extends ActivityBase
     }
 
     private void setCameraHardwareParameters() {
-        mCameraDevice.setParameters(mParameters);
+        mCommandQueue.setParameters(mParameters.flatten());
     }
 
     private void setCameraParameters() {
-        mParameters = mCameraDevice.getParameters();
+        invalidatePreparedRecorder();
+        mParameters = mCommandQueue.getParameters();
 
         // Set video mode
         CameraSettings.setVideoMode(mParameters, true);
@@ -1975,9 +2621,9 @@ public class VideoCamera extends ActivityBase
                 CameraProfile.QUALITY_HIGH);
         mParameters.setJpegQuality(jpegQuality);
 
-        mCameraDevice.setParameters(mParameters);
+        mCommandQueue.setParameters(mParameters.flatten());
         // Keep preview size up to date.
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mCommandQueue.getParameters();
     }
 
     private boolean switchToOtherMode(int mode) {
@@ -2129,6 +2775,7 @@ public class VideoCamera extends ActivityBase
             // If mCameraDevice is not ready then we can set the parameter in
             // startPreview().
             if (mCameraDevice == null) return;
+            invalidatePreparedRecorder();
 
             boolean recordLocation = RecordLocationPreference.get(
                     mPreferences, getContentResolver());
@@ -2181,7 +2828,7 @@ public class VideoCamera extends ActivityBase
                 if (size.width != mDesiredPreviewWidth
                         || size.height != mDesiredPreviewHeight || mRestartPreview) {
                     if (!effectsActive()) {
-                        mCameraDevice.stopPreview();
+                        mCommandQueue.stopPreview();
                     } else {
                         mEffectsRecorder.release();
                     }
@@ -2225,7 +2872,7 @@ public class VideoCamera extends ActivityBase
         }
         if (previousEffectType == EffectsRecorder.EFFECT_NONE) {
             // Stop regular preview and start effects.
-            mCameraDevice.stopPreview();
+            mCommandQueue.stopPreview();
             checkQualityAndStartPreview();
         } else {
             // Switch currently running effect
@@ -2314,16 +2961,17 @@ public class VideoCamera extends ActivityBase
                 mTargetZoomValue = -1;
                 if (mZoomState == ZOOM_START) {
                     mZoomState = ZOOM_STOPPING;
-                    mCameraDevice.stopSmoothZoom();
+                    mCommandQueue.stopSmoothZoom();
                 }
             }
         }
     }
 
     private void initializeZoom() {
+        invalidatePreparedRecorder();
         mZoomControl = (ZoomControl) findViewById(R.id.zoom_control);
         // Get the parameter to make sure we have the up-to-date zoom value.
-        mParameters = mCameraDevice.getParameters();
+        mParameters = mCommandQueue.getParameters();
         if (!mParameters.isZoomSupported()) return;
 
         mZoomMax = mParameters.getMaxZoom();
@@ -2352,10 +3000,11 @@ public class VideoCamera extends ActivityBase
 
             if (stopped && mZoomState != ZOOM_STOPPED) {
                 if (mTargetZoomValue != -1 && value != mTargetZoomValue) {
-                    mCameraDevice.startSmoothZoom(mTargetZoomValue);
+                    mCommandQueue.startSmoothZoom(mTargetZoomValue);
                     mZoomState = ZOOM_START;
                 } else {
                     mZoomState = ZOOM_STOPPED;
+                    prepareRecorderSoon();
                 }
             }
         }
@@ -2364,17 +3013,18 @@ public class VideoCamera extends ActivityBase
     private void onZoomValueChanged(int index) {
         // Not useful to change zoom value when the activity is paused.
         if (mPausing) return;
+        invalidatePreparedRecorder();
 
         if (mSmoothZoomSupported) {
             if (mTargetZoomValue != index && mZoomState != ZOOM_STOPPED) {
                 mTargetZoomValue = index;
                 if (mZoomState == ZOOM_START) {
                     mZoomState = ZOOM_STOPPING;
-                    mCameraDevice.stopSmoothZoom();
+                    mCommandQueue.stopSmoothZoom();
                 }
             } else if (mZoomState == ZOOM_STOPPED && mZoomValue != index) {
                 mTargetZoomValue = index;
-                mCameraDevice.startSmoothZoom(index);
+                mCommandQueue.startSmoothZoom(index);
                 mZoomState = ZOOM_START;
             }
         } else {
@@ -2421,10 +3071,10 @@ public class VideoCamera extends ActivityBase
         Util.setRotationParameter(mParameters, mCameraId, mOrientation);
         Location loc = mLocationManager.getCurrentLocation();
         Util.setGpsParameters(mParameters, loc);
-        mCameraDevice.setParameters(mParameters);
+        mCommandQueue.setParameters(mParameters.flatten());
 
         Log.v(TAG, "Video snapshot start");
-        mCameraDevice.takePicture(null, null, null, new JpegPictureCallback(loc));
+        mCommandQueue.takePicture(null, null, null, new JpegPictureCallback(loc));
         showVideoSnapshotUI(true);
         mSnapshotInProgress = true;
         return true;
@@ -2455,12 +3105,12 @@ public class VideoCamera extends ActivityBase
                 s.width, s.height);
         if (uri != null) {
             // Create a thumbnail whose width is equal or bigger than that of the preview.
-            int ratio = (int) Math.ceil((double) mParameters.getPictureSize().width
-                    / mPreviewFrameLayout.getWidth());
-            int inSampleSize = Integer.highestOneBit(ratio);
-            mThumbnail = Thumbnail.createThumbnail(data, orientation, inSampleSize, uri);
+            mThumbnail = Thumbnail.createThumbnail(data, orientation,
+                    mPreviewFrameLayout.getWidth(), 0, uri);
             if (mThumbnail != null) {
                 mThumbnailView.setBitmap(mThumbnail.getBitmap());
+                LastMediaCache.instance(this).put(Storage.generateBucketId(mStorage),
+                        mThumbnail);
             }
             // Share popup may still have the reference to the old thumbnail. Clear it.
             mSharePopup = null;
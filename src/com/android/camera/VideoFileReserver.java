@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// VideoFileReserver keeps a hidden file of zeros in the video directory,
+// which becomes the file of the next video. The zeros are written for real
+// in a background thread while the preview is idle, so the blocks of the
+// file are allocated before the recording starts. Extending a file with
+// setLength() does not do that: it makes a sparse file on ext4, and zeroes
+// the whole range synchronously on vfat.
+//
+// take() renames the reserved file to the video file. A file which the
+// recorder did not use is given back with giveBack(), so discarding a
+// prepared recorder does not cost a new reservation.
+public class VideoFileReserver {
+    private static final String TAG = "VideoFileReserver";
+    private static final String RESERVED_NAME = ".reserved_video";
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    public interface Listener {
+        // Called in the writer thread when the reserved file is ready.
+        public void onReserved();
+    }
+
+    private final String mDirectory;
+    private final File mFile;
+    private final Listener mListener;
+    // The length of the reserved file if it is ready, or 0.
+    private long mSize;
+    private Writer mWriter;
+
+    public VideoFileReserver(String directory, Listener listener) {
+        mDirectory = directory;
+        mFile = new File(directory, RESERVED_NAME);
+        mListener = listener;
+    }
+
+    public String getDirectory() {
+        return mDirectory;
+    }
+
+    // Starts writing a reserved file of the size in the background, unless
+    // a file of at least the size is ready or being written. The zeros
+    // already in the file are kept.
+    public synchronized void reserve(long size) {
+        if (size <= 0 || mSize >= size) return;
+        if (mWriter != null) {
+            if (mWriter.mTargetSize >= size) return;
+            mWriter.mCancelled = true;
+        }
+        // The file cannot be taken while it is written.
+        mSize = 0;
+        mWriter = new Writer(size);
+        mWriter.start();
+    }
+
+    // Renames the reserved file to path, which must be in the directory.
+    // Returns false if no reserved file is ready.
+    public synchronized boolean take(String path) {
+        if (mSize == 0 || !mDirectory.equals(new File(path).getParent())) return false;
+        mSize = 0;
+        if (!mFile.renameTo(new File(path))) {
+            Log.e(TAG, "Cannot rename " + mFile + " to " + path);
+            return false;
+        }
+        Log.v(TAG, "Took the reserved file for " + path);
+        return true;
+    }
+
+    // Takes back a taken file which the recorder did not write into.
+    // Returns false if the file is not taken back, and the caller still
+    // owns it.
+    public synchronized boolean giveBack(String path) {
+        if (mWriter != null || mSize > 0
+                || !mDirectory.equals(new File(path).getParent())) {
+            return false;
+        }
+        File file = new File(path);
+        long length = file.length();
+        if (length == 0 || !file.renameTo(mFile)) return false;
+        mSize = length;
+        Log.v(TAG, "Gave back " + path);
+        return true;
+    }
+
+    // Stops writing and deletes the reserved file, so it does not take the
+    // space while the camera is not used.
+    public synchronized void release() {
+        if (mWriter != null) {
+            mWriter.mCancelled = true;
+            mWriter = null;
+        }
+        mSize = 0;
+        mFile.delete();
+    }
+
+    private synchronized void onWriterDone(Writer writer, boolean reserved) {
+        if (mWriter != writer) return;
+        mWriter = null;
+        if (reserved) mSize = writer.mTargetSize;
+    }
+
+    private class Writer extends Thread {
+        final long mTargetSize;
+        volatile boolean mCancelled;
+
+        Writer(long size) {
+            super("VideoFileReserver");
+            mTargetSize = size;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            boolean reserved = write();
+            onWriterDone(this, reserved);
+            if (reserved && !mCancelled && mListener != null) mListener.onReserved();
+        }
+
+        private boolean write() {
+            RandomAccessFile file = null;
+            try {
+                mFile.getParentFile().mkdirs();
+                file = new RandomAccessFile(mFile, "rw");
+                long offset = Math.min(file.length(), mTargetSize);
+                file.seek(offset);
+                byte[] zeros = new byte[CHUNK_SIZE];
+                while (offset < mTargetSize) {
+                    if (mCancelled) return false;
+                    int count = (int) Math.min(CHUNK_SIZE, mTargetSize - offset);
+                    file.write(zeros, 0, count);
+                    offset += count;
+                }
+                file.setLength(mTargetSize);
+                // Write the zeros back now, not while the recorder writes.
+                file.getFD().sync();
+                Log.v(TAG, "Reserved " + mTargetSize + " bytes in " + mFile);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot reserve " + mTargetSize + " bytes in " + mFile, e);
+                mFile.delete();
+                return false;
+            } finally {
+                Util.closeSilently(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// VideoOutputFile is a video file whose space is reserved before the
+// recording starts, so the recorder does not grow the file while it writes.
+// Growing a file on fragmented flash stalls the writes and drops frames.
+// The file comes from VideoFileReserver, which writes its zeros in advance.
+//
+// The recorder writes into the file through getFileDescriptor(). The file
+// is longer than the video, and close() truncates it to the end of the
+// last complete MP4 box. The 3GP and MPEG-4 files of MediaRecorder are both
+// made of such boxes, and the reserved space after them is zero.
+public class VideoOutputFile {
+    private static final String TAG = "VideoOutputFile";
+
+    // The header of a box is a 32-bit size and a 32-bit type. If the size is
+    // 1, a 64-bit size follows the type. If it is 0, the box extends to the
+    // end of the file.
+    private static final int BOX_HEADER_SIZE = 8;
+    private static final int LARGE_BOX_HEADER_SIZE = 16;
+
+    private final String mPath;
+    private RandomAccessFile mFile;
+
+    private VideoOutputFile(String path, RandomAccessFile file) {
+        mPath = path;
+        mFile = file;
+    }
+
+    // Opens the reserved file at path for the recorder.
+    public static VideoOutputFile open(String path) throws IOException {
+        return new VideoOutputFile(path, new RandomAccessFile(path, "rw"));
+    }
+
+    // Returns how many bytes to reserve for a video of the bit rates which
+    // is expected to last durationMs, but no more than maxBytes.
+    public static long getReserveSize(int videoBitRate, int audioBitRate, long durationMs,
+            long maxBytes) {
+        long bytes = ((long) videoBitRate + audioBitRate) / 8 * durationMs / 1000;
+        return Math.max(0, Math.min(bytes, maxBytes));
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public FileDescriptor getFileDescriptor() throws IOException {
+        return mFile.getFD();
+    }
+
+    // Truncates the file to what the recorder wrote and closes it. The
+    // recorder must be stopped. It does nothing if the file is closed.
+    public void close() {
+        if (mFile == null) return;
+        try {
+            long length = findEnd(mFile);
+            mFile.setLength(length);
+            Log.v(TAG, "Truncated " + mPath + " to " + length + " bytes");
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot truncate " + mPath, e);
+        } finally {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // ignore.
+            }
+            mFile = null;
+        }
+    }
+
+    // Returns true if the recorder wrote into the file. The recorder must be
+    // stopped or not started.
+    public boolean isUsed() throws IOException {
+        return findEnd(mFile) > 0;
+    }
+
+    // Closes the file without truncating it, so its space stays reserved.
+    public void release() {
+        Util.closeSilently(mFile);
+        mFile = null;
+    }
+
+    // Returns the end of the last complete box from the start of the file.
+    public static long findEnd(RandomAccessFile file) throws IOException {
+        long length = file.length();
+        long offset = 0;
+        while (offset + BOX_HEADER_SIZE <= length) {
+            file.seek(offset);
+            long size = file.readInt() & 0xffffffffL;
+            int type = file.readInt();
+            // The reserved space is zero.
+            if (type == 0) break;
+            if (size == 0) return length;
+            if (size == 1) {
+                if (offset + LARGE_BOX_HEADER_SIZE > length) break;
+                size = file.readLong();
+                if (size < LARGE_BOX_HEADER_SIZE) break;
+            } else if (size < BOX_HEADER_SIZE) {
+                break;
+            }
+            if (offset + size > length) break;
+            offset += size;
+        }
+        return offset;
+    }
+}
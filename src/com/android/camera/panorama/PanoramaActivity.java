@@ -22,7 +22,8 @@ import com.android.camera.CameraHardwareException;
 import com.android.camera.CameraHolder;
 import com.android.camera.CameraSettings;
 import com.android.camera.ComboPreferences;
-import com.android.camera.Exif;
+import com.android.camera.ExifWriter;
+import com.android.camera.LastMediaCache;
 import com.android.camera.MenuHelper;
 import com.android.camera.ModePicker;
 import com.android.camera.OnClickAttr;
@@ -38,7 +39,6 @@ import com.android.camera.ui.RotateImageView;
 import com.android.camera.ui.RotateLayout;
 import com.android.camera.ui.SharePopup;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.AssetFileDescriptor;
 import android.content.pm.ActivityInfo;
@@ -55,7 +55,6 @@ import android.hardware.Camera.Size;
 import android.hardware.CameraSound;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -76,7 +75,6 @@ import android.widget.TextView;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.IOException;
 import java.util.List;
 
 /**
@@ -830,12 +828,9 @@ public class PanoramaActivity extends ActivityBase implements
     }
 
     private void updateThumbnailButton() {
-        // Update last image if URI is invalid and the storage is ready.
-        ContentResolver contentResolver = getContentResolver();
-        if ((mThumbnail == null || !Util.isUriValid(mThumbnail.getUri(), contentResolver))) {
-            mThumbnail = Thumbnail.getLastThumbnail(contentResolver,
-                Storage.generateBucketId(mStorage));
-        }
+        // Update last image.
+        mThumbnail = LastMediaCache.instance(this).getLastThumbnail(getContentResolver(),
+                Storage.generateBucketId(mStorage), mThumbnail);
         if (mThumbnail != null) {
             mThumbnailView.setBitmap(mThumbnail.getBitmap());
         } else {
@@ -845,7 +840,7 @@ public class PanoramaActivity extends ActivityBase implements
 
     private void saveThumbnailToFile() {
         if (mThumbnail != null && !mThumbnail.fromFile()) {
-            mThumbnail.saveTo(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
+            mThumbnail.saveToAsync(new File(getFilesDir(), Thumbnail.LAST_THUMB_FILENAME));
         }
     }
 
@@ -877,14 +872,12 @@ public class PanoramaActivity extends ActivityBase implements
                     if (uri != null) {
                         // Create a thumbnail whose width or height is equal or bigger
                         // than the screen's width or height.
-                        int widthRatio = (int) Math.ceil((double) jpeg.width
-                                / mPanoLayout.getWidth());
-                        int heightRatio = (int) Math.ceil((double) jpeg.height
-                                / mPanoLayout.getHeight());
-                        int inSampleSize = Integer.highestOneBit(
-                                Math.max(widthRatio, heightRatio));
-                        mThumbnail = Thumbnail.createThumbnail(
-                                jpeg.data, orientation, inSampleSize, uri);
+                        mThumbnail = Thumbnail.createThumbnail(jpeg.data, orientation,
+                                mPanoLayout.getWidth(), mPanoLayout.getHeight(), uri);
+                        if (mThumbnail != null) {
+                            LastMediaCache.instance(PanoramaActivity.this).put(
+                                    Storage.generateBucketId(mStorage), mThumbnail);
+                        }
                         Util.broadcastNewPicture(PanoramaActivity.this, uri);
                     }
                     mMainHandler.sendMessage(
@@ -965,40 +958,19 @@ public class PanoramaActivity extends ActivityBase implements
         if (jpegData != null) {
             String filename = PanoUtil.createName(
                     getResources().getString(R.string.pano_file_name_format), mTimeTaken);
-            Uri uri = Storage.addImage(getContentResolver(), mStorage, filename, mTimeTaken, null,
+            // Put the EXIF in the data before it is written, so the file
+            // does not need to be rewritten afterwards.
+            jpegData = new ExifWriter()
+                    .setOrientation(orientation)
+                    .setDateTaken(mTimeTaken)
+                    .setImageSize(width, height)
+                    .apply(jpegData);
+            return Storage.addImage(getContentResolver(), mStorage, filename, mTimeTaken, null,
                     orientation, jpegData, width, height);
-            if (uri != null && orientation != 0) {
-                String filepath = Storage.generateFilepath(mStorage, filename);
-                try {
-                    // Save the orientation in EXIF.
-                    ExifInterface exif = new ExifInterface(filepath);
-                    exif.setAttribute(ExifInterface.TAG_ORIENTATION,
-                            getExifOrientation(orientation));
-                    exif.saveAttributes();
-                } catch (IOException e) {
-                    Log.e(TAG, "cannot set exif data: " + filepath);
-                }
-            }
-            return uri;
         }
         return null;
     }
 
-    private static String getExifOrientation(int orientation) {
-        switch (orientation) {
-            case 0:
-                return String.valueOf(ExifInterface.ORIENTATION_NORMAL);
-            case 90:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_90);
-            case 180:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_180);
-            case 270:
-                return String.valueOf(ExifInterface.ORIENTATION_ROTATE_270);
-            default:
-                throw new AssertionError("invalid: " + orientation);
-        }
-    }
-
     private void clearMosaicFrameProcessorIfNeeded() {
         if (!mPausing || mThreadRunning) return;
         mMosaicFrameProcessor.clear();
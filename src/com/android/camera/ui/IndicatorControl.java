@@ -104,6 +104,20 @@ public abstract class IndicatorControl extends RelativeLayout implements
         }
     }
 
+    // Removes the controls added by initialize(), so it can be called again
+    // with another preference group.
+    protected void removeControls() {
+        dismissSettingPopup();
+        for (AbstractIndicatorButton b : mIndicators) {
+            removeView(b);
+        }
+        mIndicators.clear();
+        if (mCameraPicker != null) {
+            removeView(mCameraPicker);
+            mCameraPicker = null;
+        }
+    }
+
     protected void initializeCameraPicker() {
         ListPreference pref = mPreferenceGroup.findPreference(
                 CameraSettings.KEY_CAMERA_ID);
@@ -53,6 +53,11 @@ public class IndicatorControlBar extends IndicatorControl implements
 
     public void initialize(Context context, PreferenceGroup group,
             boolean zoomSupported) {
+        removeControls();
+        if (mZoomControl != null) {
+            mZoomControl.setVisibility(View.GONE);
+            mZoomControl = null;
+        }
         setPreferenceGroup(group);
 
         // Add CameraPicker control.
@@ -156,6 +156,7 @@ public class IndicatorControlWheel extends IndicatorControl implements
 
     public void initialize(Context context, PreferenceGroup group,
             boolean isZoomSupported, String[] keys, String[] otherSettingKeys) {
+        if (mInitialized) removeControls();
         mShutterButtonRadius = IndicatorControlWheelContainer.SHUTTER_BUTTON_RADIUS;
         mStrokeWidth = Util.dpToPixel(IndicatorControlWheelContainer.STROKE_WIDTH);
         mWheelRadius = mShutterButtonRadius + mStrokeWidth * 0.5;
@@ -186,6 +187,20 @@ public class IndicatorControlWheel extends IndicatorControl implements
         mInitialized = true;
     }
 
+    @Override
+    protected void removeControls() {
+        super.removeControls();
+        removeView(mSecondLevelIcon);
+        removeView(mCloseIcon);
+        if (mZoomControl != null) {
+            mZoomControl.setVisibility(View.GONE);
+            mZoomControl = null;
+        }
+        mCurrentLevel = 0;
+        mPressedIndex = -1;
+        mInitialized = false;
+    }
+
     private ImageView addImageButton(Context context, int resourceId, boolean rotatable) {
         ImageView view;
         if (rotatable) {
@@ -59,6 +59,7 @@ public class SecondLevelIndicatorControlBar extends IndicatorControl implements
     public void initialize(Context context, PreferenceGroup group,
             String[] keys, String[] otherSettingKeys) {
 
+        removeControls();
         setPreferenceGroup(group);
         mNonIndicatorButtonCount = getChildCount();
         addControls(keys, otherSettingKeys);
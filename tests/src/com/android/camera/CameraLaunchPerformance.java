@@ -16,31 +16,60 @@
 
 package com.android.camera;
 
+import com.android.camera.stress.TestUtil;
+
 import android.app.Activity;
 import android.os.Bundle;
 import android.test.LaunchPerformanceBase;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Instrumentation class for Camera launch performance testing.
  */
 public class CameraLaunchPerformance extends LaunchPerformanceBase {
-    @SuppressWarnings("unused")
     private static final String TAG = "CameraLaunchPerformance";
+    private static final long WAIT_TIME_FOR_STARTUP_TRACE = 5000;
 
     @Override
     public void onCreate(Bundle arguments) {
         super.onCreate(arguments);
         mIntent.setClassName(getTargetContext(), "com.android.camera.Camera");
+        TestUtil.STARTUP_TRACE_FILE.delete();
+        StartupProfiler.instance().setTraceFile(TestUtil.STARTUP_TRACE_FILE);
         start();
     }
 
     /**
-     * Calls LaunchApp and finish.
+     * Calls LaunchApp, collects the startup phases and finish.
      */
     @Override
     public void onStart() {
         super.onStart();
         LaunchApp();
+        collectStartupPhases();
         finish(Activity.RESULT_OK, mResults);
     }
+
+    // Puts the duration of each startup phase into the results, and the
+    // phases slower than the baseline, if any.
+    private void collectStartupPhases() {
+        try {
+            HashMap<String, Float> phases =
+                    TestUtil.waitForStartupTrace(WAIT_TIME_FOR_STARTUP_TRACE);
+            StartupProfiler.instance().setTraceFile(null);
+            if (phases == null) return;
+            for (Map.Entry<String, Float> e : phases.entrySet()) {
+                mResults.putFloat("startup_" + e.getKey(), e.getValue());
+            }
+            String regressions = TestUtil.compareWithStartupBaseline(phases);
+            if (regressions.length() > 0) {
+                mResults.putString("startup_regressions", regressions);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Cannot collect the startup phases", e);
+        }
+    }
 }
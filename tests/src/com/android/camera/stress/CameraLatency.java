@@ -17,6 +17,8 @@
 package com.android.camera.stress;
 
 import com.android.camera.Camera;
+import com.android.camera.LatencyHistogram;
+import com.android.camera.LatencyTracker;
 
 import android.app.Instrumentation;
 import android.os.Environment;
@@ -40,17 +42,6 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
     private static final String CAMERA_TEST_OUTPUT_FILE =
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
 
-    private long mTotalAutoFocusTime;
-    private long mTotalShutterLag;
-    private long mTotalShutterToPictureDisplayedTime;
-    private long mTotalPictureDisplayedToJpegCallbackTime;
-    private long mTotalJpegCallbackFinishTime;
-    private long mAvgAutoFocusTime;
-    private long mAvgShutterLag = mTotalShutterLag;
-    private long mAvgShutterToPictureDisplayedTime;
-    private long mAvgPictureDisplayedToJpegCallbackTime;
-    private long mAvgJpegCallbackFinishTime;
-
     public CameraLatency() {
         super(Camera.class);
     }
@@ -70,6 +61,7 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
     public void testImageCapture() {
         Log.v(TAG, "start testImageCapture test");
         Instrumentation inst = getInstrumentation();
+        LatencyTracker tracker = LatencyTracker.instance();
         inst.sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_DOWN);
         try {
             for (int i = 0; i < TOTAL_NUMBER_OF_IMAGECAPTURE; i++) {
@@ -77,16 +69,7 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
                 inst.sendKeyDownUpSync(KeyEvent.KEYCODE_DPAD_CENTER);
                 Thread.sleep(WAIT_FOR_IMAGE_CAPTURE_TO_BE_TAKEN);
                 //skip the first measurement
-                if (i != 0) {
-                    Camera c = getActivity();
-                    mTotalAutoFocusTime += c.mAutoFocusTime;
-                    mTotalShutterLag += c.mShutterLag;
-                    mTotalShutterToPictureDisplayedTime +=
-                            c.mShutterToPictureDisplayedTime;
-                    mTotalPictureDisplayedToJpegCallbackTime +=
-                            c.mPictureDisplayedToJpegCallbackTime;
-                    mTotalJpegCallbackFinishTime += c.mJpegCallbackFinishTime;
-                }
+                if (i == 0) tracker.reset();
             }
         } catch (Exception e) {
             Log.v(TAG, "Got exception", e);
@@ -94,17 +77,6 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
         //ToDO: yslau
         //1) Need to get the baseline from the cupcake so that we can add the
         //failure condition of the camera latency.
-        //2) Only count those number with succesful capture. Set the timer to invalid
-        //before capture and ignore them if the value is invalid
-        int numberofRun = TOTAL_NUMBER_OF_IMAGECAPTURE - 1;
-        mAvgAutoFocusTime = mTotalAutoFocusTime / numberofRun;
-        mAvgShutterLag = mTotalShutterLag / numberofRun;
-        mAvgShutterToPictureDisplayedTime =
-                mTotalShutterToPictureDisplayedTime / numberofRun;
-        mAvgPictureDisplayedToJpegCallbackTime =
-                mTotalPictureDisplayedToJpegCallbackTime / numberofRun;
-        mAvgJpegCallbackFinishTime =
-                mTotalJpegCallbackFinishTime / numberofRun;
 
         try {
             FileWriter fstream = null;
@@ -112,14 +84,7 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
             BufferedWriter out = new BufferedWriter(fstream);
             out.write("Camera Latency : \n");
             out.write("Number of loop: " + TOTAL_NUMBER_OF_IMAGECAPTURE + "\n");
-            out.write("Avg AutoFocus = " + mAvgAutoFocusTime + "\n");
-            out.write("Avg mShutterLag = " + mAvgShutterLag + "\n");
-            out.write("Avg mShutterToPictureDisplayedTime = "
-                    + mAvgShutterToPictureDisplayedTime + "\n");
-            out.write("Avg mPictureDisplayedToJpegCallbackTime = "
-                    + mAvgPictureDisplayedToJpegCallbackTime + "\n");
-            out.write("Avg mJpegCallbackFinishTime = " +
-                    mAvgJpegCallbackFinishTime + "\n");
+            tracker.dump(out);
             out.close();
             fstream.close();
         } catch (Exception e) {
@@ -127,13 +92,14 @@ public class CameraLatency extends ActivityInstrumentationTestCase2 <Camera> {
         }
         Log.v(TAG, "The Image capture wait time = " +
             WAIT_FOR_IMAGE_CAPTURE_TO_BE_TAKEN);
-        Log.v(TAG, "Avg AutoFocus = " + mAvgAutoFocusTime);
-        Log.v(TAG, "Avg mShutterLag = " + mAvgShutterLag);
-        Log.v(TAG, "Avg mShutterToPictureDisplayedTime = "
-                + mAvgShutterToPictureDisplayedTime);
-        Log.v(TAG, "Avg mPictureDisplayedToJpegCallbackTime = "
-                + mAvgPictureDisplayedToJpegCallbackTime);
-        Log.v(TAG, "Avg mJpegCallbackFinishTime = " + mAvgJpegCallbackFinishTime);
+        for (int i = 0; i < LatencyTracker.SPAN_COUNT; i++) {
+            LatencyHistogram h = tracker.getHistogram(i);
+            Log.v(TAG, LatencyTracker.getSpanName(i) + ": count = " + h.getCount()
+                    + ", p50 = " + h.getPercentile(0.5) / 1000
+                    + ", p95 = " + h.getPercentile(0.95) / 1000
+                    + ", p99 = " + h.getPercentile(0.99) / 1000);
+        }
+        // Only the shots which reached the jpeg callback are counted.
+        assertTrue(tracker.getHistogram(LatencyTracker.SPAN_JPEG).getCount() > 0);
     }
 }
-
@@ -17,6 +17,7 @@
 package com.android.camera.stress;
 
 import com.android.camera.Camera;
+import com.android.camera.StartupProfiler;
 import com.android.camera.VideoCamera;
 
 import android.app.Activity;
@@ -30,6 +31,8 @@ import android.util.Log;
 
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Test cases to measure the camera and video recorder startup time.
@@ -42,10 +45,16 @@ public class CameraStartUp extends InstrumentationTestCase {
     private static final String CAMERA_TEST_OUTPUT_FILE =
             Environment.getExternalStorageDirectory().toString() + "/mediaStressOut.txt";
     private static int WAIT_TIME_FOR_PREVIEW = 1500; //1.5 second
+    private static int WAIT_TIME_FOR_STARTUP_TRACE = 5000;
+
+    // The startup phases of the last camera launch, or null.
+    private HashMap<String, Float> mStartupPhases;
 
     private long launchCamera() {
         long startupTime = 0;
         try {
+            TestUtil.STARTUP_TRACE_FILE.delete();
+            StartupProfiler.instance().setTraceFile(TestUtil.STARTUP_TRACE_FILE);
             Intent intent = new Intent(Intent.ACTION_MAIN);
             intent.setClass(getInstrumentation().getTargetContext(), Camera.class);
             intent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -53,6 +62,8 @@ public class CameraStartUp extends InstrumentationTestCase {
             Instrumentation inst = getInstrumentation();
             Activity cameraActivity = inst.startActivitySync(intent);
             long cameraStarted = System.currentTimeMillis();
+            // The trace is written when the camera finishes starting up.
+            mStartupPhases = TestUtil.waitForStartupTrace(WAIT_TIME_FOR_STARTUP_TRACE);
             cameraActivity.finish();
             startupTime = cameraStarted - beforeStart;
             Thread.sleep(1000);
@@ -112,6 +123,17 @@ public class CameraStartUp extends InstrumentationTestCase {
         }
     }
 
+    private void writeToOutputFile(String text) {
+        try {
+            BufferedWriter out = new BufferedWriter(
+                    new FileWriter(CAMERA_TEST_OUTPUT_FILE, true));
+            out.write(text + "\n");
+            out.close();
+        } catch (Exception e) {
+            fail("Camera write output to file");
+        }
+    }
+
     @LargeTest
     public void testLaunchVideo() throws Exception {
         String individualStartupTime;
@@ -139,6 +161,8 @@ public class CameraStartUp extends InstrumentationTestCase {
         individualStartupTime = "Individual Camera Startup Time = ";
         long totalStartupTime = 0;
         long startupTime = 0;
+        HashMap<String, Float> phaseTotals = new HashMap<String, Float>();
+        int traceCount = 0;
         for (int i = 0; i < TOTAL_NUMBER_OF_STARTUP; i++) {
             if (i == 0) {
                 // Capture the first startup time individually
@@ -148,10 +172,31 @@ public class CameraStartUp extends InstrumentationTestCase {
                 startupTime = launchCamera();
                 totalStartupTime += startupTime;
                 individualStartupTime += startupTime + " ,";
+                if (mStartupPhases != null) {
+                    for (Map.Entry<String, Float> e : mStartupPhases.entrySet()) {
+                        Float total = phaseTotals.get(e.getKey());
+                        phaseTotals.put(e.getKey(),
+                                (total == null) ? e.getValue() : total + e.getValue());
+                    }
+                    traceCount++;
+                }
             }
         }
+        StartupProfiler.instance().setTraceFile(null);
         Log.v(TAG, "totalStartupTime =" + totalStartupTime);
         writeToOutputFile(totalStartupTime,
                 individualStartupTime, false, "Camera");
+
+        // Compare the average of each startup phase with the baseline.
+        assertTrue("No startup trace", traceCount > 0);
+        String phases = "Camera average startup phases:\n";
+        for (Map.Entry<String, Float> e : phaseTotals.entrySet()) {
+            e.setValue(e.getValue() / traceCount);
+            phases += e.getKey() + " = " + e.getValue() + " ms\n";
+        }
+        writeToOutputFile(phases);
+        String regressions = TestUtil.compareWithStartupBaseline(phaseTotals);
+        assertTrue("Startup phases slower than the baseline:\n" + regressions,
+                regressions.length() == 0);
     }
 }
\ No newline at end of file
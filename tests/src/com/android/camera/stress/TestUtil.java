@@ -16,15 +16,29 @@
 
 package com.android.camera.stress;
 
+import com.android.camera.StartupProfiler;
+
 import android.os.Environment;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
  * Collection of utility functions used for the test.
  */
 public class TestUtil {
+    public static final File STARTUP_TRACE_FILE = new File(
+            Environment.getExternalStorageDirectory(), "cameraStartupTrace.txt");
+    public static final File STARTUP_BASELINE_FILE = new File(
+            Environment.getExternalStorageDirectory(), "cameraStartupBaseline.txt");
+    // A phase regresses if it is slower than the baseline by both of these.
+    private static final float STARTUP_TOLERANCE_RATIO = 1.25f;
+    private static final float STARTUP_TOLERANCE_MS = 20;
+
     public BufferedWriter mOut;
     public FileWriter mfstream;
 
@@ -54,4 +68,50 @@ public class TestUtil {
         mOut.write(" ," + iteration);
         mOut.flush();
     }
+
+    // Waits for the camera to write the startup trace and returns the
+    // duration of each phase, or null if there is no trace.
+    public static HashMap<String, Float> waitForStartupTrace(long timeoutMs)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!STARTUP_TRACE_FILE.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        return StartupProfiler.readDurations(STARTUP_TRACE_FILE);
+    }
+
+    // Compares the startup phases with the baseline file. Returns the
+    // phases which regressed, or an empty string. If there is no baseline
+    // yet, the durations are stored as the baseline.
+    public static String compareWithStartupBaseline(Map<String, Float> durations)
+            throws IOException {
+        HashMap<String, Float> baseline = STARTUP_BASELINE_FILE.exists()
+                ? StartupProfiler.readDurations(STARTUP_BASELINE_FILE) : null;
+        if (baseline == null) {
+            // Like the trace, the baseline is renamed into place when it is
+            // complete.
+            File temp = new File(STARTUP_BASELINE_FILE.getPath() + ".tmp");
+            BufferedWriter out = new BufferedWriter(new FileWriter(temp));
+            for (Map.Entry<String, Float> e : durations.entrySet()) {
+                out.write("baseline\t" + e.getKey() + "\t0\t" + e.getValue() + "\n");
+            }
+            out.close();
+            if (!temp.renameTo(STARTUP_BASELINE_FILE)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+            return "";
+        }
+        StringBuilder regressions = new StringBuilder();
+        for (Map.Entry<String, Float> e : baseline.entrySet()) {
+            Float duration = durations.get(e.getKey());
+            if (duration == null) continue;
+            float base = e.getValue();
+            if (duration > base * STARTUP_TOLERANCE_RATIO
+                    && duration > base + STARTUP_TOLERANCE_MS) {
+                regressions.append(e.getKey() + ": " + duration + " ms (baseline "
+                        + base + " ms)\n");
+            }
+        }
+        return regressions.toString();
+    }
 }
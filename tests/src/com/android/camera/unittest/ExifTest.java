@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.Exif;
+import com.android.camera.ExifWriter;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class ExifTest extends TestCase {
+    private static final int TIFF_LENGTH = 216;
+    private static final int THUMBNAIL_OFFSET = 212;
+    private static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+
+    public void testParse() {
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            byte[] jpeg = createJpeg(order);
+            Exif exif = new Exif();
+            assertTrue(exif.parse(jpeg));
+            assertTrue(exif.hasExif());
+            assertEquals(order == ByteOrder.LITTLE_ENDIAN, exif.isLittleEndian());
+            assertEquals(2, exif.getApp1Offset());
+            assertEquals(jpeg.length - 4, exif.getApp1Length());
+
+            assertEquals(90, exif.getOrientation());
+            assertEquals(4000, exif.getImageWidth());
+            assertEquals(3000, exif.getImageHeight());
+            assertEquals(Exif.TYPE_SHORT, exif.getTagType(Exif.IFD_0, Exif.TAG_ORIENTATION));
+            assertFalse(exif.hasTag(Exif.IFD_0, Exif.TAG_DATE_TIME));
+
+            double[] latLong = new double[2];
+            assertTrue(exif.getLatLong(latLong));
+            assertEquals(37 + 25 / 60.0 + 19.5 / 3600, latLong[0], 1e-9);
+            assertEquals(-(122 + 5 / 60.0), latLong[1], 1e-9);
+            assertEquals("N", exif.getString(Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE_REF));
+
+            int offset = exif.getThumbnailOffset();
+            assertEquals(exif.getTiffOffset() + THUMBNAIL_OFFSET, offset);
+            assertEquals(THUMBNAIL.length, exif.getThumbnailLength());
+            for (int i = 0; i < THUMBNAIL.length; i++) {
+                assertEquals(THUMBNAIL[i], jpeg[offset + i]);
+            }
+
+            assertEquals(90, Exif.getOrientation(jpeg));
+        }
+    }
+
+    public void testReuse() {
+        Exif exif = new Exif();
+        assertTrue(exif.parse(createJpeg(ByteOrder.BIG_ENDIAN)));
+        assertFalse(exif.parse(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9}));
+        assertFalse(exif.hasExif());
+        assertEquals(0, exif.getOrientation());
+        assertEquals(-1, exif.getThumbnailOffset());
+        assertFalse(exif.getLatLong(new double[2]));
+    }
+
+    public void testTruncated() {
+        byte[] jpeg = createJpeg(ByteOrder.BIG_ENDIAN);
+        for (int length = 0; length < jpeg.length; length += 7) {
+            ByteBuffer buffer = ByteBuffer.wrap(jpeg, 0, length);
+            // Must not throw.
+            new Exif().parse(buffer);
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    public void testOverflowingCount() {
+        // 8 * 0x20000001 is 8 in 32 bits.
+        assertLatitudeSkipped(4, 0x20000001);
+    }
+
+    public void testOverflowingOffset() {
+        // The end of the three rationals at this offset is past 2^31.
+        assertLatitudeSkipped(8, 0x7ffffff0);
+    }
+
+    // Sets the 32-bit field at the position in the GPS latitude entry, and
+    // checks the entry is skipped.
+    private static void assertLatitudeSkipped(int position, int value) {
+        byte[] jpeg = createJpeg(ByteOrder.BIG_ENDIAN);
+        Exif exif = new Exif();
+        assertTrue(exif.parse(jpeg));
+        ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+        int ifdOffset = exif.getIfdOffset(Exif.IFD_GPS);
+        int count = buffer.getShort(ifdOffset);
+        for (int i = 0; i < count; i++) {
+            int entry = ifdOffset + 2 + i * 12;
+            if (buffer.getShort(entry) == Exif.TAG_GPS_LATITUDE) {
+                buffer.putInt(entry + position, value);
+            }
+        }
+
+        assertTrue(exif.parse(jpeg));
+        assertFalse(exif.hasTag(Exif.IFD_GPS, Exif.TAG_GPS_LATITUDE));
+        assertFalse(exif.getLatLong(new double[2]));
+    }
+
+    public void testApplyInPlace() {
+        byte[] jpeg = createJpeg(ByteOrder.LITTLE_ENDIAN);
+        byte[] result = new ExifWriter()
+                .setOrientation(180)
+                .setLocation(-33.5, 151.25)
+                .setImageSize(640, 480)
+                .apply(jpeg);
+        // All the tags exist, so they are patched in place.
+        assertTrue(result == jpeg);
+
+        Exif exif = new Exif();
+        assertTrue(exif.parse(result));
+        assertEquals(180, exif.getOrientation());
+        assertEquals(640, exif.getImageWidth());
+        assertEquals(480, exif.getImageHeight());
+        double[] latLong = new double[2];
+        assertTrue(exif.getLatLong(latLong));
+        assertEquals(-33.5, latLong[0], 1e-6);
+        assertEquals(151.25, latLong[1], 1e-6);
+    }
+
+    public void testApplyRebuild() {
+        byte[] jpeg = createJpeg(ByteOrder.BIG_ENDIAN);
+        byte[] result = new ExifWriter()
+                .setOrientation(270)
+                .setDateTaken(0)
+                .apply(jpeg);
+        // There is no date, so a new APP1 segment is built.
+        assertTrue(result != jpeg);
+
+        Exif exif = new Exif();
+        assertTrue(exif.parse(result));
+        assertEquals(270, exif.getOrientation());
+        assertEquals(19, exif.getString(Exif.IFD_0, Exif.TAG_DATE_TIME).length());
+        assertEquals(exif.getString(Exif.IFD_0, Exif.TAG_DATE_TIME),
+                exif.getString(Exif.IFD_EXIF, Exif.TAG_DATE_TIME_ORIGINAL));
+        // The other tags and the thumbnail are kept.
+        assertEquals(4000, exif.getImageWidth());
+        assertEquals(3000, exif.getImageHeight());
+        assertTrue(exif.getLatLong(new double[2]));
+        int offset = exif.getThumbnailOffset();
+        assertEquals(THUMBNAIL.length, exif.getThumbnailLength());
+        for (int i = 0; i < THUMBNAIL.length; i++) {
+            assertEquals(THUMBNAIL[i], result[offset + i]);
+        }
+        assertEquals((byte) 0xD9, result[result.length - 1]);
+    }
+
+    public void testApplyWithoutExif() {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
+        byte[] result = new ExifWriter().setOrientation(90).setImageSize(10, 20).apply(jpeg);
+        Exif exif = new Exif();
+        assertTrue(exif.parse(result));
+        assertEquals(2, exif.getApp1Offset());
+        assertEquals(90, exif.getOrientation());
+        assertEquals(10, exif.getImageWidth());
+        assertEquals(20, exif.getImageHeight());
+        assertEquals(-1, exif.getThumbnailOffset());
+        assertEquals(jpeg.length + exif.getApp1Length(), result.length);
+    }
+
+    // Creates a JPEG with an orientation, the dimensions, a GPS location and
+    // a thumbnail.
+    private static byte[] createJpeg(ByteOrder order) {
+        ByteBuffer jpeg = ByteBuffer.allocate(TIFF_LENGTH + 14);
+        jpeg.putShort((short) 0xFFD8).putShort((short) 0xFFE1);
+        jpeg.putShort((short) (TIFF_LENGTH + 8));
+        jpeg.put(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+
+        ByteBuffer tiff = jpeg.slice();
+        tiff.order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.putShort((short) 0x2A).putInt(8);
+
+        // IFD0 at 8.
+        tiff.putShort((short) 3);
+        putEntry(tiff, Exif.TAG_ORIENTATION, Exif.TYPE_SHORT, 1, 6);
+        putEntry(tiff, Exif.TAG_EXIF_IFD_POINTER, Exif.TYPE_LONG, 1, 50);
+        putEntry(tiff, Exif.TAG_GPS_IFD_POINTER, Exif.TYPE_LONG, 1, 80);
+        tiff.putInt(182);
+
+        // Exif IFD at 50.
+        tiff.putShort((short) 2);
+        putEntry(tiff, Exif.TAG_PIXEL_X_DIMENSION, Exif.TYPE_LONG, 1, 4000);
+        putEntry(tiff, Exif.TAG_PIXEL_Y_DIMENSION, Exif.TYPE_LONG, 1, 3000);
+        tiff.putInt(0);
+
+        // GPS IFD at 80, followed by the rationals.
+        tiff.putShort((short) 4);
+        putAsciiEntry(tiff, Exif.TAG_GPS_LATITUDE_REF, 'N');
+        putEntry(tiff, Exif.TAG_GPS_LATITUDE, Exif.TYPE_RATIONAL, 3, 134);
+        putAsciiEntry(tiff, Exif.TAG_GPS_LONGITUDE_REF, 'W');
+        putEntry(tiff, Exif.TAG_GPS_LONGITUDE, Exif.TYPE_RATIONAL, 3, 158);
+        tiff.putInt(0);
+        tiff.putInt(37).putInt(1).putInt(25).putInt(1).putInt(1950).putInt(100);
+        tiff.putInt(122).putInt(1).putInt(5).putInt(1).putInt(0).putInt(1);
+
+        // IFD1 at 182, followed by the thumbnail.
+        tiff.putShort((short) 2);
+        putEntry(tiff, Exif.TAG_JPEG_INTERCHANGE_FORMAT, Exif.TYPE_LONG, 1, THUMBNAIL_OFFSET);
+        putEntry(tiff, Exif.TAG_JPEG_INTERCHANGE_FORMAT_LENGTH, Exif.TYPE_LONG, 1,
+                THUMBNAIL.length);
+        tiff.putInt(0);
+        assertEquals(THUMBNAIL_OFFSET, tiff.position());
+        tiff.put(THUMBNAIL);
+        assertEquals(TIFF_LENGTH, tiff.position());
+
+        jpeg.position(jpeg.position() + TIFF_LENGTH);
+        jpeg.putShort((short) 0xFFD9);
+        return jpeg.array();
+    }
+
+    private static void putEntry(ByteBuffer tiff, int tag, int type, int count, int value) {
+        tiff.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == Exif.TYPE_SHORT) {
+            tiff.putShort((short) value).putShort((short) 0);
+        } else {
+            tiff.putInt(value);
+        }
+    }
+
+    private static void putAsciiEntry(ByteBuffer tiff, int tag, char value) {
+        tiff.putShort((short) tag).putShort((short) Exif.TYPE_ASCII).putInt(2);
+        tiff.put((byte) value).put((byte) 0).putShort((short) 0);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.KeepAlivePolicy;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class KeepAlivePolicyTest extends TestCase {
+    public void testDefault() {
+        assertEquals(KeepAlivePolicy.DEFAULT_KEEP_TIME, new KeepAlivePolicy().getKeepTime());
+    }
+
+    public void testLearnsFromGaps() {
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.onReopened(400);
+        policy.onReopened(800);
+        // 800 + 800 / 4 + 300
+        assertEquals(1300, policy.getKeepTime());
+
+        policy.onReopened(100);
+        assertEquals(1300, policy.getKeepTime());
+    }
+
+    public void testBounds() {
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.onReopened(10);
+        assertEquals(KeepAlivePolicy.MIN_KEEP_TIME, policy.getKeepTime());
+        policy.onReopened(9000);
+        assertEquals(KeepAlivePolicy.MAX_KEEP_TIME, policy.getKeepTime());
+    }
+
+    public void testIgnoresLongGaps() {
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.onReopened(KeepAlivePolicy.MAX_KEEP_TIME + 1);
+        assertEquals(KeepAlivePolicy.DEFAULT_KEEP_TIME, policy.getKeepTime());
+    }
+
+    public void testForgetsOldGaps() {
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        policy.onReopened(5000);
+        for (int i = 0; i < 8; i++) {
+            policy.onReopened(1000);
+        }
+        assertEquals(1550, policy.getKeepTime());
+    }
+}
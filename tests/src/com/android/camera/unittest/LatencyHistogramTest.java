@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.LatencyHistogram;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class LatencyHistogramTest extends TestCase {
+    public void testEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMean());
+        assertEquals(0, h.getPercentile(0.5));
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 20; i++) {
+            h.record(i);
+        }
+        assertEquals(20, h.getCount());
+        assertEquals(10, h.getMean());
+        assertEquals(10, h.getPercentile(0.5));
+        assertEquals(19, h.getPercentile(0.95));
+        assertEquals(20, h.getPercentile(0.99));
+        assertEquals(20, h.getMax());
+    }
+
+    public void testLargeValuesArePrecise() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000);
+        }
+        assertWithin(500000, h.getPercentile(0.5));
+        assertWithin(950000, h.getPercentile(0.95));
+        assertWithin(990000, h.getPercentile(0.99));
+        assertEquals(1000000, h.getPercentile(1));
+        assertEquals(500500, h.getMean());
+    }
+
+    public void testReset() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(5);
+        h.record(Long.MAX_VALUE);
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMax());
+        h.record(7);
+        assertEquals(7, h.getPercentile(0.5));
+    }
+
+    // The result is rounded up to the end of its bucket, which is at most
+    // 1/16 of the value.
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected " + expected + " but was " + actual,
+                actual >= expected && actual <= expected + expected / 16);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.PreviewFrameGrabber;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class PreviewFrameGrabberTest extends TestCase {
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xfffefefe;
+
+    private static byte[] createFrame(int width, int height, int luma) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        Arrays.fill(frame, 0, width * height, (byte) luma);
+        Arrays.fill(frame, width * height, frame.length, (byte) 128);
+        return frame;
+    }
+
+    public void testGray() {
+        int[] out = new int[16];
+        PreviewFrameGrabber.scaleNv21(createFrame(4, 4, 16), 4, 4, 1, out);
+        for (int pixel : out) assertEquals(BLACK, pixel);
+
+        PreviewFrameGrabber.scaleNv21(createFrame(4, 4, 235), 4, 4, 1, out);
+        for (int pixel : out) assertEquals(WHITE, pixel);
+    }
+
+    public void testScaleDown() {
+        byte[] frame = createFrame(4, 4, 16);
+        // Only the pixels of the even rows and columns are taken.
+        frame[2] = (byte) 235;
+        frame[1] = (byte) 235;
+        frame[4 * 2 + 3] = (byte) 235;
+
+        int[] out = new int[4];
+        PreviewFrameGrabber.scaleNv21(frame, 4, 4, 2, out);
+        assertEquals(BLACK, out[0]);
+        assertEquals(WHITE, out[1]);
+        assertEquals(BLACK, out[2]);
+        assertEquals(BLACK, out[3]);
+    }
+
+    public void testChroma() {
+        byte[] frame = createFrame(2, 2, 128);
+        // V is first in NV21. A high V is red.
+        frame[4] = (byte) 255;
+        frame[5] = (byte) 128;
+
+        int[] out = new int[4];
+        PreviewFrameGrabber.scaleNv21(frame, 2, 2, 1, out);
+        int red = (out[0] >> 16) & 0xff;
+        int blue = out[0] & 0xff;
+        assertTrue(red > blue);
+        assertEquals(out[0], out[3]);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.VideoFileReserver;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class VideoFileReserverTest extends TestCase {
+    private static final long TIMEOUT = 10000;
+
+    private File mDirectory;
+    private VideoFileReserver mReserver;
+    private boolean mReserved;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("reserver", "");
+        mDirectory.delete();
+        mDirectory.mkdir();
+        mReserver = new VideoFileReserver(mDirectory.getPath(),
+                new VideoFileReserver.Listener() {
+            public void onReserved() {
+                synchronized (VideoFileReserverTest.this) {
+                    mReserved = true;
+                    VideoFileReserverTest.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mReserver.release();
+        for (File f : mDirectory.listFiles()) f.delete();
+        mDirectory.delete();
+    }
+
+    private synchronized void waitReserved() throws InterruptedException {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (!mReserved && System.currentTimeMillis() < end) wait(TIMEOUT);
+        assertTrue(mReserved);
+        mReserved = false;
+    }
+
+    private static void assertZeros(File file, long length) throws IOException {
+        assertEquals(length, file.length());
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int b;
+            while ((b = in.read()) != -1) assertEquals(0, b);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testTakeAndGiveBack() throws Exception {
+        String path = new File(mDirectory, "video.mp4").getPath();
+        assertFalse(mReserver.take(path));
+
+        mReserver.reserve(600 * 1024);
+        waitReserved();
+        assertTrue(mReserver.take(path));
+        assertZeros(new File(path), 600 * 1024);
+        // The file is taken.
+        assertFalse(mReserver.take(path));
+
+        assertTrue(mReserver.giveBack(path));
+        assertFalse(new File(path).exists());
+        assertTrue(mReserver.take(path));
+    }
+
+    public void testOtherDirectory() throws Exception {
+        mReserver.reserve(1024);
+        waitReserved();
+        assertFalse(mReserver.take(new File(mDirectory.getParentFile(), "video.mp4").getPath()));
+    }
+
+    public void testGrow() throws Exception {
+        String path = new File(mDirectory, "video.mp4").getPath();
+        mReserver.reserve(1024);
+        waitReserved();
+        // A smaller size is reserved already.
+        mReserver.reserve(512);
+        mReserver.reserve(300 * 1024);
+        waitReserved();
+        assertTrue(mReserver.take(path));
+        assertZeros(new File(path), 300 * 1024);
+    }
+
+    public void testRelease() throws Exception {
+        String path = new File(mDirectory, "video.mp4").getPath();
+        mReserver.reserve(1024);
+        waitReserved();
+        mReserver.release();
+        assertFalse(mReserver.take(path));
+        assertEquals(0, mDirectory.listFiles().length);
+    }
+}
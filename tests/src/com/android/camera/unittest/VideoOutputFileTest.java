@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.camera.unittest;
+
+import com.android.camera.VideoOutputFile;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class VideoOutputFileTest extends TestCase {
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("video", ".mp4");
+        mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mRandomAccessFile.close();
+        mFile.delete();
+    }
+
+    private void writeBox(String type, int size) throws IOException {
+        mRandomAccessFile.writeInt(size);
+        mRandomAccessFile.writeBytes(type);
+        mRandomAccessFile.write(new byte[size - 8]);
+    }
+
+    public void testReserveSize() {
+        // 8 Mbps video and 128 kbps audio for 10 seconds.
+        assertEquals(10160000, VideoOutputFile.getReserveSize(8000000, 128000, 10000,
+                Long.MAX_VALUE));
+        assertEquals(1000, VideoOutputFile.getReserveSize(8000000, 128000, 10000, 1000));
+        assertEquals(0, VideoOutputFile.getReserveSize(8000000, 128000, 10000, -1));
+    }
+
+    public void testEndOfBoxes() throws IOException {
+        writeBox("ftyp", 24);
+        writeBox("mdat", 1000);
+        writeBox("moov", 200);
+        // The reserved space.
+        mRandomAccessFile.setLength(5000);
+        assertEquals(1224, VideoOutputFile.findEnd(mRandomAccessFile));
+    }
+
+    public void testLargeBox() throws IOException {
+        writeBox("ftyp", 24);
+        mRandomAccessFile.writeInt(1);
+        mRandomAccessFile.writeBytes("mdat");
+        mRandomAccessFile.writeLong(100);
+        mRandomAccessFile.setLength(1000);
+        assertEquals(124, VideoOutputFile.findEnd(mRandomAccessFile));
+    }
+
+    public void testIncompleteBox() throws IOException {
+        writeBox("ftyp", 24);
+        mRandomAccessFile.writeInt(2000);
+        mRandomAccessFile.writeBytes("mdat");
+        mRandomAccessFile.setLength(1000);
+        assertEquals(24, VideoOutputFile.findEnd(mRandomAccessFile));
+    }
+
+    public void testEmpty() throws IOException {
+        mRandomAccessFile.setLength(1000);
+        assertEquals(0, VideoOutputFile.findEnd(mRandomAccessFile));
+    }
+
+    public void testUsed() throws IOException {
+        mRandomAccessFile.setLength(1000);
+        VideoOutputFile file = VideoOutputFile.open(mFile.getPath());
+        assertFalse(file.isUsed());
+        // An unused file keeps its reserved space.
+        file.release();
+        assertEquals(1000, mFile.length());
+
+        mRandomAccessFile.seek(0);
+        writeBox("ftyp", 24);
+        file = VideoOutputFile.open(mFile.getPath());
+        assertTrue(file.isUsed());
+        file.close();
+        assertEquals(24, mFile.length());
+    }
+}